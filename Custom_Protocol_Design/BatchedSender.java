@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BatchedSender queues a list of messages for one client, batchSize
+ * frames at a time, on an executor.
+ *
+ * - The next batch waits until the client's outbound queue has room for
+ *   it (the task is rescheduled, no thread sleeps), so a long list does
+ *   not by itself fill the queue, and a slow client only slows its own
+ *   stream. A batch never takes more than half the queue.
+ * - The free-room check is not a reservation: live traffic to the same
+ *   client is queued concurrently and can take the room between the
+ *   check and the batch, in which case the queue's overflow policy
+ *   applies as for any other send. Keeping batches to half the queue
+ *   leaves the live traffic the other half.
+ * - Each batch is a separate task, so several streams sharing the
+ *   executor take turns.
+ * - onDone runs on the executor once every message is queued. If the
+ *   client goes away or stays full for STALL_MILLIS, onAbandoned runs
+ *   instead. Exactly one of them runs (both are optional).
+ */
+public class BatchedSender implements Runnable {
+
+    /** Streams that cannot progress for this long are abandoned. */
+    private static final long STALL_MILLIS = 30_000;
+    private static final long RETRY_MILLIS = 5;
+
+    /**
+     * The receiving client.
+     */
+    public interface Client {
+        OutboundQueue<?> getOutboundQueue();
+
+        void send(ChatMessage msg) throws IOException;
+    }
+
+    private final ScheduledExecutorService executor;
+    private final List<ChatMessage> messages;
+    private final int batchSize;
+    private final Client client;
+    private final String name; // for the log
+    private final Runnable onDone;
+    private final Runnable onAbandoned;
+    private int next;
+    private long stalledSince = -1;
+
+    public BatchedSender(ScheduledExecutorService executor, List<ChatMessage> messages, int batchSize,
+                         Client client, String name, Runnable onDone, Runnable onAbandoned) {
+        this.executor = executor;
+        this.messages = messages;
+        this.batchSize = batchSize;
+        this.client = client;
+        this.name = name;
+        this.onDone = onDone;
+        this.onAbandoned = onAbandoned;
+    }
+
+    @Override
+    public void run() {
+        OutboundQueue<?> queue = client.getOutboundQueue();
+        if (queue == null || queue.isClosed()) {
+            abandon();
+            return;
+        }
+        int step = Math.min(batchSize, Math.max(1, queue.getCapacity() / 2));
+        int batch = Math.min(step, messages.size() - next);
+        if (queue.getDepth() + batch > queue.getCapacity()) {
+            long now = System.currentTimeMillis();
+            if (stalledSince < 0) {
+                stalledSince = now;
+            } else if (now - stalledSince > STALL_MILLIS) {
+                EventLog.warn("stream.abandoned", "stream", name, "reason", "client too slow");
+                abandon();
+                return;
+            }
+            executor.schedule(this, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        stalledSince = -1;
+        try {
+            for (int end = next + batch; next < end; next++) {
+                client.send(messages.get(next));
+            }
+        } catch (IOException e) {
+            EventLog.info("stream.stopped", "stream", name, "error", e.getMessage());
+            abandon();
+            return;
+        }
+        if (next < messages.size()) {
+            executor.execute(this);
+        } else if (onDone != null) {
+            onDone.run();
+        }
+    }
+
+    private void abandon() {
+        if (onAbandoned != null) {
+            onAbandoned.run();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * BinaryCodec is the compact v2 body format of a ChatMessage.
+ *
+ * Layout:
+ *   [1 byte  ] MAGIC (0x02), never a valid first byte of a JSON body
+ *   [1 byte  ] message type (MessageType ordinal)
+ *   [1 byte  ] bitmap of present optional fields:
+ *              bit 0 sender, bit 1 recipient, bit 2 room, bit 3 content
+ *   [varint  ] timestamp, zigzag delta from EPOCH_MILLIS
+ *   for each present field, in bitmap order:
+ *   [varint  ] UTF-8 length, then the UTF-8 bytes
+ *
+ * The version is implied by the format ("2.0") and not written.
+ * The timestamp delta is taken from a fixed protocol epoch rather than
+ * a per-connection base, so one encoded frame can be sent to any number
+ * of v2 clients.
+ *
+ * Malformed input raises IllegalArgumentException.
+ * Use the shared instance MessageCodecs.BINARY.
+ */
+public final class BinaryCodec implements MessageCodec {
+
+    public static final byte MAGIC = 0x02;
+    public static final String VERSION = "2.0";
+
+    /** 2023-11-14T22:13:20Z, keeps current timestamps to 6 varint bytes. */
+    public static final long EPOCH_MILLIS = 1_700_000_000_000L;
+
+    private static final int SENDER = 1;
+    private static final int RECIPIENT = 1 << 1;
+    private static final int ROOM = 1 << 2;
+    private static final int CONTENT = 1 << 3;
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    // ----- MessageCodec -----
+
+    @Override
+    public String getName() {
+        return "binary";
+    }
+
+    @Override
+    public String getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public boolean accepts(byte firstByte) {
+        return firstByte == MAGIC;
+    }
+
+    // ----- Encoding -----
+
+    @Override
+    public void encodeBody(ChatMessage msg, ByteWriter out) {
+        int bitmap = 0;
+        bitmap |= msg.getSender() != null ? SENDER : 0;
+        bitmap |= msg.getRecipient() != null ? RECIPIENT : 0;
+        bitmap |= msg.getRoom() != null ? ROOM : 0;
+        bitmap |= msg.hasContent() ? CONTENT : 0;
+
+        out.write(MAGIC);
+        out.write(msg.getType().ordinal());
+        out.write(bitmap);
+        writeVarLong(out, zigzag(msg.getTimestamp() - EPOCH_MILLIS));
+        if (msg.getSender() != null) {
+            writeString(out, msg.getSender());
+        }
+        if (msg.getRecipient() != null) {
+            writeString(out, msg.getRecipient());
+        }
+        if (msg.getRoom() != null) {
+            writeString(out, msg.getRoom());
+        }
+        if (msg.getRawContent() != null) {
+            // pass-through: forwarded content is never decoded
+            byte[] raw = msg.getRawContent().utf8();
+            writeVarLong(out, raw.length);
+            out.write(raw);
+        } else if (msg.getContent() != null) {
+            writeString(out, msg.getContent());
+        }
+    }
+
+    private static void writeString(ByteWriter out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static void writeVarLong(ByteWriter out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    // ----- Decoding -----
+
+    /**
+     * Decode a binary body held in buf[offset, offset + length).
+     */
+    @Override
+    public ChatMessage decode(byte[] buf, int offset, int length) {
+        return decode(buf, offset, length, false);
+    }
+
+    /**
+     * Routing header: the content bytes are copied, not decoded.
+     */
+    @Override
+    public ChatMessage decodeHeader(byte[] buf, int offset, int length) {
+        return decode(buf, offset, length, true);
+    }
+
+    private ChatMessage decode(byte[] buf, int offset, int length, boolean rawContent) {
+        Reader r = new Reader(buf, offset, offset + length);
+        if (r.readByte() != MAGIC) {
+            throw new IllegalArgumentException("Not a v2 binary message");
+        }
+        int typeIndex = r.readByte() & 0xFF;
+        if (typeIndex >= TYPES.length) {
+            throw new IllegalArgumentException("Unknown message type: " + typeIndex);
+        }
+        int bitmap = r.readByte() & 0xFF;
+
+        ChatMessage msg = new ChatMessage(TYPES[typeIndex]);
+        msg.setVersion(VERSION);
+        msg.setTimestamp(EPOCH_MILLIS + unzigzag(r.readVarLong()));
+        if ((bitmap & SENDER) != 0) {
+            msg.setSender(r.readString());
+        }
+        if ((bitmap & RECIPIENT) != 0) {
+            msg.setRecipient(r.readString());
+        }
+        if ((bitmap & ROOM) != 0) {
+            msg.setRoom(r.readString());
+        }
+        if ((bitmap & CONTENT) != 0) {
+            if (rawContent) {
+                msg.setRawContent(new RawContent(r.readBytes(), false));
+            } else {
+                msg.setContent(r.readString());
+            }
+        }
+        return msg;
+    }
+
+    private static final class Reader {
+        private final byte[] buf;
+        private final int end;
+        private int pos;
+
+        Reader(byte[] buf, int start, int end) {
+            this.buf = buf;
+            this.pos = start;
+            this.end = end;
+        }
+
+        byte readByte() {
+            if (pos >= end) {
+                throw new IllegalArgumentException("Truncated v2 message");
+            }
+            return buf[pos++];
+        }
+
+        long readVarLong() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IllegalArgumentException("Varint too long");
+        }
+
+        String readString() {
+            int len = readLength();
+            String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+
+        byte[] readBytes() {
+            int len = readLength();
+            byte[] bytes = Arrays.copyOfRange(buf, pos, pos + len);
+            pos += len;
+            return bytes;
+        }
+
+        private int readLength() {
+            long len = readVarLong();
+            if (len < 0 || len > end - pos) {
+                throw new IllegalArgumentException("Invalid string length: " + len);
+            }
+            return (int) len;
+        }
+    }
+}
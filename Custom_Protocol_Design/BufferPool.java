@@ -0,0 +1,56 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BufferPool keeps released ByteBuffers of one fixed size so that
+ * connections do not allocate new network / application buffers
+ * every time a client connects.
+ *
+ * At most maxPooled buffers are kept; extra ones are left to the GC.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final boolean direct;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Get a cleared buffer of bufferSize bytes.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf != null) {
+            pooled.decrementAndGet();
+            buf.clear();
+            return buf;
+        }
+        return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Give a buffer back. Buffers of another size (e.g. grown ones) are dropped.
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null || buf.capacity() != bufferSize || buf.isDirect() != direct) {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        free.offer(buf);
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.Arrays;
+
+/**
+ * ByteWriter is a small growable byte buffer used by the codecs to
+ * write a frame directly as bytes (no intermediate String).
+ *
+ * Unlike ByteArrayOutputStream it is not synchronized and lets the
+ * codec patch the 4-byte length header once the body is written.
+ */
+public class ByteWriter {
+
+    private byte[] buf;
+    private int size;
+
+    public ByteWriter(int initialCapacity) {
+        this.buf = new byte[Math.max(16, initialCapacity)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void write(int b) {
+        ensure(1);
+        buf[size++] = (byte) b;
+    }
+
+    public void write(byte[] src) {
+        write(src, 0, src.length);
+    }
+
+    public void write(byte[] src, int off, int len) {
+        ensure(len);
+        System.arraycopy(src, off, buf, size, len);
+        size += len;
+    }
+
+    /**
+     * Write an ASCII-only string (field names, enum names, numbers).
+     */
+    public void writeAscii(String s) {
+        writeAscii(s, 0, s.length());
+    }
+
+    /**
+     * Write s[from, to), which must be ASCII only.
+     */
+    public void writeAscii(String s, int from, int to) {
+        ensure(to - from);
+        for (int i = from; i < to; i++) {
+            buf[size++] = (byte) s.charAt(i);
+        }
+    }
+
+    public void writeInt(int v) {
+        ensure(4);
+        buf[size++] = (byte) (v >>> 24);
+        buf[size++] = (byte) (v >>> 16);
+        buf[size++] = (byte) (v >>> 8);
+        buf[size++] = (byte) v;
+    }
+
+    public void writeLong(long v) {
+        writeInt((int) (v >>> 32));
+        writeInt((int) v);
+    }
+
+    /**
+     * Overwrite 4 bytes at pos with v (big-endian), e.g. a length header.
+     */
+    public void putInt(int pos, int v) {
+        buf[pos] = (byte) (v >>> 24);
+        buf[pos + 1] = (byte) (v >>> 16);
+        buf[pos + 2] = (byte) (v >>> 8);
+        buf[pos + 3] = (byte) v;
+    }
+
+    /**
+     * The internal buffer, valid up to size(); callers must not keep it.
+     */
+    byte[] array() {
+        return buf;
+    }
+
+    /**
+     * Copy of the written bytes.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, size);
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+        }
+    }
+}
@@ -0,0 +1,445 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * CborCodec encodes a ChatMessage as a standard CBOR map (RFC 8949)
+ * with the same keys as the JSON body:
+ *   {"type": text, "version": text, "timestamp": int,
+ *    "sender": text, "recipient": text, "room": text, "content": text}
+ * Absent optional fields are left out.
+ *
+ * The body starts with a map header (0xA0..0xBF), which is how
+ * received CBOR frames are recognised. The decoder accepts definite and
+ * indefinite lengths, and skips unknown keys whatever their value type
+ * (arrays, maps, tags, floats...).
+ *
+ * Malformed input raises IllegalArgumentException.
+ * Use the shared instance MessageCodecs.CBOR.
+ */
+public final class CborCodec implements MessageCodec {
+
+    public static final String VERSION = "3.0";
+
+    private static final int MAJOR_UINT = 0;
+    private static final int MAJOR_NEGINT = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+    private static final int MAJOR_SIMPLE = 7;
+
+    private static final int INDEFINITE = 31;
+    private static final int BREAK = 0xFF;
+    private static final int NULL = 0xF6;
+    private static final int MAX_DEPTH = 64;
+
+    private static final byte[] TYPE = utf8("type");
+    private static final byte[] VERSION_KEY = utf8("version");
+    private static final byte[] TIMESTAMP = utf8("timestamp");
+    private static final byte[] SENDER = utf8("sender");
+    private static final byte[] RECIPIENT = utf8("recipient");
+    private static final byte[] ROOM = utf8("room");
+    private static final byte[] CONTENT = utf8("content");
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // ----- MessageCodec -----
+
+    @Override
+    public String getName() {
+        return "cbor";
+    }
+
+    @Override
+    public String getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public boolean accepts(byte firstByte) {
+        return ((firstByte & 0xFF) >> 5) == MAJOR_MAP;
+    }
+
+    // ----- Encoding -----
+
+    @Override
+    public void encodeBody(ChatMessage msg, ByteWriter out) {
+        int entries = 3;
+        entries += msg.getSender() != null ? 1 : 0;
+        entries += msg.getRecipient() != null ? 1 : 0;
+        entries += msg.getRoom() != null ? 1 : 0;
+        entries += msg.hasContent() ? 1 : 0;
+
+        writeHeader(out, MAJOR_MAP, entries);
+        writeKey(out, TYPE);
+        writeText(out, msg.getType().name());
+        writeKey(out, VERSION_KEY);
+        writeText(out, msg.getVersion());
+        writeKey(out, TIMESTAMP);
+        long ts = msg.getTimestamp();
+        if (ts >= 0) {
+            writeHeader(out, MAJOR_UINT, ts);
+        } else {
+            writeHeader(out, MAJOR_NEGINT, -1 - ts);
+        }
+        if (msg.getSender() != null) {
+            writeKey(out, SENDER);
+            writeText(out, msg.getSender());
+        }
+        if (msg.getRecipient() != null) {
+            writeKey(out, RECIPIENT);
+            writeText(out, msg.getRecipient());
+        }
+        if (msg.getRoom() != null) {
+            writeKey(out, ROOM);
+            writeText(out, msg.getRoom());
+        }
+        if (msg.getRawContent() != null) {
+            // pass-through: forwarded content is never decoded
+            byte[] raw = msg.getRawContent().utf8();
+            writeKey(out, CONTENT);
+            writeHeader(out, MAJOR_TEXT, raw.length);
+            out.write(raw);
+        } else if (msg.getContent() != null) {
+            writeKey(out, CONTENT);
+            writeText(out, msg.getContent());
+        }
+    }
+
+    private static void writeKey(ByteWriter out, byte[] key) {
+        writeHeader(out, MAJOR_TEXT, key.length);
+        out.write(key);
+    }
+
+    private static void writeText(ByteWriter out, String s) {
+        if (s == null) {
+            out.write(NULL);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeHeader(out, MAJOR_TEXT, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Initial byte plus argument, in the shortest form (value is unsigned).
+     */
+    private static void writeHeader(ByteWriter out, int major, long value) {
+        int mt = major << 5;
+        if (value >= 0 && value < 24) {
+            out.write(mt | (int) value);
+        } else if (value >= 0 && value < 0x100) {
+            out.write(mt | 24);
+            out.write((int) value);
+        } else if (value >= 0 && value < 0x10000) {
+            out.write(mt | 25);
+            out.write((int) (value >> 8));
+            out.write((int) value);
+        } else if (value >= 0 && value < 0x100000000L) {
+            out.write(mt | 26);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                out.write((int) (value >> shift));
+            }
+        } else {
+            out.write(mt | 27);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (value >> shift));
+            }
+        }
+    }
+
+    // ----- Decoding -----
+
+    @Override
+    public ChatMessage decode(byte[] buf, int offset, int length) {
+        return new Reader(buf, offset, offset + length).readMessage(false);
+    }
+
+    /**
+     * Routing header: a definite-length content string is copied, not decoded.
+     */
+    @Override
+    public ChatMessage decodeHeader(byte[] buf, int offset, int length) {
+        return new Reader(buf, offset, offset + length).readMessage(true);
+    }
+
+    private static final class Reader {
+        private final byte[] buf;
+        private final int end;
+        private int pos;
+
+        // argument of the last header read
+        private long arg;
+        private boolean indefinite;
+
+        Reader(byte[] buf, int start, int end) {
+            this.buf = buf;
+            this.pos = start;
+            this.end = end;
+        }
+
+        ChatMessage readMessage(boolean rawContent) {
+            MessageType type = null;
+            String version = VERSION;
+            long timestamp = System.currentTimeMillis();
+            String sender = null;
+            String recipient = null;
+            String room = null;
+            String content = null;
+            RawContent raw = null;
+
+            if (readHeader() != MAJOR_MAP) {
+                throw error("expected a map");
+            }
+            long remaining = indefinite ? -1 : arg;
+            while (remaining != 0) {
+                if (remaining < 0 && peek() == BREAK) {
+                    pos++;
+                    break;
+                }
+                int keyStart = pos;
+                if (readHeader() != MAJOR_TEXT || indefinite) {
+                    pos = keyStart;
+                    skipItem(0); // non-text key
+                    skipItem(0); // its value
+                } else {
+                    int len = checkedLength(arg);
+                    int k = pos;
+                    pos += len;
+                    if (keyIs(k, len, TYPE)) {
+                        type = parseType(readText());
+                    } else if (keyIs(k, len, VERSION_KEY)) {
+                        version = readText();
+                    } else if (keyIs(k, len, TIMESTAMP)) {
+                        timestamp = readLong();
+                    } else if (keyIs(k, len, SENDER)) {
+                        sender = readText();
+                    } else if (keyIs(k, len, RECIPIENT)) {
+                        recipient = readText();
+                    } else if (keyIs(k, len, ROOM)) {
+                        room = readText();
+                    } else if (keyIs(k, len, CONTENT)) {
+                        raw = rawContent ? readRawText() : null;
+                        if (raw == null) {
+                            content = readText();
+                        }
+                    } else {
+                        skipItem(0);
+                    }
+                }
+                if (remaining > 0) {
+                    remaining--;
+                }
+            }
+
+            if (type == null) {
+                throw new IllegalArgumentException("Missing message type in CBOR");
+            }
+            ChatMessage msg = new ChatMessage(type);
+            msg.setVersion(version);
+            msg.setTimestamp(timestamp);
+            msg.setSender(sender);
+            msg.setRecipient(recipient);
+            msg.setRoom(room);
+            if (raw != null) {
+                msg.setRawContent(raw);
+            } else {
+                msg.setContent(content);
+            }
+            return msg;
+        }
+
+        /**
+         * Copy a definite-length text string as RawContent; returns null
+         * (position unchanged) for anything else.
+         */
+        private RawContent readRawText() {
+            int start = pos;
+            if (readHeader() != MAJOR_TEXT || indefinite) {
+                pos = start;
+                return null;
+            }
+            int len = checkedLength(arg);
+            byte[] bytes = Arrays.copyOfRange(buf, pos, pos + len);
+            pos += len;
+            return new RawContent(bytes, false);
+        }
+
+        private MessageType parseType(String name) {
+            if (name != null) {
+                for (MessageType t : TYPES) {
+                    if (t.name().equals(name)) {
+                        return t;
+                    }
+                }
+            }
+            throw new IllegalArgumentException("Unknown message type: " + name);
+        }
+
+        /**
+         * Text string (definite or chunked) or null.
+         */
+        private String readText() {
+            if (peek() == NULL) {
+                pos++;
+                return null;
+            }
+            if (readHeader() != MAJOR_TEXT) {
+                throw error("expected a text string");
+            }
+            if (!indefinite) {
+                int len = checkedLength(arg);
+                String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+                pos += len;
+                return s;
+            }
+            ByteWriter chunks = new ByteWriter(64);
+            while (peek() != BREAK) {
+                if (readHeader() != MAJOR_TEXT || indefinite) {
+                    throw error("invalid text chunk");
+                }
+                int len = checkedLength(arg);
+                chunks.write(buf, pos, len);
+                pos += len;
+            }
+            pos++;
+            return new String(chunks.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        private long readLong() {
+            int major = readHeader();
+            if (major == MAJOR_UINT && arg >= 0) {
+                return arg;
+            }
+            if (major == MAJOR_NEGINT && arg >= 0) {
+                return -1 - arg;
+            }
+            throw error("expected an integer");
+        }
+
+        /**
+         * Skip one complete data item of any type.
+         */
+        private void skipItem(int depth) {
+            if (depth > MAX_DEPTH) {
+                throw error("nesting too deep");
+            }
+            int major = readHeader();
+            switch (major) {
+                case MAJOR_UINT:
+                case MAJOR_NEGINT:
+                    break;
+                case MAJOR_BYTES:
+                case MAJOR_TEXT:
+                    if (indefinite) {
+                        while (peek() != BREAK) {
+                            skipItem(depth + 1);
+                        }
+                        pos++;
+                    } else {
+                        pos += checkedLength(arg);
+                    }
+                    break;
+                case MAJOR_ARRAY:
+                case MAJOR_MAP:
+                    long items = major == MAJOR_MAP ? 2 : 1;
+                    if (indefinite) {
+                        while (peek() != BREAK) {
+                            skipItem(depth + 1);
+                        }
+                        pos++;
+                    } else {
+                        if (arg < 0 || arg > end - pos) {
+                            throw error("invalid container size");
+                        }
+                        for (long i = 0; i < arg * items; i++) {
+                            skipItem(depth + 1);
+                        }
+                    }
+                    break;
+                case MAJOR_TAG:
+                    skipItem(depth + 1);
+                    break;
+                default:
+                    // simple values and floats carry no payload beyond the header
+                    break;
+            }
+        }
+
+        /**
+         * Read an initial byte and its argument; returns the major type.
+         * Sets arg (or indefinite for additional info 31).
+         */
+        private int readHeader() {
+            int initial = next() & 0xFF;
+            int major = initial >> 5;
+            int info = initial & 0x1F;
+            indefinite = false;
+            if (info < 24) {
+                arg = info;
+            } else if (info == 24) {
+                arg = next() & 0xFF;
+            } else if (info == 25) {
+                arg = readBytes(2);
+            } else if (info == 26) {
+                arg = readBytes(4);
+            } else if (info == 27) {
+                arg = readBytes(8);
+            } else if (info == INDEFINITE && major >= MAJOR_BYTES && major <= MAJOR_MAP) {
+                indefinite = true;
+                arg = -1;
+            } else {
+                throw error("invalid additional info " + info);
+            }
+            return major;
+        }
+
+        private long readBytes(int n) {
+            long v = 0;
+            for (int i = 0; i < n; i++) {
+                v = (v << 8) | (next() & 0xFF);
+            }
+            return v;
+        }
+
+        private int checkedLength(long len) {
+            if (len < 0 || len > end - pos) {
+                throw error("invalid length " + len);
+            }
+            return (int) len;
+        }
+
+        private boolean keyIs(int start, int len, byte[] key) {
+            if (len != key.length) {
+                return false;
+            }
+            for (int i = 0; i < len; i++) {
+                if (buf[start + i] != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int peek() {
+            if (pos >= end) {
+                throw error("unexpected end of input");
+            }
+            return buf[pos] & 0xFF;
+        }
+
+        private byte next() {
+            peek();
+            return buf[pos++];
+        }
+
+        private IllegalArgumentException error(String what) {
+            return new IllegalArgumentException("Malformed CBOR at byte " + pos + ": " + what);
+        }
+    }
+}
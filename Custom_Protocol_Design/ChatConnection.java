@@ -0,0 +1,39 @@
+import java.io.IOException;
+
+/**
+ * ChatConnection is the transport side of one connected client.
+ * The server's ClientHandler only talks to this interface, so the same
+ * login / join / text / private logic runs on a blocking SSLSocket or
+ * on the non-blocking SSLEngine event loop.
+ */
+public interface ChatConnection {
+
+    /**
+     * Queue one already encoded frame for the client. Never blocks on the
+     * network; throws if the connection is closed or its outbound queue
+     * refused the frame (DISCONNECT overflow policy).
+     */
+    void send(EncodedFrame frame) throws IOException;
+
+    /**
+     * Encode and queue one message.
+     */
+    default void send(ChatMessage msg) throws IOException {
+        send(msg.encode());
+    }
+
+    /**
+     * Outbound queue of this connection, for depth / drop counters.
+     */
+    OutboundQueue<?> getOutboundQueue();
+
+    /**
+     * Close the underlying connection (safe to call more than once).
+     */
+    void close();
+
+    /**
+     * Remote address, only used for logging.
+     */
+    String getRemoteAddress();
+}
@@ -1,7 +1,6 @@
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -20,8 +19,9 @@ import java.nio.charset.StandardCharsets;
  *   "content":"hello"
  * }
  *
- * This is a very simple and not fully general JSON handling,
- * but it is enough for the lab.
+ * Encoding and parsing are done by JsonCodec, a single-pass codec
+ * working directly on UTF-8 bytes. Clients may negotiate another
+ * MessageCodec at login (binary "2.0", CBOR "3.0"; see MessageCodecs).
  */
 public class ChatMessage {
 
@@ -32,6 +32,7 @@ public class ChatMessage {
     private String recipient; // for private messages
     private String room;      // for room-based messages
     private String content;   // text of the message
+    private RawContent rawContent; // content as received, decoded lazily
 
     public ChatMessage(MessageType type) {
         this.type = type;
@@ -90,143 +91,83 @@ public class ChatMessage {
     }
 
     public String getContent() {
+        if (content == null && rawContent != null) {
+            content = rawContent.toString();
+        }
         return content;
     }
 
     public void setContent(String content) {
         this.content = content;
+        this.rawContent = null;
     }
 
-    // ----- JSON serialization (very simple) -----
-
     /**
-     * Convert this message to a JSON string.
-     * We build JSON manually to avoid external libraries.
-     * WARNING: this is a simple implementation and assumes
-     * fields do not contain quotes or commas.
+     * Content in its received wire form, or null if the content was set
+     * as a String. Codecs write it back without decoding it.
      */
-    public String toJson() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{");
-        // type (required)
-        sb.append("\"type\":\"").append(type.name()).append("\",");
+    public RawContent getRawContent() {
+        return rawContent;
+    }
 
-        // version (required)
-        sb.append("\"version\":\"").append(version).append("\",");
+    public void setRawContent(RawContent rawContent) {
+        this.rawContent = rawContent;
+        this.content = null;
+    }
 
-        // timestamp (required)
-        sb.append("\"timestamp\":").append(timestamp).append(",");
+    /**
+     * True if the message has content, without decoding raw content.
+     */
+    public boolean hasContent() {
+        return content != null || rawContent != null;
+    }
 
-        // optional fields
-        if (sender != null) {
-            sb.append("\"sender\":\"").append(sender).append("\",");
-        }
-        if (recipient != null) {
-            sb.append("\"recipient\":\"").append(recipient).append("\",");
-        }
-        if (room != null) {
-            sb.append("\"room\":\"").append(room).append("\",");
-        }
-        if (content != null) {
-            sb.append("\"content\":\"").append(content).append("\",");
-        }
+    /**
+     * Take the content of another message, raw form included, so a
+     * routed message can be forwarded without decoding its text.
+     */
+    public void copyContentFrom(ChatMessage other) {
+        this.content = other.content;
+        this.rawContent = other.rawContent;
+    }
 
-        // remove trailing comma if present
-        if (sb.charAt(sb.length() - 1) == ',') {
-            sb.deleteCharAt(sb.length() - 1);
-        }
+    // ----- JSON serialization (see JsonCodec) -----
 
-        sb.append("}");
-        return sb.toString();
+    /**
+     * Convert this message to a JSON string.
+     * Strings are escaped, so content may contain quotes, commas,
+     * newlines or any Unicode character.
+     */
+    public String toJson() {
+        return new String(MessageCodecs.JSON.encode(this), StandardCharsets.UTF_8);
     }
 
     /**
-     * Parse a ChatMessage from a JSON string produced by toJson().
-     * This is a simple parser that splits by commas and colons.
+     * Parse a ChatMessage from a JSON string.
      */
     public static ChatMessage fromJson(String json) {
         if (json == null) {
             throw new IllegalArgumentException("json is null");
         }
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        return MessageCodecs.JSON.decode(bytes, 0, bytes.length);
+    }
 
-        json = json.trim();
-        if (json.startsWith("{")) {
-            json = json.substring(1);
-        }
-        if (json.endsWith("}")) {
-            json = json.substring(0, json.length() - 1);
-        }
-
-        // now json is like: "key":"value","key2":"value2",...
-        String[] pairs = json.split(",");
-        MessageType type = null;
-        String version = "1.0";
-        long timestamp = System.currentTimeMillis();
-        String sender = null;
-        String recipient = null;
-        String room = null;
-        String content = null;
-
-        for (String pair : pairs) {
-            String[] kv = pair.split(":", 2);
-            if (kv.length != 2) continue;
-
-            String key = kv[0].trim();
-            String value = kv[1].trim();
-
-            // remove quotes around key
-            if (key.startsWith("\"") && key.endsWith("\"")) {
-                key = key.substring(1, key.length() - 1);
-            }
-            // remove quotes around value if present
-            if (value.startsWith("\"") && value.endsWith("\"")) {
-                value = value.substring(1, value.length() - 1);
-            }
-
-            switch (key) {
-                case "type":
-                    type = MessageType.valueOf(value);
-                    break;
-                case "version":
-                    version = value;
-                    break;
-                case "timestamp":
-                    try {
-                        timestamp = Long.parseLong(value);
-                    } catch (NumberFormatException e) {
-                        timestamp = System.currentTimeMillis();
-                    }
-                    break;
-                case "sender":
-                    sender = value;
-                    break;
-                case "recipient":
-                    recipient = value;
-                    break;
-                case "room":
-                    room = value;
-                    break;
-                case "content":
-                    content = value;
-                    break;
-                default:
-                    // ignore unknown fields
-                    break;
-            }
-        }
-
-        if (type == null) {
-            throw new IllegalArgumentException("Missing message type in JSON: " + json);
-        }
+    /**
+     * Parse only the routing header (type, room, recipient, ...) of a frame
+     * body; the content stays raw until getContent() is called.
+     */
+    public static ChatMessage headerFromBytes(byte[] bytes, int offset, int length) {
+        return MessageCodecs.sniff(bytes, offset, length).decodeHeader(bytes, offset, length);
+    }
 
-        ChatMessage msg = new ChatMessage(type);
-        msg.setVersion(version);
-        msg.setTimestamp(timestamp);
-        msg.setSender(sender);
-        msg.setRecipient(recipient);
-        msg.setRoom(room);
-        msg.setContent(content);
-        return msg;
+    /**
+     * Parse a message from a frame body without building an intermediate
+     * String. The body may be in any registered codec (JSON, binary,
+     * CBOR); the codec is recognised from its first byte.
+     */
+    public static ChatMessage fromBytes(byte[] bytes, int offset, int length) {
+        return MessageCodecs.decode(bytes, offset, length);
     }
 
     // ----- Binary framing: [length][json bytes] -----
@@ -235,13 +176,22 @@ public class ChatMessage {
      * Serialize to bytes: [4-byte length][json bytes].
      */
     public byte[] toBytes() {
-        String json = toJson();
-        byte[] jsonBytes = json.getBytes(StandardCharsets.UTF_8);
+        return MessageCodecs.JSON.encodeFrame(this);
+    }
+
+    /**
+     * Encode this message once into an immutable frame that can be
+     * written to any number of connections.
+     */
+    public EncodedFrame encode() {
+        return new EncodedFrame(toBytes());
+    }
 
-        ByteBuffer buffer = ByteBuffer.allocate(4 + jsonBytes.length);
-        buffer.putInt(jsonBytes.length);
-        buffer.put(jsonBytes);
-        return buffer.array();
+    /**
+     * Encode this message once with the given codec.
+     */
+    public EncodedFrame encode(MessageCodec codec) {
+        return new EncodedFrame(codec.encodeFrame(this));
     }
 
     /**
@@ -249,16 +199,16 @@ public class ChatMessage {
      * [length][json bytes] format.
      */
     public void writeTo(DataOutputStream out) throws IOException {
-        String json = toJson();
-        byte[] jsonBytes = json.getBytes(StandardCharsets.UTF_8);
-        out.writeInt(jsonBytes.length);
-        out.write(jsonBytes);
+        out.write(toBytes());
         out.flush();
     }
 
     /**
      * Read one ChatMessage from a DataInputStream using the
      * [length][json bytes] format.
+     * Frames bigger than FrameDecoder.DEFAULT_MAX_FRAME_SIZE are rejected;
+     * long-lived connections should use a FrameDecoder instead, which
+     * also reuses its receive buffer.
      */
     public static ChatMessage readFrom(DataInputStream in) throws IOException {
         // read length
@@ -273,11 +223,12 @@ public class ChatMessage {
         if (len <= 0) {
             throw new IOException("Invalid message length: " + len);
         }
+        if (len > FrameDecoder.DEFAULT_MAX_FRAME_SIZE) {
+            throw new IOException("Message too large: " + len);
+        }
 
         byte[] jsonBytes = new byte[len];
         in.readFully(jsonBytes);
-
-        String json = new String(jsonBytes, StandardCharsets.UTF_8);
-        return fromJson(json);
+        return fromBytes(jsonBytes, 0, len);
     }
 }
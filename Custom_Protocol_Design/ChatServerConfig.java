@@ -0,0 +1,587 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ChatServerConfig holds the startup options of SecureChatServer.
+ * Options are given on the command line as --key=value, for example:
+ *   java SecureChatServer --transport=nio --eventLoops=4
+ *   java SecureChatServer --virtualThreads=true
+ *   java SecureChatServer --outboundQueue=512 --overflow=disconnect
+ *   java SecureChatServer --flushLatencyMicros=500 --maxFrame=65536
+ *   java SecureChatServer --roomShards=8
+ *   java SecureChatServer --parallelFanOut=4096 --fanOutPartition=1024
+ *   java SecureChatServer --logDir=chatlog --logSegmentBytes=67108864
+ *   java SecureChatServer --logRetentionBytes=17179869184   (0 keeps every segment)
+ *   java SecureChatServer --logDir=            (no message log)
+ *   java SecureChatServer --durability=batched --commitMillis=10 --commitBytes=262144
+ *   java SecureChatServer --roomDurability=audit:message,random:none
+ *   java SecureChatServer --historyMax=1000 --historyBatch=100
+ *   java SecureChatServer --recentBudgetBytes=268435456 --recentRoomBytes=16384 --recentMessages=100
+ *   java SecureChatServer --eventLevel=debug --eventSample=chat.text:100 --eventLogFile=server.log
+ *   java SecureChatServer --mailDir=mailbox --mailboxQuota=100 --mailboxTtlSeconds=604800
+ *   java SecureChatServer --snapshotDir=snapshots --snapshotSeconds=60
+ *
+ * Unknown options are ignored with a warning.
+ */
+public class ChatServerConfig {
+
+    /**
+     * How client connections are served.
+     * BLOCKING : one thread per SSLSocket (original behaviour)
+     * NIO      : SocketChannel + Selector + SSLEngine event loops
+     */
+    public enum TransportMode {
+        BLOCKING,
+        NIO
+    }
+
+    private int port = 8443;
+    private String keystorePath = "server.jks";
+    private String keystorePassword = "password123";
+    private TransportMode transportMode = TransportMode.BLOCKING;
+    private int eventLoopThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private boolean virtualThreads = false; // BLOCKING mode only
+    private int outboundQueueCapacity = 1024;
+    private OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+    private long flushLatencyMicros = 0; // 0 = flush as soon as the queue is empty
+    private int maxFrameSize = FrameDecoder.DEFAULT_MAX_FRAME_SIZE;
+    private int roomShards = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private int parallelFanOutThreshold = 4096; // room size; 0 = never parallel
+    private int fanOutPartitionSize = 1024;
+    private String logDir = "chatlog"; // empty = messages are not persisted
+    private int logSegmentBytes = 64 * 1024 * 1024;
+    private long logRetentionBytes = 0; // oldest segments deleted above it; 0 = keep all
+    private MessageLog.Durability durability = MessageLog.Durability.BATCHED;
+    private final Map<String, MessageLog.Durability> roomDurability = new HashMap<>();
+    private long commitMillis = 10;         // group commit at least this often
+    private int commitBytes = 256 * 1024;   // ... or once this much is waiting
+    private int historyMax = 1000;   // messages a join may replay; 0 = no replay
+    private int historyBatch = 100;  // frames queued per replay step
+    private long recentBudgetBytes = 256L * 1024 * 1024; // off-heap rings; 0 = none
+    private int recentRoomBytes = 16 * 1024;
+    private int recentMessages = 100;
+    private EventLog.Level eventLevel = EventLog.Level.INFO;
+    private String eventLogFile = "";  // empty = stdout
+    private final Map<String, Integer> eventSampling = new HashMap<>();
+    private String mailDir = "mailbox"; // empty = no offline private messages
+    private int mailboxQuota = 100;     // pending messages per user
+    private long mailboxTtlSeconds = 7 * 24 * 3600;
+    private String snapshotDir = "snapshots"; // empty = no state snapshots
+    private long snapshotSeconds = 60;
+
+    // ----- Getters and setters -----
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public String getKeystorePath() {
+        return keystorePath;
+    }
+
+    public void setKeystorePath(String keystorePath) {
+        this.keystorePath = keystorePath;
+    }
+
+    public String getKeystorePassword() {
+        return keystorePassword;
+    }
+
+    public void setKeystorePassword(String keystorePassword) {
+        this.keystorePassword = keystorePassword;
+    }
+
+    public TransportMode getTransportMode() {
+        return transportMode;
+    }
+
+    public void setTransportMode(TransportMode transportMode) {
+        this.transportMode = transportMode;
+    }
+
+    public int getEventLoopThreads() {
+        return eventLoopThreads;
+    }
+
+    public void setEventLoopThreads(int eventLoopThreads) {
+        if (eventLoopThreads <= 0) {
+            throw new IllegalArgumentException("eventLoops must be > 0: " + eventLoopThreads);
+        }
+        this.eventLoopThreads = eventLoopThreads;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    public void setOutboundQueueCapacity(int outboundQueueCapacity) {
+        if (outboundQueueCapacity <= 0) {
+            throw new IllegalArgumentException("outboundQueue must be > 0: " + outboundQueueCapacity);
+        }
+        this.outboundQueueCapacity = outboundQueueCapacity;
+    }
+
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OutboundQueue.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public long getFlushLatencyMicros() {
+        return flushLatencyMicros;
+    }
+
+    public void setFlushLatencyMicros(long flushLatencyMicros) {
+        if (flushLatencyMicros < 0) {
+            throw new IllegalArgumentException("flushLatencyMicros must be >= 0: " + flushLatencyMicros);
+        }
+        this.flushLatencyMicros = flushLatencyMicros;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    public void setMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("maxFrame must be > 0: " + maxFrameSize);
+        }
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    public int getRoomShards() {
+        return roomShards;
+    }
+
+    public void setRoomShards(int roomShards) {
+        if (roomShards <= 0) {
+            throw new IllegalArgumentException("roomShards must be > 0: " + roomShards);
+        }
+        this.roomShards = roomShards;
+    }
+
+    public int getParallelFanOutThreshold() {
+        return parallelFanOutThreshold;
+    }
+
+    public void setParallelFanOutThreshold(int parallelFanOutThreshold) {
+        if (parallelFanOutThreshold < 0) {
+            throw new IllegalArgumentException("parallelFanOut must be >= 0: " + parallelFanOutThreshold);
+        }
+        this.parallelFanOutThreshold = parallelFanOutThreshold;
+    }
+
+    public int getFanOutPartitionSize() {
+        return fanOutPartitionSize;
+    }
+
+    public void setFanOutPartitionSize(int fanOutPartitionSize) {
+        if (fanOutPartitionSize <= 0) {
+            throw new IllegalArgumentException("fanOutPartition must be > 0: " + fanOutPartitionSize);
+        }
+        this.fanOutPartitionSize = fanOutPartitionSize;
+    }
+
+    public String getLogDir() {
+        return logDir;
+    }
+
+    public void setLogDir(String logDir) {
+        this.logDir = logDir;
+    }
+
+    public boolean isMessageLogEnabled() {
+        return logDir != null && !logDir.isEmpty();
+    }
+
+    public int getLogSegmentBytes() {
+        return logSegmentBytes;
+    }
+
+    public void setLogSegmentBytes(int logSegmentBytes) {
+        if (logSegmentBytes < 64 * 1024) {
+            throw new IllegalArgumentException("logSegmentBytes must be >= 65536: " + logSegmentBytes);
+        }
+        this.logSegmentBytes = logSegmentBytes;
+    }
+
+    /**
+     * Size of the log above which its oldest segments are deleted (the
+     * current one never is); 0 keeps every segment.
+     */
+    public long getLogRetentionBytes() {
+        return logRetentionBytes;
+    }
+
+    public void setLogRetentionBytes(long logRetentionBytes) {
+        if (logRetentionBytes < 0) {
+            throw new IllegalArgumentException("logRetentionBytes must be >= 0: " + logRetentionBytes);
+        }
+        this.logRetentionBytes = logRetentionBytes;
+    }
+
+    /**
+     * Default durability of logged messages (private messages and rooms
+     * without their own level).
+     */
+    public MessageLog.Durability getDurability() {
+        return durability;
+    }
+
+    public void setDurability(MessageLog.Durability durability) {
+        this.durability = durability;
+    }
+
+    /**
+     * Durability of the messages of room.
+     */
+    public MessageLog.Durability getDurability(String room) {
+        return room == null ? durability : roomDurability.getOrDefault(room, durability);
+    }
+
+    public void setRoomDurability(String room, MessageLog.Durability durability) {
+        roomDurability.put(room, durability);
+    }
+
+    /**
+     * Parse "room:level,room:level" (levels: none, batched, message).
+     */
+    public void setRoomDurability(String spec) {
+        for (String part : spec.split(",")) {
+            if (part.isEmpty()) {
+                continue;
+            }
+            int colon = part.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("roomDurability expects room:level, got: " + part);
+            }
+            setRoomDurability(part.substring(0, colon),
+                    MessageLog.Durability.valueOf(part.substring(colon + 1).toUpperCase()));
+        }
+    }
+
+    public long getCommitMillis() {
+        return commitMillis;
+    }
+
+    public void setCommitMillis(long commitMillis) {
+        if (commitMillis < 0) {
+            throw new IllegalArgumentException("commitMillis must be >= 0: " + commitMillis);
+        }
+        this.commitMillis = commitMillis;
+    }
+
+    public int getCommitBytes() {
+        return commitBytes;
+    }
+
+    public void setCommitBytes(int commitBytes) {
+        if (commitBytes <= 0) {
+            throw new IllegalArgumentException("commitBytes must be > 0: " + commitBytes);
+        }
+        this.commitBytes = commitBytes;
+    }
+
+    public int getHistoryMax() {
+        return historyMax;
+    }
+
+    public void setHistoryMax(int historyMax) {
+        if (historyMax < 0) {
+            throw new IllegalArgumentException("historyMax must be >= 0: " + historyMax);
+        }
+        this.historyMax = historyMax;
+    }
+
+    public int getHistoryBatch() {
+        return historyBatch;
+    }
+
+    public void setHistoryBatch(int historyBatch) {
+        if (historyBatch <= 0) {
+            throw new IllegalArgumentException("historyBatch must be > 0: " + historyBatch);
+        }
+        this.historyBatch = historyBatch;
+    }
+
+    public long getRecentBudgetBytes() {
+        return recentBudgetBytes;
+    }
+
+    public void setRecentBudgetBytes(long recentBudgetBytes) {
+        if (recentBudgetBytes < 0) {
+            throw new IllegalArgumentException("recentBudgetBytes must be >= 0: " + recentBudgetBytes);
+        }
+        this.recentBudgetBytes = recentBudgetBytes;
+    }
+
+    public boolean isRecentFramesEnabled() {
+        return recentBudgetBytes > 0;
+    }
+
+    public int getRecentRoomBytes() {
+        return recentRoomBytes;
+    }
+
+    public void setRecentRoomBytes(int recentRoomBytes) {
+        if (recentRoomBytes < 1024) {
+            throw new IllegalArgumentException("recentRoomBytes must be >= 1024: " + recentRoomBytes);
+        }
+        this.recentRoomBytes = recentRoomBytes;
+    }
+
+    public int getRecentMessages() {
+        return recentMessages;
+    }
+
+    public void setRecentMessages(int recentMessages) {
+        if (recentMessages <= 0) {
+            throw new IllegalArgumentException("recentMessages must be > 0: " + recentMessages);
+        }
+        this.recentMessages = recentMessages;
+    }
+
+    public EventLog.Level getEventLevel() {
+        return eventLevel;
+    }
+
+    public void setEventLevel(EventLog.Level eventLevel) {
+        this.eventLevel = eventLevel;
+    }
+
+    public String getEventLogFile() {
+        return eventLogFile;
+    }
+
+    public void setEventLogFile(String eventLogFile) {
+        this.eventLogFile = eventLogFile;
+    }
+
+    /**
+     * Event name -> keep one event in N.
+     */
+    public Map<String, Integer> getEventSampling() {
+        return eventSampling;
+    }
+
+    public void setEventSampling(String event, int rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("sampling rate must be > 0: " + event + ":" + rate);
+        }
+        eventSampling.put(event, rate);
+    }
+
+    /**
+     * Parse "event:N,event:N".
+     */
+    public void setEventSampling(String spec) {
+        for (String part : spec.split(",")) {
+            if (part.isEmpty()) {
+                continue;
+            }
+            int colon = part.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("eventSample expects event:N, got: " + part);
+            }
+            setEventSampling(part.substring(0, colon), Integer.parseInt(part.substring(colon + 1)));
+        }
+    }
+
+    public String getMailDir() {
+        return mailDir;
+    }
+
+    public void setMailDir(String mailDir) {
+        this.mailDir = mailDir;
+    }
+
+    public boolean isMailboxEnabled() {
+        return mailDir != null && !mailDir.isEmpty();
+    }
+
+    public int getMailboxQuota() {
+        return mailboxQuota;
+    }
+
+    public void setMailboxQuota(int mailboxQuota) {
+        if (mailboxQuota <= 0) {
+            throw new IllegalArgumentException("mailboxQuota must be > 0: " + mailboxQuota);
+        }
+        this.mailboxQuota = mailboxQuota;
+    }
+
+    public long getMailboxTtlSeconds() {
+        return mailboxTtlSeconds;
+    }
+
+    public void setMailboxTtlSeconds(long mailboxTtlSeconds) {
+        if (mailboxTtlSeconds <= 0) {
+            throw new IllegalArgumentException("mailboxTtlSeconds must be > 0: " + mailboxTtlSeconds);
+        }
+        this.mailboxTtlSeconds = mailboxTtlSeconds;
+    }
+
+    public String getSnapshotDir() {
+        return snapshotDir;
+    }
+
+    public void setSnapshotDir(String snapshotDir) {
+        this.snapshotDir = snapshotDir;
+    }
+
+    public boolean isSnapshotEnabled() {
+        return snapshotDir != null && !snapshotDir.isEmpty();
+    }
+
+    public long getSnapshotSeconds() {
+        return snapshotSeconds;
+    }
+
+    public void setSnapshotSeconds(long snapshotSeconds) {
+        if (snapshotSeconds <= 0) {
+            throw new IllegalArgumentException("snapshotSeconds must be > 0: " + snapshotSeconds);
+        }
+        this.snapshotSeconds = snapshotSeconds;
+    }
+
+    // ----- Command line parsing -----
+
+    /**
+     * Build a config from --key=value arguments.
+     */
+    public static ChatServerConfig fromArgs(String[] args) {
+        ChatServerConfig config = new ChatServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                System.out.println("Ignoring argument: " + arg);
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            String key = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            config.set(key, value);
+        }
+        return config;
+    }
+
+    private void set(String key, String value) {
+        switch (key) {
+            case "port":
+                setPort(Integer.parseInt(value));
+                break;
+            case "keystore":
+                setKeystorePath(value);
+                break;
+            case "password":
+                setKeystorePassword(value);
+                break;
+            case "transport":
+                setTransportMode(TransportMode.valueOf(value.toUpperCase()));
+                break;
+            case "eventLoops":
+                setEventLoopThreads(Integer.parseInt(value));
+                break;
+            case "virtualThreads":
+                setVirtualThreads(Boolean.parseBoolean(value));
+                break;
+            case "outboundQueue":
+                setOutboundQueueCapacity(Integer.parseInt(value));
+                break;
+            case "overflow":
+                setOverflowPolicy(OutboundQueue.OverflowPolicy.valueOf(value.toUpperCase()));
+                break;
+            case "flushLatencyMicros":
+                setFlushLatencyMicros(Long.parseLong(value));
+                break;
+            case "maxFrame":
+                setMaxFrameSize(Integer.parseInt(value));
+                break;
+            case "roomShards":
+                setRoomShards(Integer.parseInt(value));
+                break;
+            case "parallelFanOut":
+                setParallelFanOutThreshold(Integer.parseInt(value));
+                break;
+            case "fanOutPartition":
+                setFanOutPartitionSize(Integer.parseInt(value));
+                break;
+            case "logDir":
+                setLogDir(value);
+                break;
+            case "logSegmentBytes":
+                setLogSegmentBytes(Integer.parseInt(value));
+                break;
+            case "logRetentionBytes":
+                setLogRetentionBytes(Long.parseLong(value));
+                break;
+            case "durability":
+                setDurability(MessageLog.Durability.valueOf(value.toUpperCase()));
+                break;
+            case "roomDurability":
+                setRoomDurability(value);
+                break;
+            case "commitMillis":
+                setCommitMillis(Long.parseLong(value));
+                break;
+            case "commitBytes":
+                setCommitBytes(Integer.parseInt(value));
+                break;
+            case "historyMax":
+                setHistoryMax(Integer.parseInt(value));
+                break;
+            case "historyBatch":
+                setHistoryBatch(Integer.parseInt(value));
+                break;
+            case "recentBudgetBytes":
+                setRecentBudgetBytes(Long.parseLong(value));
+                break;
+            case "recentRoomBytes":
+                setRecentRoomBytes(Integer.parseInt(value));
+                break;
+            case "recentMessages":
+                setRecentMessages(Integer.parseInt(value));
+                break;
+            case "eventLevel":
+                setEventLevel(EventLog.Level.valueOf(value.toUpperCase()));
+                break;
+            case "eventLogFile":
+                setEventLogFile(value);
+                break;
+            case "eventSample":
+                setEventSampling(value);
+                break;
+            case "mailDir":
+                setMailDir(value);
+                break;
+            case "mailboxQuota":
+                setMailboxQuota(Integer.parseInt(value));
+                break;
+            case "mailboxTtlSeconds":
+                setMailboxTtlSeconds(Long.parseLong(value));
+                break;
+            case "snapshotDir":
+                setSnapshotDir(value);
+                break;
+            case "snapshotSeconds":
+                setSnapshotSeconds(Long.parseLong(value));
+                break;
+            default:
+                System.out.println("Ignoring unknown option: --" + key);
+                break;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * CoalescingWriter gathers frames in a buffer of one TLS record
+ * (16 KB of plaintext) and only writes to the socket when the buffer
+ * is full or flush() is called. Many small chat messages then share a
+ * single TLS record and a single syscall instead of one each.
+ *
+ * Not thread-safe: used only by the connection's writer thread.
+ */
+public class CoalescingWriter {
+
+    /** Maximum TLS record plaintext size. */
+    public static final int RECORD_SIZE = 16 * 1024;
+
+    private final OutputStream out;
+    private final WriteStats stats;
+    private final byte[] buffer = new byte[RECORD_SIZE];
+    private int count;
+
+    public CoalescingWriter(OutputStream out, WriteStats stats) {
+        this.out = out;
+        this.stats = stats;
+    }
+
+    /**
+     * Append one frame; full records are written as they fill up.
+     */
+    public void write(EncodedFrame frame) throws IOException {
+        byte[] bytes = frame.array();
+        int off = 0;
+        int len = bytes.length;
+        while (len > 0) {
+            int n = Math.min(len, RECORD_SIZE - count);
+            System.arraycopy(bytes, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == RECORD_SIZE) {
+                writeBuffer();
+            }
+        }
+        stats.messageWritten();
+    }
+
+    /**
+     * True if some bytes are waiting for flush().
+     */
+    public boolean hasPending() {
+        return count > 0;
+    }
+
+    /**
+     * Write the buffered bytes as one record and flush the stream.
+     */
+    public void flush() throws IOException {
+        if (count > 0) {
+            writeBuffer();
+        }
+        out.flush();
+    }
+
+    private void writeBuffer() throws IOException {
+        out.write(buffer, 0, count);
+        stats.recordWritten(count);
+        count = 0;
+    }
+}
@@ -0,0 +1,91 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CommitStats counts the group commits of a MessageLog and keeps two
+ * latency histograms:
+ * - force : how long each commit (one msync of the dirty range) took
+ * - durable : from append() to the commit that made the record durable,
+ *   for records whose room asked for a commit
+ *
+ * Histograms have one bucket per power of two microseconds (bucket i
+ * counts latencies in [2^(i-1), 2^i) us), so a percentile is exact to
+ * within a factor of two. Written by the appender thread only, read by
+ * anyone.
+ */
+public class CommitStats {
+
+    private static final int BUCKETS = 40;
+
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder committedBytes = new LongAdder();
+    private final AtomicLongArray forceMicros = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray durableMicros = new AtomicLongArray(BUCKETS);
+
+    void commitDone(long bytes, long nanos) {
+        commits.increment();
+        committedBytes.add(bytes);
+        record(forceMicros, nanos);
+    }
+
+    void recordDurable(long nanos) {
+        record(durableMicros, nanos);
+    }
+
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    public long getCommittedBytes() {
+        return committedBytes.sum();
+    }
+
+    /**
+     * Upper bound (us) of the commit time below which a fraction q
+     * (0..1) of commits finished.
+     */
+    public long forcePercentileMicros(double q) {
+        return percentile(forceMicros, q);
+    }
+
+    /**
+     * Same for the append-to-durable latency.
+     */
+    public long durablePercentileMicros(double q) {
+        return percentile(durableMicros, q);
+    }
+
+    private static void record(AtomicLongArray histogram, long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        histogram.incrementAndGet(bucket);
+    }
+
+    private static long percentile(AtomicLongArray histogram, double q) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += histogram.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram.get(i);
+            if (seen >= rank && seen > 0) {
+                return 1L << i; // bucket upper bound
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("commits=%d bytes=%d forceUs p50=%d p99=%d durableUs p50=%d p99=%d",
+                getCommits(), getCommittedBytes(),
+                forcePercentileMicros(0.5), forcePercentileMicros(0.99),
+                durablePercentileMicros(0.5), durablePercentileMicros(0.99));
+    }
+}
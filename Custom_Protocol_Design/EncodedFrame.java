@@ -0,0 +1,48 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * EncodedFrame is a message already serialized to its wire form:
+ * [4-byte int length][body bytes].
+ *
+ * It is immutable, so one frame can be queued on many connections:
+ * a room broadcast encodes the message once and every recipient
+ * writes the same bytes.
+ */
+public final class EncodedFrame {
+
+    private final byte[] bytes;
+
+    public EncodedFrame(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Total size on the wire (header + body).
+     */
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * The frame bytes; callers must not modify them.
+     */
+    byte[] array() {
+        return bytes;
+    }
+
+    /**
+     * New read-only view on the frame; each writer gets its own position.
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * Write the whole frame (no flush).
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,298 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * EventLog is the server's structured logger: an event is a name and up
+ * to three key=value fields, written as one line
+ *   2026-01-01T12:00:00.123Z INFO user.login user=alice codec=2.0
+ * by a background "event-log" thread, to stdout or a file.
+ *
+ * - Logging never blocks and never formats on the caller's thread: the
+ *   caller claims a slot of a bounded lock-free ring (multi-producer,
+ *   single-consumer, one CAS), stores references to its arguments and
+ *   publishes it. When the ring is full the event is dropped and counted.
+ * - Slots are preallocated and reused; a call allocates nothing beyond
+ *   boxing a primitive field.
+ * - Events below the level are skipped before anything is stored;
+ *   isEnabled() lets a caller skip building an expensive field.
+ * - Sampling: an event name can be given a rate N, and then only about
+ *   one event in N of that name is kept (chosen at random per thread, so
+ *   callers share no counter).
+ * - The writer drains the ring in batches and flushes when it is empty.
+ *
+ * One instance is current at a time (configure() replaces it); the
+ * static methods log to it.
+ */
+public final class EventLog {
+
+    public enum Level {
+        DEBUG, INFO, WARN, OFF
+    }
+
+    private static final int FIELDS = 3;
+
+    private static volatile EventLog current = new EventLog(Level.INFO, null, 8192, Collections.emptyMap());
+
+    private final Level level;
+    private final Map<String, Integer> sampling; // event -> keep 1 in N
+    private final Writer out;
+    private final boolean ownsOut;
+
+    // ring: slot i is free for position p when sequences[i] == p, and
+    // holds the event of position p when sequences[i] == p + 1
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final Level[] levels;
+    private final long[] times;
+    private final String[] events;
+    private final Object[] fields; // FIELDS (key, value) pairs per slot
+    private final AtomicLong tail = new AtomicLong();
+    private long head; // writer thread only
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+    private final Thread writer;
+    private volatile boolean sleeping;
+    private volatile boolean running = true;
+
+    private EventLog(Level level, Path file, int capacity, Map<String, Integer> sampling) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.level = level;
+        this.sampling = sampling;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.levels = new Level[size];
+        this.times = new long[size];
+        this.events = new String[size];
+        this.fields = new Object[size * FIELDS * 2];
+        Writer w;
+        boolean owns = false;
+        if (file != null) {
+            try {
+                w = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                owns = true;
+            } catch (IOException e) {
+                System.out.println("Event log: cannot open " + file + ", using stdout: " + e);
+                w = stdout();
+            }
+        } else {
+            w = stdout();
+        }
+        this.out = w;
+        this.ownsOut = owns;
+        this.writer = new Thread(this::writeLoop, "event-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    private static Writer stdout() {
+        return new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    /**
+     * Replace the current logger; events already logged are still written.
+     *
+     * @param file     null for stdout
+     * @param sampling event name -> keep one event in N
+     */
+    public static void configure(Level level, Path file, int capacity, Map<String, Integer> sampling) {
+        EventLog previous = current;
+        current = new EventLog(level, file, capacity, new HashMap<>(sampling));
+        previous.close();
+    }
+
+    /**
+     * Write what is logged so far and stop the writer (shutdown).
+     */
+    public static void shutdown() {
+        current.close();
+    }
+
+    public static EventLog get() {
+        return current;
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(current.level) >= 0 && level != Level.OFF;
+    }
+
+    // ----- Logging -----
+
+    public static void debug(String event, String k1, Object v1) {
+        current.log(Level.DEBUG, event, k1, v1, null, null, null, null);
+    }
+
+    public static void debug(String event, String k1, Object v1, String k2, Object v2) {
+        current.log(Level.DEBUG, event, k1, v1, k2, v2, null, null);
+    }
+
+    public static void debug(String event, String k1, Object v1, String k2, Object v2, String k3, Object v3) {
+        current.log(Level.DEBUG, event, k1, v1, k2, v2, k3, v3);
+    }
+
+    public static void info(String event, String k1, Object v1) {
+        current.log(Level.INFO, event, k1, v1, null, null, null, null);
+    }
+
+    public static void info(String event, String k1, Object v1, String k2, Object v2) {
+        current.log(Level.INFO, event, k1, v1, k2, v2, null, null);
+    }
+
+    public static void info(String event, String k1, Object v1, String k2, Object v2, String k3, Object v3) {
+        current.log(Level.INFO, event, k1, v1, k2, v2, k3, v3);
+    }
+
+    public static void warn(String event, String k1, Object v1) {
+        current.log(Level.WARN, event, k1, v1, null, null, null, null);
+    }
+
+    public static void warn(String event, String k1, Object v1, String k2, Object v2) {
+        current.log(Level.WARN, event, k1, v1, k2, v2, null, null);
+    }
+
+    public static void warn(String event, String k1, Object v1, String k2, Object v2, String k3, Object v3) {
+        current.log(Level.WARN, event, k1, v1, k2, v2, k3, v3);
+    }
+
+    public void log(Level lvl, String event, String k1, Object v1, String k2, Object v2, String k3, Object v3) {
+        if (lvl.compareTo(level) < 0 || lvl == Level.OFF || !running) {
+            return;
+        }
+        Integer rate = sampling.get(event);
+        if (rate != null && rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0) {
+            sampledOut.increment();
+            return;
+        }
+        // claim a slot
+        long pos;
+        int slot;
+        while (true) {
+            pos = tail.get();
+            slot = (int) (pos & mask);
+            long seq = sequences.get(slot);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (seq < pos) {
+                dropped.increment(); // full: the writer has not freed it yet
+                return;
+            }
+            // else another producer took pos: retry with the new tail
+        }
+        levels[slot] = lvl;
+        times[slot] = System.currentTimeMillis();
+        events[slot] = event;
+        int f = slot * FIELDS * 2;
+        fields[f] = k1;
+        fields[f + 1] = v1;
+        fields[f + 2] = k2;
+        fields[f + 3] = v2;
+        fields[f + 4] = k3;
+        fields[f + 5] = v3;
+        sequences.set(slot, pos + 1); // publish
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getSampledOut() {
+        return sampledOut.sum();
+    }
+
+    // ----- Writer thread -----
+
+    private void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        StringBuilder line = new StringBuilder(256);
+        try {
+            while (true) {
+                // read before draining: what was published before close()
+                // is then seen by this pass, so an empty pass is the end
+                boolean stopping = !running;
+                int n = 0;
+                while (n < 1024 && writeNext(line)) {
+                    n++;
+                }
+                if (n > 0) {
+                    continue;
+                }
+                out.flush();
+                if (stopping) {
+                    break;
+                }
+                sleeping = true;
+                if (sequences.get((int) (head & mask)) != head + 1 && running) {
+                    LockSupport.parkNanos(50_000_000L);
+                }
+                sleeping = false;
+            }
+            if (ownsOut) {
+                out.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Event log: write failed, logging stops: " + e);
+        }
+    }
+
+    /**
+     * Write the event at head if it is published. Returns false if not.
+     */
+    private boolean writeNext(StringBuilder line) throws IOException {
+        int slot = (int) (head & mask);
+        if (sequences.get(slot) != head + 1) {
+            return false;
+        }
+        line.setLength(0);
+        line.append(Instant.ofEpochMilli(times[slot])).append(' ')
+                .append(levels[slot]).append(' ')
+                .append(events[slot]);
+        int f = slot * FIELDS * 2;
+        for (int i = 0; i < FIELDS; i++) {
+            Object key = fields[f + 2 * i];
+            if (key != null) {
+                line.append(' ').append(key).append('=').append(fields[f + 2 * i + 1]);
+            }
+            fields[f + 2 * i] = null; // do not keep the values alive
+            fields[f + 2 * i + 1] = null;
+        }
+        events[slot] = null;
+        line.append('\n');
+        out.append(line);
+        sequences.set(slot, head + mask + 1); // free for the next lap
+        head++;
+        return true;
+    }
+}
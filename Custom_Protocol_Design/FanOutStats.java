@@ -0,0 +1,60 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * FanOutStats counts room broadcasts by path (inline on the room's shard
+ * or split into parallel partitions) and how long each partition took.
+ *
+ * One instance is shared by all rooms of a server.
+ */
+public class FanOutStats {
+
+    private final LongAdder inline = new LongAdder();
+    private final LongAdder parallel = new LongAdder();
+    private final LongAdder partitions = new LongAdder();
+    private final LongAdder partitionNanos = new LongAdder();
+    private final LongAccumulator maxPartitionNanos = new LongAccumulator(Math::max, 0L);
+
+    public void inlineFanOut() {
+        inline.increment();
+    }
+
+    public void parallelFanOut() {
+        parallel.increment();
+    }
+
+    public void partitionDone(long nanos) {
+        partitions.increment();
+        partitionNanos.add(nanos);
+        maxPartitionNanos.accumulate(nanos);
+    }
+
+    public long getInlineFanOuts() {
+        return inline.sum();
+    }
+
+    public long getParallelFanOuts() {
+        return parallel.sum();
+    }
+
+    public long getPartitions() {
+        return partitions.sum();
+    }
+
+    public double averagePartitionMicros() {
+        long n = partitions.sum();
+        return n == 0 ? 0.0 : partitionNanos.sum() / 1000.0 / n;
+    }
+
+    public long maxPartitionMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxPartitionNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("inline=%d parallel=%d partitions=%d avgPartitionUs=%.1f maxPartitionUs=%d",
+                getInlineFanOuts(), getParallelFanOuts(), getPartitions(),
+                averagePartitionMicros(), maxPartitionMicros());
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * FrameDecoder cuts the [4-byte length][body] stream into frames.
+ *
+ * - The length is checked against maxFrameSize before anything is
+ *   allocated, so a client cannot make us allocate 2 GB.
+ * - One receive buffer is reused for all frames of a connection; it
+ *   only grows for a frame that needs it and shrinks back once empty.
+ * - Bytes can be pushed in any chunks (feed) for the NIO transport,
+ *   or pulled from an InputStream (readFrame) for blocking sockets.
+ *
+ * After nextFrame() / readFrame() the body is available through
+ * frameArray(), frameOffset() and frameLength() until the next call.
+ * Not thread-safe: one decoder per connection.
+ */
+public class FrameDecoder {
+
+    public static final int DEFAULT_MAX_FRAME_SIZE = 1024 * 1024;
+    private static final int INITIAL_SIZE = 4096;
+
+    private final int maxFrameSize;
+    private byte[] buf = new byte[INITIAL_SIZE];
+    private int start; // first unread byte
+    private int end;   // one past the last received byte
+
+    private int frameOffset;
+    private int frameLength;
+
+    public FrameDecoder(int maxFrameSize) {
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("maxFrameSize must be > 0: " + maxFrameSize);
+        }
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    // ----- Current frame -----
+
+    public byte[] frameArray() {
+        return buf;
+    }
+
+    public int frameOffset() {
+        return frameOffset;
+    }
+
+    public int frameLength() {
+        return frameLength;
+    }
+
+    // ----- Input -----
+
+    /**
+     * Copy as many bytes from src as fit in the buffer. Call nextFrame()
+     * until it returns false, then feed again while src has bytes left.
+     */
+    public void feed(ByteBuffer src) {
+        makeRoom();
+        int n = Math.min(src.remaining(), buf.length - end);
+        src.get(buf, end, n);
+        end += n;
+    }
+
+    /**
+     * Block until one full frame has been read from in.
+     * Throws EOFException if the stream ends, even in the middle of a frame.
+     */
+    public void readFrame(InputStream in) throws IOException {
+        while (!nextFrame()) {
+            makeRoom();
+            int n = in.read(buf, end, buf.length - end);
+            if (n < 0) {
+                throw new EOFException("Connection closed");
+            }
+            end += n;
+        }
+    }
+
+    /**
+     * Try to cut the next complete frame out of the buffered bytes.
+     */
+    public boolean nextFrame() throws IOException {
+        int available = end - start;
+        if (available < 4) {
+            return false;
+        }
+        int len = ((buf[start] & 0xFF) << 24)
+                | ((buf[start + 1] & 0xFF) << 16)
+                | ((buf[start + 2] & 0xFF) << 8)
+                | (buf[start + 3] & 0xFF);
+        if (len <= 0) {
+            throw new IOException("Invalid message length: " + len);
+        }
+        if (len > maxFrameSize) {
+            throw new IOException("Message too large: " + len + " > " + maxFrameSize);
+        }
+        if (available < 4 + len) {
+            ensureCapacity(4 + len);
+            return false;
+        }
+        frameOffset = start + 4;
+        frameLength = len;
+        start += 4 + len;
+        return true;
+    }
+
+    // ----- Buffer management -----
+
+    /**
+     * Make sure some space is free at the end, moving unread bytes to the
+     * front. Once everything is consumed an oversized buffer is dropped.
+     */
+    private void makeRoom() {
+        if (start == end) {
+            start = 0;
+            end = 0;
+            if (buf.length > INITIAL_SIZE) {
+                buf = new byte[INITIAL_SIZE];
+            }
+        } else if (end == buf.length && start > 0) {
+            compact();
+        }
+        if (end == buf.length) {
+            // only happens while a frame header is incomplete in a tiny buffer
+            ensureCapacity(buf.length * 2);
+        }
+    }
+
+    private void ensureCapacity(int needed) {
+        if (buf.length - start >= needed) {
+            return;
+        }
+        if (buf.length >= needed) {
+            compact();
+            return;
+        }
+        int size = buf.length;
+        while (size < needed) {
+            size *= 2;
+        }
+        byte[] bigger = new byte[Math.min(size, maxFrameSize + 4)];
+        System.arraycopy(buf, start, bigger, 0, end - start);
+        end -= start;
+        start = 0;
+        buf = bigger;
+    }
+
+    private void compact() {
+        System.arraycopy(buf, start, buf, 0, end - start);
+        end -= start;
+        start = 0;
+    }
+}
@@ -0,0 +1,42 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * FrameSet holds one message and its encoded frames, one per MessageCodec.
+ * Each codec is used at most once, the first time a recipient using it
+ * asks for it, so a broadcast to a room of mixed JSON / binary / CBOR
+ * clients costs one encoding per distinct codec, not one per member.
+ *
+ * Concurrent callers (shards, fan-out partitions) may race to encode the
+ * same codec; the first frame stored wins and the other is dropped. The
+ * slots are an AtomicReferenceArray, so a frame is only ever seen fully
+ * built.
+ */
+public final class FrameSet {
+
+    private final ChatMessage msg;
+    private final AtomicReferenceArray<EncodedFrame> frames =
+            new AtomicReferenceArray<>(MessageCodecs.all().size());
+
+    public FrameSet(ChatMessage msg) {
+        this.msg = msg;
+    }
+
+    public ChatMessage getMessage() {
+        return msg;
+    }
+
+    public EncodedFrame get(MessageCodec codec) {
+        int id = MessageCodecs.idOf(codec);
+        if (id >= frames.length()) {
+            return msg.encode(codec); // registered after this set was created
+        }
+        EncodedFrame frame = frames.get(id);
+        if (frame == null) {
+            frame = msg.encode(codec);
+            if (!frames.compareAndSet(id, null, frame)) {
+                frame = frames.get(id);
+            }
+        }
+        return frame;
+    }
+}
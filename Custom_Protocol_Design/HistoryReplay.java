@@ -0,0 +1,206 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HistoryReplay sends a joiner the past messages of a room, read from
+ * RecentFrames or the MessageLog, when its JOIN_ROOM_REQUEST asks for
+ * them.
+ *
+ * The request content holds one option:
+ *   last=N    the last N messages of the room
+ *   since=T   the messages logged at or after T (epoch millis)
+ *   after=S   the messages with a log sequence number > S
+ * At most maxMessages are sent, whatever N asks for.
+ *
+ * - replay() runs on the room's shard. If the room's RecentFrames ring
+ *   holds all that is asked for (last=N with at least N messages, or
+ *   since=T reaching back to T), the messages are copied from it there,
+ *   exactly those broadcast before the join, and nothing is read from
+ *   disk. Otherwise the replay covers the room's logged messages before
+ *   upTo, given by the caller: the first sequence number not yet
+ *   broadcast to the room. Logged messages are broadcast in sequence
+ *   order, so the ones before upTo were broadcast before the join and the
+ *   later ones reach the new member live. The log is read on the replay
+ *   threads, so a join with a long backlog never holds up the room's
+ *   other traffic; the read first waits (up to WRITE_WAIT_MILLIS) for the
+ *   appender to have written every record before upTo.
+ * - Without a log, the ring answers whatever it holds.
+ * - With a ServerState, a log read ends just past the room's last logged
+ *   message, and a room with nothing logged is not read at all.
+ * - Messages are sent in batches of batchSize frames by a BatchedSender,
+ *   which waits for room in the joiner's outbound queue, so a slow joiner
+ *   mostly slows its own replay (see BatchedSender for the limits).
+ * - Ordering is by timestamp, not by arrival: the member receives live
+ *   messages from the moment it joins, while the replay is still being
+ *   read and queued, so live and replayed messages may interleave on the
+ *   wire. Replayed messages keep their original timestamp, and a SERVER
+ *   message "end of history (n messages)" closes the replay; a client
+ *   that shows history in order sorts by timestamp until that marker.
+ */
+public class HistoryReplay {
+
+    /** Bound on the log scanned for the last N messages of a quiet room. */
+    private static final long MAX_SCAN_BYTES = 256L * 1024 * 1024;
+    /** Bound on the wait for the appender to catch up with a replay's end. */
+    private static final long WRITE_WAIT_MILLIS = 5000;
+
+    /**
+     * Parsed history option of a JOIN_ROOM_REQUEST.
+     */
+    public static final class Request {
+        enum Mode { LAST, SINCE, AFTER }
+
+        private final Mode mode;
+        private final long value;
+
+        private Request(Mode mode, long value) {
+            this.mode = mode;
+            this.value = value;
+        }
+
+        /**
+         * Parse a request content; null if it asks for no history.
+         */
+        public static Request parse(String content) {
+            if (content == null || content.trim().isEmpty()) {
+                return null;
+            }
+            String option = content.trim();
+            int eq = option.indexOf('=');
+            if (eq < 0 || option.indexOf(' ') >= 0) {
+                throw new IllegalArgumentException("expected last=N, since=T or after=S: " + option);
+            }
+            long value;
+            try {
+                value = Long.parseLong(option.substring(eq + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("not a number: " + option);
+            }
+            if (value < 0) {
+                throw new IllegalArgumentException("must be >= 0: " + option);
+            }
+            switch (option.substring(0, eq)) {
+                case "last":
+                    return new Request(Mode.LAST, value);
+                case "since":
+                    return new Request(Mode.SINCE, value);
+                case "after":
+                    return new Request(Mode.AFTER, value);
+                default:
+                    throw new IllegalArgumentException("unknown option: " + option);
+            }
+        }
+    }
+
+    private final MessageLog log;            // null without a log
+    private final MessageLogReader reader;   // null without a log
+    private final RecentFrames recent;       // null if disabled
+    private final ServerState state;         // null if not tracked
+    private final int maxMessages;
+    private final int batchSize;
+    private final ScheduledExecutorService executor;
+
+    public HistoryReplay(MessageLog log, RecentFrames recent, ServerState state,
+                         int maxMessages, int batchSize, int threads) {
+        this.log = log;
+        this.reader = log != null ? new MessageLogReader(log.getDirectory(), MAX_SCAN_BYTES) : null;
+        this.recent = recent;
+        this.state = state;
+        this.maxMessages = maxMessages;
+        this.batchSize = batchSize;
+        AtomicInteger n = new AtomicInteger();
+        this.executor = Executors.newScheduledThreadPool(threads, r -> {
+            Thread t = new Thread(r, "history-replay-" + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Replay the history of room (id roomId) asked for by request; the log
+     * is read up to, not including, sequence number upTo. Runs on the
+     * room's shard and returns at once.
+     */
+    public void replay(int roomId, String room, Request request, long upTo, BatchedSender.Client client) {
+        List<ChatMessage> cached = recent != null ? fromRecent(roomId, room, request) : null;
+        if (cached != null || reader == null) {
+            List<ChatMessage> messages = cached != null ? new ArrayList<>(cached) : new ArrayList<>();
+            executor.execute(() -> send(room, messages, client));
+            return;
+        }
+        executor.execute(() -> {
+            List<ChatMessage> messages = new ArrayList<>();
+            try {
+                for (MessageLogReader.Entry e : read(room, request, upTo)) {
+                    messages.add(e.getMessage());
+                }
+            } catch (IOException | RuntimeException e) {
+                EventLog.warn("history.read_failed", "room", room, "error", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return; // shutting down
+            }
+            send(room, messages, client);
+        });
+    }
+
+    private void send(String room, List<ChatMessage> messages, BatchedSender.Client client) {
+        ChatMessage done = new ChatMessage(MessageType.TEXT_MESSAGE);
+        done.setSender("SERVER");
+        done.setRoom(room);
+        done.setContent("end of history (" + messages.size() + " messages)");
+        messages.add(done);
+        new BatchedSender(executor, messages, batchSize, client, "History replay of " + room, null, null).run();
+    }
+
+    /**
+     * The answer from the room's ring, or null if only the log has it.
+     */
+    private List<ChatMessage> fromRecent(int roomId, String room, Request request) {
+        int max = (int) Math.min(request.value, maxMessages);
+        switch (request.mode) {
+            case LAST:
+                return reader == null || recent.count(roomId, room) >= max
+                        ? recent.last(roomId, room, max)
+                        : null;
+            case SINCE:
+                List<ChatMessage> since = recent.since(roomId, room, request.value, maxMessages);
+                return since != null || reader != null ? since : recent.last(roomId, room, maxMessages);
+            default:
+                return reader == null ? List.of() : null; // the ring has no sequence numbers
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private List<MessageLogReader.Entry> read(String room, Request request, long upTo)
+            throws IOException, InterruptedException {
+        if (!log.awaitWritten(upTo - 1, WRITE_WAIT_MILLIS)) {
+            EventLog.warn("history.log_behind", "room", room, "upTo", upTo, "written", log.getNextSequence());
+        }
+        if (state != null) {
+            // messages before upTo were written, so the stats count them
+            // (see MessageLog.Listener)
+            ServerState.RoomStats stats = state.room(room);
+            if (stats == null) {
+                return List.of();
+            }
+            upTo = Math.min(upTo, stats.getLastSequence() + 1);
+        }
+        int max = (int) Math.min(request.value, maxMessages);
+        switch (request.mode) {
+            case LAST:
+                return reader.readLast(room, max, upTo);
+            case SINCE:
+                return reader.readSince(room, request.value, upTo, maxMessages);
+            default:
+                return reader.readAfter(room, request.value, upTo, maxMessages);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+import java.util.Arrays;
+
+/**
+ * IntIntMap is an open-addressing hash map from int to int, so lookups
+ * on the hot paths never box.
+ *
+ * - Keys must be >= 0; get() and remove() return -1 for a missing key,
+ *   so values are usually >= 0 too (indexes, ids).
+ * - Linear probing with backward-shift deletion: no tombstones, so a map
+ *   with heavy join/leave churn does not degrade.
+ * - Not thread-safe.
+ */
+public class IntIntMap {
+
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    public IntIntMap() {
+        this(8);
+    }
+
+    public IntIntMap(int expectedSize) {
+        int capacity = 8;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int key) {
+        int i = slotOf(key);
+        return i >= 0 ? values[i] : -1;
+    }
+
+    public boolean containsKey(int key) {
+        return slotOf(key) >= 0;
+    }
+
+    /**
+     * Associate value with key; returns the previous value or -1.
+     */
+    public int put(int key, int value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("key must be >= 0: " + key);
+        }
+        int i = index(key);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                int old = values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > keys.length * 3 / 4) {
+            rehash(keys.length << 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Remove key; returns its value or -1.
+     */
+    public int remove(int key) {
+        int i = slotOf(key);
+        if (i < 0) {
+            return -1;
+        }
+        int old = values[i];
+        // shift back the following entries that may no longer be found
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            int k = keys[j];
+            if (k == EMPTY) {
+                break;
+            }
+            int home = index(k);
+            boolean stays = i < j ? (home > i && home <= j) : (home > i || home <= j);
+            if (!stays) {
+                keys[i] = k;
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = EMPTY;
+        size--;
+        return old;
+    }
+
+    private int slotOf(int key) {
+        if (key < 0) {
+            return -1;
+        }
+        for (int i = index(key); ; i = (i + 1) & mask) {
+            int k = keys[i];
+            if (k == key) {
+                return i;
+            }
+            if (k == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    private int index(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            int k = oldKeys[i];
+            if (k != EMPTY) {
+                int j = index(k);
+                while (keys[j] != EMPTY) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = k;
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.Arrays;
+
+/**
+ * IntSet is a compact set of non-negative ints: the values sit in a dense
+ * int[] (cheap to scan) and an IntIntMap gives each value's position.
+ *
+ * - add, remove and contains are O(1); remove moves the last value into
+ *   the hole, so iteration order is not stable across removals.
+ * - The array shrinks again once mostly empty.
+ * - Not thread-safe.
+ */
+public class IntSet {
+
+    private int[] values;
+    private final IntIntMap positions;
+    private int size;
+
+    public IntSet() {
+        this(4);
+    }
+
+    public IntSet(int expectedSize) {
+        this.values = new int[Math.max(4, expectedSize)];
+        this.positions = new IntIntMap(expectedSize);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Value at index i, 0 <= i < size().
+     */
+    public int get(int i) {
+        return values[i];
+    }
+
+    public boolean contains(int value) {
+        return positions.containsKey(value);
+    }
+
+    public boolean add(int value) {
+        if (positions.containsKey(value)) {
+            return false;
+        }
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size] = value;
+        positions.put(value, size);
+        size++;
+        return true;
+    }
+
+    public boolean remove(int value) {
+        int pos = positions.remove(value);
+        if (pos < 0) {
+            return false;
+        }
+        int last = --size;
+        if (pos != last) {
+            int moved = values[last];
+            values[pos] = moved;
+            positions.put(moved, pos);
+        }
+        if (values.length > 16 && size < values.length / 4) {
+            values = Arrays.copyOf(values, values.length / 2);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,730 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * JsonCodec reads and writes the JSON body of a ChatMessage in one pass,
+ * directly on UTF-8 bytes.
+ *
+ * - Encoding writes into a ByteWriter, escaping quotes, backslashes and
+ *   control characters, and encoding UTF-16 (surrogate pairs included)
+ *   to UTF-8 by hand; no intermediate String or StringBuilder.
+ * - Decoding walks the byte[] once: field names are matched as bytes,
+ *   the timestamp is parsed as digits, and only the field values become
+ *   Strings. Escapes (\" \\ \/ \b \f \n \r \t \\uXXXX) are handled, so
+ *   commas, colons and quotes in the content are safe.
+ * - Unknown fields (any JSON value) are skipped.
+ * - decodeHeader() keeps the content escaped (RawContent) and
+ *   encodeBody() writes RawContent back verbatim, so routed messages
+ *   are forwarded without touching their text.
+ *
+ * Malformed input raises IllegalArgumentException.
+ * Use the shared instance MessageCodecs.JSON.
+ */
+public final class JsonCodec implements MessageCodec {
+
+    public static final String VERSION = "1.0";
+
+    private static final byte[] TYPE = ascii("type");
+    private static final byte[] VERSION_KEY = ascii("version");
+    private static final byte[] TIMESTAMP = ascii("timestamp");
+    private static final byte[] SENDER = ascii("sender");
+    private static final byte[] RECIPIENT = ascii("recipient");
+    private static final byte[] ROOM = ascii("room");
+    private static final byte[] CONTENT = ascii("content");
+
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final byte[][] TYPE_NAMES = new byte[TYPES.length][];
+
+    static {
+        for (int i = 0; i < TYPES.length; i++) {
+            TYPE_NAMES[i] = ascii(TYPES[i].name());
+        }
+    }
+
+    private static final byte[] HEX = ascii("0123456789abcdef");
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // ----- MessageCodec -----
+
+    @Override
+    public String getName() {
+        return "json";
+    }
+
+    @Override
+    public String getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public boolean accepts(byte firstByte) {
+        return firstByte == '{' || firstByte == ' ' || firstByte == '\n'
+                || firstByte == '\r' || firstByte == '\t';
+    }
+
+    // ----- Encoding -----
+
+    /**
+     * Append the JSON body of msg to out.
+     */
+    @Override
+    public void encodeBody(ChatMessage msg, ByteWriter out) {
+        out.write('{');
+        out.writeAscii("\"type\":\"");
+        out.writeAscii(msg.getType().name());
+        out.writeAscii("\",\"version\":");
+        writeString(out, msg.getVersion());
+        out.writeAscii(",\"timestamp\":");
+        out.writeAscii(Long.toString(msg.getTimestamp()));
+        if (msg.getSender() != null) {
+            out.writeAscii(",\"sender\":");
+            writeString(out, msg.getSender());
+        }
+        if (msg.getRecipient() != null) {
+            out.writeAscii(",\"recipient\":");
+            writeString(out, msg.getRecipient());
+        }
+        if (msg.getRoom() != null) {
+            out.writeAscii(",\"room\":");
+            writeString(out, msg.getRoom());
+        }
+        if (msg.getRawContent() != null) {
+            // pass-through: forwarded content is never decoded
+            out.writeAscii(",\"content\":\"");
+            out.write(msg.getRawContent().jsonEscaped());
+            out.write('"');
+        } else if (msg.getContent() != null) {
+            out.writeAscii(",\"content\":");
+            writeString(out, msg.getContent());
+        }
+        out.write('}');
+    }
+
+    /**
+     * Write s as a quoted, escaped JSON string in UTF-8 (null as null).
+     * Runs of ASCII that need no escape are copied in one go.
+     */
+    public static void writeString(ByteWriter out, String s) {
+        if (s == null) {
+            out.writeAscii("null");
+            return;
+        }
+        out.write('"');
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            int run = i;
+            while (run < len && isPlainAscii(s.charAt(run))) {
+                run++;
+            }
+            if (run > i) {
+                out.writeAscii(s, i, run);
+                if (run == len) {
+                    break;
+                }
+                i = run;
+            }
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c < 0x20 || c == '"' || c == '\\') {
+                    writeEscapedAscii(out, c);
+                } else {
+                    out.write(c);
+                }
+            } else if (c < 0x800) {
+                out.write(0xC0 | (c >> 6));
+                out.write(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.write(0xF0 | (cp >> 18));
+                out.write(0x80 | ((cp >> 12) & 0x3F));
+                out.write(0x80 | ((cp >> 6) & 0x3F));
+                out.write(0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                out.write('?'); // lone surrogate, same as String.getBytes
+            } else {
+                out.write(0xE0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3F));
+                out.write(0x80 | (c & 0x3F));
+            }
+        }
+        out.write('"');
+    }
+
+    private static boolean isPlainAscii(char c) {
+        return c >= 0x20 && c < 0x80 && c != '"' && c != '\\';
+    }
+
+    /**
+     * Write an ASCII character that must be escaped.
+     */
+    private static void writeEscapedAscii(ByteWriter out, char c) {
+        out.write('\\');
+        switch (c) {
+            case '"':
+                out.write('"');
+                break;
+            case '\\':
+                out.write('\\');
+                break;
+            case '\n':
+                out.write('n');
+                break;
+            case '\r':
+                out.write('r');
+                break;
+            case '\t':
+                out.write('t');
+                break;
+            case '\b':
+                out.write('b');
+                break;
+            case '\f':
+                out.write('f');
+                break;
+            default:
+                out.writeAscii("u00");
+                out.write(HEX[c >> 4]);
+                out.write(HEX[c & 0xF]);
+                break;
+        }
+    }
+
+    // ----- Decoding -----
+
+    /**
+     * Decode a JSON body held in buf[offset, offset + length).
+     */
+    @Override
+    public ChatMessage decode(byte[] buf, int offset, int length) {
+        return new Parser(buf, offset, offset + length).parseMessage(false);
+    }
+
+    /**
+     * Routing header: every field but the content is parsed; the content
+     * string is validated and kept escaped as RawContent.
+     */
+    @Override
+    public ChatMessage decodeHeader(byte[] buf, int offset, int length) {
+        return new Parser(buf, offset, offset + length).parseMessage(true);
+    }
+
+    /**
+     * Decode the body of a JSON string (no surrounding quotes).
+     */
+    static String unescape(byte[] body) {
+        Parser p = new Parser(body, 0, body.length);
+        p.untilEnd = true;
+        return p.parseStringBody();
+    }
+
+    /**
+     * Escape plain UTF-8 bytes as the body of a JSON string. Bytes of
+     * multi-byte sequences are >= 0x80 and never need escaping, so this
+     * works byte by byte without decoding.
+     */
+    static byte[] escapeUtf8(byte[] utf8) {
+        ByteWriter out = new ByteWriter(utf8.length + 16);
+        writeEscapedUtf8(out, utf8);
+        return out.toByteArray();
+    }
+
+    private static void writeEscapedUtf8(ByteWriter out, byte[] utf8) {
+        for (byte b : utf8) {
+            if (b < 0x20 && b >= 0 || b == '"' || b == '\\') {
+                writeEscapedAscii(out, (char) b);
+            } else {
+                out.write(b);
+            }
+        }
+    }
+
+    /** Largest decode scratch buffer a thread keeps between messages. */
+    private static final int SCRATCH_KEEP = 8192;
+    private static final ThreadLocal<char[]> SCRATCH = ThreadLocal.withInitial(() -> new char[256]);
+
+    private static final class Parser {
+        private final byte[] buf;
+        private final int end;
+        private int pos;
+        private boolean untilEnd; // string body runs to end, no closing quote
+
+        Parser(byte[] buf, int start, int end) {
+            this.buf = buf;
+            this.pos = start;
+            this.end = end;
+        }
+
+        ChatMessage parseMessage(boolean rawContent) {
+            MessageType type = null;
+            String version = "1.0";
+            long timestamp = System.currentTimeMillis();
+            String sender = null;
+            String recipient = null;
+            String room = null;
+            String content = null;
+            RawContent raw = null;
+
+            skipWhitespace();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+            } else {
+                while (true) {
+                    skipWhitespace();
+                    expect('"');
+                    int keyStart = pos;
+                    int keyEnd = skipStringBody();
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+
+                    if (keyIs(keyStart, keyEnd, TYPE)) {
+                        type = parseType();
+                    } else if (keyIs(keyStart, keyEnd, VERSION_KEY)) {
+                        version = parseNullableString();
+                    } else if (keyIs(keyStart, keyEnd, TIMESTAMP)) {
+                        if (peek() == '-' || isDigit(peek())) {
+                            timestamp = parseLong();
+                        } else {
+                            skipValue();
+                        }
+                    } else if (keyIs(keyStart, keyEnd, SENDER)) {
+                        sender = parseNullableString();
+                    } else if (keyIs(keyStart, keyEnd, RECIPIENT)) {
+                        recipient = parseNullableString();
+                    } else if (keyIs(keyStart, keyEnd, ROOM)) {
+                        room = parseNullableString();
+                    } else if (keyIs(keyStart, keyEnd, CONTENT)) {
+                        if (rawContent && peek() == '"') {
+                            raw = parseRawString();
+                        } else {
+                            content = parseNullableString();
+                        }
+                    } else {
+                        skipValue();
+                    }
+
+                    skipWhitespace();
+                    byte b = next();
+                    if (b == '}') {
+                        break;
+                    }
+                    if (b != ',') {
+                        throw error("expected ',' or '}'");
+                    }
+                }
+            }
+
+            if (type == null) {
+                throw new IllegalArgumentException("Missing message type in JSON");
+            }
+
+            ChatMessage msg = new ChatMessage(type);
+            msg.setVersion(version);
+            msg.setTimestamp(timestamp);
+            msg.setSender(sender);
+            msg.setRecipient(recipient);
+            msg.setRoom(room);
+            if (raw != null) {
+                msg.setRawContent(raw);
+            } else {
+                msg.setContent(content);
+            }
+            return msg;
+        }
+
+        // ----- values -----
+
+        /**
+         * Copy a string body out as RawContent without decoding it.
+         * Escapes are validated so the bytes can be forwarded verbatim.
+         */
+        private RawContent parseRawString() {
+            expect('"');
+            int start = pos;
+            while (pos < end) {
+                byte b = buf[pos];
+                if (b == '"') {
+                    byte[] bytes = Arrays.copyOfRange(buf, start, pos);
+                    pos++;
+                    return new RawContent(bytes, true);
+                }
+                if (b >= 0 && b < 0x20) {
+                    throw error("control character in string");
+                }
+                if (b == '\\') {
+                    if (pos + 1 >= end) {
+                        break;
+                    }
+                    byte e = buf[pos + 1];
+                    if (e == 'u') {
+                        pos += 2;
+                        parseHex4();
+                        continue;
+                    }
+                    if ("\"\\/bfnrt".indexOf(e) < 0) {
+                        throw error("invalid escape \\" + (char) e);
+                    }
+                    pos += 2;
+                    continue;
+                }
+                pos++;
+            }
+            throw error("unterminated string");
+        }
+
+        private MessageType parseType() {
+            expect('"');
+            int start = pos;
+            int stop = skipStringBody();
+            for (int i = 0; i < TYPE_NAMES.length; i++) {
+                if (keyIs(start, stop, TYPE_NAMES[i])) {
+                    return TYPES[i];
+                }
+            }
+            throw new IllegalArgumentException("Unknown message type: "
+                    + new String(buf, start, stop - start, StandardCharsets.UTF_8));
+        }
+
+        private String parseNullableString() {
+            if (peek() == 'n') {
+                expectLiteral("null");
+                return null;
+            }
+            expect('"');
+            return parseStringBody();
+        }
+
+        /**
+         * Read a string after its opening quote. Strings without escapes
+         * are decoded straight from the byte range.
+         */
+        private String parseStringBody() {
+            int start = pos;
+            while (pos < end) {
+                byte b = buf[pos];
+                if (b == '"' && !untilEnd) {
+                    String s = new String(buf, start, pos - start, StandardCharsets.UTF_8);
+                    pos++;
+                    return s;
+                }
+                if (b == '\\') {
+                    return parseEscapedString(start);
+                }
+                pos++;
+            }
+            if (untilEnd) {
+                return new String(buf, start, pos - start, StandardCharsets.UTF_8);
+            }
+            throw error("unterminated string");
+        }
+
+        /**
+         * Slow path: decode UTF-8 and escapes by hand into the thread's
+         * scratch buffer, sized to the string (one char per byte at most).
+         */
+        private String parseEscapedString(int start) {
+            int stop = untilEnd ? end : skipStringBody();
+            char[] chars = SCRATCH.get();
+            if (chars.length < stop - start) {
+                chars = new char[stop - start];
+                if (chars.length <= SCRATCH_KEEP) {
+                    SCRATCH.set(chars);
+                }
+            }
+            int n = 0;
+            pos = start;
+            while (pos < end) {
+                int b = buf[pos++] & 0xFF;
+                if (b == '"' && !untilEnd) {
+                    return new String(chars, 0, n);
+                }
+                if (b == '\\') {
+                    if (pos >= end) {
+                        break;
+                    }
+                    byte e = buf[pos++];
+                    switch (e) {
+                        case '"':
+                            chars[n++] = '"';
+                            break;
+                        case '\\':
+                            chars[n++] = '\\';
+                            break;
+                        case '/':
+                            chars[n++] = '/';
+                            break;
+                        case 'b':
+                            chars[n++] = '\b';
+                            break;
+                        case 'f':
+                            chars[n++] = '\f';
+                            break;
+                        case 'n':
+                            chars[n++] = '\n';
+                            break;
+                        case 'r':
+                            chars[n++] = '\r';
+                            break;
+                        case 't':
+                            chars[n++] = '\t';
+                            break;
+                        case 'u':
+                            chars[n++] = parseHex4();
+                            break;
+                        default:
+                            throw error("invalid escape \\" + (char) e);
+                    }
+                } else if (b < 0x80) {
+                    chars[n++] = (char) b;
+                } else {
+                    n = decodeMultiByte(b, chars, n);
+                }
+            }
+            if (untilEnd) {
+                return new String(chars, 0, n);
+            }
+            throw error("unterminated string");
+        }
+
+        /**
+         * Decode one UTF-8 sequence whose lead byte b1 was just read.
+         * Invalid input becomes U+FFFD exactly as new String(bytes, UTF_8)
+         * does it: overlong forms, surrogates (ED A0..BF) and code points
+         * above U+10FFFF are rejected, and one U+FFFD replaces the longest
+         * valid prefix of a broken sequence (or the lone bad byte). The
+         * quote and backslash are never continuation bytes, so a sequence
+         * cut by the end of the string is replaced the same way.
+         */
+        private int decodeMultiByte(int b1, char[] chars, int n) {
+            if (b1 >= 0xC2 && b1 <= 0xDF) {
+                int b2 = byteAt(pos);
+                if (!isContinuation(b2)) {
+                    chars[n++] = '\uFFFD';
+                    return n;
+                }
+                pos++;
+                chars[n++] = (char) (((b1 & 0x1F) << 6) | (b2 & 0x3F));
+                return n;
+            }
+            if (b1 >= 0xE0 && b1 <= 0xEF) {
+                int b2 = byteAt(pos);
+                int b3 = byteAt(pos + 1);
+                if ((b1 == 0xE0 && b2 < 0xA0) || !isContinuation(b2)) {
+                    chars[n++] = '\uFFFD'; // overlong, or a bad second byte
+                    return n;
+                }
+                if (!isContinuation(b3)) {
+                    pos++;
+                    chars[n++] = '\uFFFD';
+                    return n;
+                }
+                pos += 2;
+                char c = (char) (((b1 & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+                chars[n++] = Character.isSurrogate(c) ? '\uFFFD' : c;
+                return n;
+            }
+            if (b1 >= 0xF0 && b1 <= 0xF4) {
+                int b2 = byteAt(pos);
+                int b3 = byteAt(pos + 1);
+                int b4 = byteAt(pos + 2);
+                if ((b1 == 0xF0 && b2 < 0x90) || (b1 == 0xF4 && b2 > 0x8F) || !isContinuation(b2)) {
+                    chars[n++] = '\uFFFD'; // overlong, above U+10FFFF, or a bad second byte
+                    return n;
+                }
+                if (!isContinuation(b3) || !isContinuation(b4)) {
+                    pos += isContinuation(b3) ? 2 : 1;
+                    chars[n++] = '\uFFFD';
+                    return n;
+                }
+                pos += 3;
+                int cp = ((b1 & 0x07) << 18) | ((b2 & 0x3F) << 12) | ((b3 & 0x3F) << 6) | (b4 & 0x3F);
+                chars[n++] = Character.highSurrogate(cp);
+                chars[n++] = Character.lowSurrogate(cp);
+                return n;
+            }
+            chars[n++] = '\uFFFD'; // a continuation byte, C0, C1 or F5..FF
+            return n;
+        }
+
+        private int byteAt(int i) {
+            return i < end ? buf[i] & 0xFF : -1;
+        }
+
+        private static boolean isContinuation(int b) {
+            return (b & 0xC0) == 0x80;
+        }
+
+        private char parseHex4() {
+            if (pos + 4 > end) {
+                throw error("truncated \\u escape");
+            }
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                int d = Character.digit(buf[pos++], 16);
+                if (d < 0) {
+                    throw error("invalid \\u escape");
+                }
+                v = (v << 4) | d;
+            }
+            return (char) v;
+        }
+
+        private long parseLong() {
+            boolean negative = false;
+            if (peek() == '-') {
+                negative = true;
+                pos++;
+            }
+            int start = pos;
+            long v = 0; // negated while parsed, so that Long.MIN_VALUE fits
+            while (pos < end && isDigit(buf[pos])) {
+                int d = buf[pos++] - '0';
+                if (v < (Long.MIN_VALUE + d) / 10) {
+                    throw error("number out of range");
+                }
+                v = v * 10 - d;
+            }
+            if (pos == start) {
+                throw error("invalid number");
+            }
+            if (!negative) {
+                if (v == Long.MIN_VALUE) {
+                    throw error("number out of range");
+                }
+                return -v;
+            }
+            return v;
+        }
+
+        // ----- skipping -----
+
+        /**
+         * Skip a string body after its opening quote; returns the index of
+         * the closing quote (the string ends there).
+         */
+        private int skipStringBody() {
+            while (pos < end) {
+                byte b = buf[pos];
+                if (b == '"') {
+                    return pos++;
+                }
+                pos += (b == '\\') ? 2 : 1;
+            }
+            throw error("unterminated string");
+        }
+
+        private void skipValue() {
+            byte b = peek();
+            switch (b) {
+                case '"':
+                    pos++;
+                    skipStringBody();
+                    break;
+                case '{':
+                case '[':
+                    skipContainer();
+                    break;
+                case 't':
+                    expectLiteral("true");
+                    break;
+                case 'f':
+                    expectLiteral("false");
+                    break;
+                case 'n':
+                    expectLiteral("null");
+                    break;
+                default:
+                    int start = pos;
+                    while (pos < end && "+-.eE0123456789".indexOf(buf[pos]) >= 0) {
+                        pos++;
+                    }
+                    if (pos == start) {
+                        throw error("unexpected character '" + (char) b + "'");
+                    }
+                    break;
+            }
+        }
+
+        private void skipContainer() {
+            int depth = 0;
+            while (pos < end) {
+                byte b = buf[pos++];
+                if (b == '"') {
+                    skipStringBody();
+                } else if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    if (--depth == 0) {
+                        return;
+                    }
+                }
+            }
+            throw error("unterminated object or array");
+        }
+
+        // ----- low level -----
+
+        private boolean keyIs(int start, int stop, byte[] key) {
+            int len = stop - start;
+            if (len != key.length) {
+                return false;
+            }
+            for (int i = 0; i < len; i++) {
+                if (buf[start + i] != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void skipWhitespace() {
+            while (pos < end) {
+                byte b = buf[pos];
+                if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                    return;
+                }
+                pos++;
+            }
+        }
+
+        private byte peek() {
+            if (pos >= end) {
+                throw error("unexpected end of input");
+            }
+            return buf[pos];
+        }
+
+        private byte next() {
+            byte b = peek();
+            pos++;
+            return b;
+        }
+
+        private void expect(char c) {
+            if (next() != c) {
+                pos--;
+                throw error("expected '" + c + "'");
+            }
+        }
+
+        private void expectLiteral(String literal) {
+            for (int i = 0; i < literal.length(); i++) {
+                expect(literal.charAt(i));
+            }
+        }
+
+        private boolean isDigit(byte b) {
+            return b >= '0' && b <= '9';
+        }
+
+        private IllegalArgumentException error(String what) {
+            return new IllegalArgumentException("Malformed JSON at byte " + pos + ": " + what);
+        }
+    }
+}
@@ -0,0 +1,518 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * Mailbox keeps PRIVATE_MESSAGE frames for users who are not connected
+ * and hands them over at their next login.
+ *
+ * - One pair of append-only files per user, named after the hex of the
+ *   UTF-8 username:
+ *     <user>.box : records [4 length][4 CRC32][8 timestamp][body], the
+ *                  body being the message in the binary codec
+ *     <user>.idx : [8 delivered count], then [8 offset][8 timestamp] per
+ *                  record of the .box
+ *   The index alone tells how many messages are pending and how old they
+ *   are, so quotas and expiry never read the messages themselves.
+ *     <user>.bad : records a drain could not read (bad length or CRC),
+ *                  copied as found: [8 offset in the .box][4 n][n bytes].
+ *                  They are logged, never delivered, and kept when the
+ *                  mailbox is compacted or removed.
+ * - All file work runs on one "mailbox" thread, in submission order: a
+ *   sender only does an in-memory quota check, and a store always comes
+ *   before a drain submitted after it.
+ * - A store is forced to disk (box, then index) before its onStored
+ *   runs; a new file's directory entry is forced too. Compaction forces
+ *   the new files before renaming them over the old ones, then the
+ *   directory. shutdown() lets queued stores finish.
+ * - At most quota messages are pending per user; a store above it is
+ *   refused and the sender is told.
+ * - deliver() reads the pending messages and queues them with a
+ *   BatchedSender; they are marked delivered (and the files removed) once
+ *   all are queued. A connection lost halfway leaves them pending.
+ * - Every cleanupMillis the cleaner drops messages older than the TTL and
+ *   compacts files whose delivered part is larger than what is left.
+ */
+public class Mailbox {
+
+    private static final int HEADER = 8;
+    private static final int INDEX_ENTRY = 16;
+
+    private final Path dir;
+    private final int quota;
+    private final long ttlMillis;
+    private final int batchSize;
+    private final ScheduledExecutorService executor;
+    // username -> pending messages, for the quota (reserved by senders,
+    // released by the mailbox thread)
+    private final ConcurrentHashMap<String, Integer> pending = new ConcurrentHashMap<>();
+    // username -> client a drain is streaming to (mailbox thread only)
+    private final Map<String, BatchedSender.Client> draining = new HashMap<>();
+    private final CRC32 crc = new CRC32();              // mailbox thread only
+    private final ByteWriter body = new ByteWriter(1024);
+
+    public Mailbox(Path dir, int quota, long ttlMillis, int batchSize) throws IOException {
+        this.dir = dir;
+        this.quota = quota;
+        this.ttlMillis = ttlMillis;
+        this.batchSize = batchSize;
+        Files.createDirectories(dir);
+        load();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "mailbox");
+            t.setDaemon(true);
+            return t;
+        });
+        // at shutdown, stores finish; paced drains stop (left pending)
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = executor;
+        long cleanupMillis = Math.max(1000, Math.min(ttlMillis / 4, 60_000));
+        executor.scheduleWithFixedDelay(this::cleanup, cleanupMillis, cleanupMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Messages waiting for user.
+     */
+    public int getPending(String user) {
+        return pending.getOrDefault(user, 0);
+    }
+
+    /**
+     * Keep msg for its recipient. Returns false (and keeps nothing) if the
+     * recipient's mailbox is full. Otherwise, on the mailbox thread,
+     * onStored runs once the message is on disk, or onFailed if it could
+     * not be written; then, if online() finds the recipient, it is
+     * delivered at once.
+     */
+    public boolean store(ChatMessage msg, Function<String, BatchedSender.Client> online,
+                         Runnable onStored, Runnable onFailed) {
+        String user = msg.getRecipient();
+        boolean[] reserved = {false};
+        pending.compute(user, (k, n) -> {
+            int count = n == null ? 0 : n;
+            if (count >= quota) {
+                return n;
+            }
+            reserved[0] = true;
+            return count + 1;
+        });
+        if (!reserved[0]) {
+            return false;
+        }
+        executor.execute(() -> {
+            try {
+                append(user, msg);
+            } catch (IOException e) {
+                EventLog.warn("mailbox.store_failed", "user", user, "error", e);
+                release(user, 1);
+                onFailed.run();
+                return;
+            }
+            onStored.run();
+            // the recipient may have logged in since the sender looked
+            BatchedSender.Client client = online.apply(user);
+            if (client != null) {
+                drain(user, client);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Send user's pending messages to client (after its LOGIN_RESPONSE).
+     */
+    public void deliver(String user, BatchedSender.Client client) {
+        if (getPending(user) > 0) {
+            executor.execute(() -> drain(user, client));
+        }
+    }
+
+    /**
+     * Finish the queued stores (for up to 10 seconds) and stop.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                EventLog.warn("mailbox.shutdown_timeout", "dir", dir);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ----- Mailbox thread -----
+
+    private void append(String user, ChatMessage msg) throws IOException {
+        body.reset();
+        body.writeLong(msg.getTimestamp());
+        MessageCodecs.BINARY.encodeBody(msg, body);
+        int length = body.size();
+        crc.reset();
+        crc.update(body.array(), 0, length);
+
+        ByteBuffer record = ByteBuffer.allocate(8 + length);
+        record.putInt(length).putInt((int) crc.getValue()).put(body.array(), 0, length).flip();
+        long offset;
+        try (FileChannel box = FileChannel.open(boxFile(user), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            offset = box.size();
+            while (record.hasRemaining()) {
+                box.write(record);
+            }
+            box.force(false);
+        }
+        // box first: an index never points past the end of its box
+        try (FileChannel idx = FileChannel.open(indexFile(user), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = Math.max(idx.size(), HEADER); // a new index starts with 0 delivered
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+            entry.putLong(offset).putLong(msg.getTimestamp()).flip();
+            idx.write(entry, size);
+            idx.force(false);
+        }
+        if (offset == 0) {
+            syncDirectory(); // new files
+        }
+    }
+
+    private void drain(String user, BatchedSender.Client client) {
+        if (draining.get(user) == client) {
+            return; // markDelivered() sends what was added meanwhile
+        }
+        Index index;
+        List<ChatMessage> messages = new ArrayList<>();
+        List<Integer> corrupt = new ArrayList<>(); // positions in index
+        try {
+            index = Index.read(indexFile(user));
+            if (index == null || index.pending() == 0) {
+                return;
+            }
+            try (FileChannel box = FileChannel.open(boxFile(user), StandardOpenOption.READ)) {
+                for (int i = index.delivered; i < index.count; i++) {
+                    ChatMessage msg = readRecord(box, index.offsets[i]);
+                    if (msg != null) {
+                        messages.add(msg);
+                    } else {
+                        EventLog.warn("mailbox.corrupt_record", "user", user, "offset", index.offsets[i]);
+                        corrupt.add(i);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            EventLog.warn("mailbox.read_failed", "user", user, "error", e);
+            return;
+        }
+        int upTo = index.count;
+        EventLog.info("mailbox.deliver", "user", user, "messages", messages.size());
+        draining.put(user, client);
+        new BatchedSender(executor, messages, batchSize, client, "Mailbox of " + user, () -> {
+            draining.remove(user, client);
+            // set aside before they count as delivered (and get compacted)
+            if (!corrupt.isEmpty() && !quarantine(user, index, corrupt)) {
+                return; // left pending
+            }
+            if (markDelivered(user, upTo)) {
+                drain(user, client);
+            }
+        }, () -> draining.remove(user, client)).run(); // undelivered: kept for the next login
+    }
+
+    /**
+     * Record that the first upTo messages of user are delivered. Returns
+     * true if more messages arrived in the meantime.
+     */
+    private boolean markDelivered(String user, int upTo) {
+        try {
+            Index index = Index.read(indexFile(user));
+            if (index == null || upTo <= index.delivered) {
+                return false;
+            }
+            release(user, upTo - index.delivered);
+            if (upTo == index.count) {
+                remove(user);
+                return false;
+            }
+            Index.writeDelivered(indexFile(user), upTo);
+            return true;
+        } catch (IOException e) {
+            EventLog.warn("mailbox.update_failed", "user", user, "error", e);
+            return false;
+        }
+    }
+
+    /**
+     * Copy the records at the given positions of index to user's .bad
+     * file, as they are. Returns false if that failed.
+     */
+    private boolean quarantine(String user, Index index, List<Integer> positions) {
+        Path bad = dir.resolve(fileName(user) + ".bad");
+        try (FileChannel box = FileChannel.open(boxFile(user), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(bad, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            for (int i : positions) {
+                long offset = index.offsets[i];
+                long end = i + 1 < index.count ? index.offsets[i + 1] : box.size();
+                int n = (int) Math.max(0, Math.min(end, box.size()) - offset);
+                ByteBuffer record = ByteBuffer.allocate(12 + n);
+                record.putLong(offset).putInt(n);
+                while (record.hasRemaining() && box.read(record, offset + record.position() - 12) > 0) {
+                    // read until full
+                }
+                record.flip();
+                while (record.hasRemaining()) {
+                    out.write(record);
+                }
+            }
+            out.force(false);
+        } catch (IOException e) {
+            EventLog.warn("mailbox.quarantine_failed", "user", user, "error", e);
+            return false;
+        }
+        EventLog.warn("mailbox.quarantined", "user", user, "records", positions.size(), "file", bad);
+        return true;
+    }
+
+    /**
+     * Expire old messages and compact mostly-delivered mailboxes.
+     */
+    private void cleanup() {
+        long oldest = System.currentTimeMillis() - ttlMillis;
+        for (String user : new ArrayList<>(pending.keySet())) {
+            if (draining.containsKey(user)) {
+                continue; // its stream counts records; next round
+            }
+            try {
+                Index index = Index.read(indexFile(user));
+                if (index == null) {
+                    pending.remove(user);
+                    continue;
+                }
+                int keep = index.delivered;
+                while (keep < index.count && index.timestamps[keep] < oldest) {
+                    keep++;
+                }
+                if (keep > index.delivered) {
+                    EventLog.info("mailbox.expired", "user", user, "messages", keep - index.delivered);
+                    release(user, keep - index.delivered);
+                }
+                if (keep == index.count) {
+                    remove(user);
+                } else if (keep > index.count - keep) {
+                    compact(user, index, keep);
+                } else if (keep > index.delivered) {
+                    Index.writeDelivered(indexFile(user), keep);
+                }
+            } catch (IOException | RuntimeException e) {
+                EventLog.warn("mailbox.cleanup_failed", "user", user, "error", e);
+            }
+        }
+    }
+
+    /**
+     * Rewrite user's files with only the records from keep on.
+     */
+    private void compact(String user, Index index, int keep) throws IOException {
+        long from = index.offsets[keep];
+        Path box = boxFile(user);
+        Path boxTmp = dir.resolve(box.getFileName() + ".tmp");
+        Path idxTmp = dir.resolve(indexFile(user).getFileName() + ".tmp");
+        try (FileChannel in = FileChannel.open(box, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(boxTmp, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            for (long pos = from; pos < size; ) {
+                pos += in.transferTo(pos, size - pos, out);
+            }
+            out.force(false);
+        }
+        ByteBuffer idx = ByteBuffer.allocate(HEADER + (index.count - keep) * INDEX_ENTRY);
+        idx.putLong(0);
+        for (int i = keep; i < index.count; i++) {
+            idx.putLong(index.offsets[i] - from).putLong(index.timestamps[i]);
+        }
+        idx.flip();
+        try (FileChannel out = FileChannel.open(idxTmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (idx.hasRemaining()) {
+                out.write(idx);
+            }
+            out.force(false);
+        }
+        // box first: an index never points past the end of its box
+        Files.move(boxTmp, box, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(idxTmp, indexFile(user), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+    }
+
+    /**
+     * The message at offset, or null if its length or CRC is bad.
+     */
+    private ChatMessage readRecord(FileChannel box, long offset) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(8);
+        if (box.read(head, offset) < 8) {
+            return null;
+        }
+        int length = head.getInt(0);
+        if (length < 8 || offset + 8 + length > box.size()) {
+            return null;
+        }
+        byte[] record = new byte[length];
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        while (buf.hasRemaining() && box.read(buf, offset + 8 + buf.position()) > 0) {
+            // read until full
+        }
+        crc.reset();
+        crc.update(record, 0, length);
+        if ((int) crc.getValue() != head.getInt(4)) {
+            return null;
+        }
+        // the content stays raw: it is forwarded as stored
+        return MessageCodecs.BINARY.decodeHeader(record, 8, length - 8);
+    }
+
+    private void release(String user, int n) {
+        pending.computeIfPresent(user, (k, count) -> count - n > 0 ? count - n : null);
+    }
+
+    private void remove(String user) throws IOException {
+        Files.deleteIfExists(indexFile(user));
+        Files.deleteIfExists(boxFile(user));
+        syncDirectory();
+    }
+
+    /**
+     * Force dir's entries (created, renamed or deleted files) to disk.
+     */
+    private void syncDirectory() {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            // not every platform can open a directory; the files are forced
+        }
+    }
+
+    // ----- Files -----
+
+    /**
+     * Count the pending messages of every mailbox found in dir.
+     */
+    private void load() throws IOException {
+        int users = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.idx")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String user = userOf(name.substring(0, name.length() - 4));
+                Index index = user != null ? Index.read(file) : null;
+                if (index != null && index.pending() > 0) {
+                    pending.put(user, index.pending());
+                    users++;
+                }
+            }
+        }
+        if (users > 0) {
+            EventLog.info("mailbox.loaded", "dir", dir, "users", users);
+        }
+    }
+
+    private Path boxFile(String user) {
+        return dir.resolve(fileName(user) + ".box");
+    }
+
+    private Path indexFile(String user) {
+        return dir.resolve(fileName(user) + ".idx");
+    }
+
+    static String fileName(String user) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : user.getBytes(StandardCharsets.UTF_8)) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    static String userOf(String fileName) {
+        if (fileName.isEmpty() || fileName.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[fileName.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(fileName.charAt(2 * i), 16);
+            int lo = Character.digit(fileName.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return null;
+            }
+            bytes[i] = (byte) (hi << 4 | lo);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Content of a .idx file.
+     */
+    private static final class Index {
+        final int delivered;
+        final int count;
+        final long[] offsets;
+        final long[] timestamps;
+
+        private Index(int delivered, int count, long[] offsets, long[] timestamps) {
+            this.delivered = delivered;
+            this.count = count;
+            this.offsets = offsets;
+            this.timestamps = timestamps;
+        }
+
+        int pending() {
+            return count - delivered;
+        }
+
+        /**
+         * Read an index; null if the file does not exist.
+         */
+        static Index read(Path file) throws IOException {
+            if (!Files.exists(file)) {
+                return null;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (buf.capacity() < HEADER) {
+                return new Index(0, 0, new long[0], new long[0]);
+            }
+            // a torn last entry is ignored
+            int count = (buf.capacity() - HEADER) / INDEX_ENTRY;
+            int delivered = (int) Math.min(buf.getLong(0), count);
+            long[] offsets = new long[count];
+            long[] timestamps = new long[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = buf.getLong(HEADER + i * INDEX_ENTRY);
+                timestamps[i] = buf.getLong(HEADER + i * INDEX_ENTRY + 8);
+            }
+            return new Index(delivered, count, offsets, timestamps);
+        }
+
+        static void writeDelivered(Path file, int delivered) throws IOException {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                header.putLong(delivered).flip();
+                ch.write(header, 0);
+                ch.force(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * MessageCodec turns a ChatMessage into a frame body and back.
+ *
+ * Implementations (see MessageCodecs):
+ *   JsonCodec   version "1.0", body starts with '{'
+ *   BinaryCodec version "2.0", body starts with 0x02
+ *   CborCodec   version "3.0", body is a CBOR map (0xA0..0xBF)
+ *
+ * The codec of a connection is chosen by the version a client sends
+ * in its LOGIN_REQUEST (always JSON). Received bodies are matched to a
+ * codec by their first byte, so the first bytes of different codecs
+ * must not overlap.
+ *
+ * When a message carries RawContent (it was routed, not built by the
+ * server) encodeBody() must write those bytes as they are.
+ *
+ * Codecs are stateless and shared by all connections.
+ */
+public interface MessageCodec {
+
+    /**
+     * Short name, e.g. "json".
+     */
+    String getName();
+
+    /**
+     * Protocol version that selects this codec at login.
+     */
+    String getVersion();
+
+    /**
+     * True if a body starting with this byte belongs to this codec.
+     */
+    boolean accepts(byte firstByte);
+
+    /**
+     * Append the body of msg to out.
+     */
+    void encodeBody(ChatMessage msg, ByteWriter out);
+
+    /**
+     * Decode a body held in buf[offset, offset + length).
+     * Malformed input raises IllegalArgumentException.
+     */
+    ChatMessage decode(byte[] buf, int offset, int length);
+
+    /**
+     * Decode only the routing header: every field is parsed except the
+     * content, which is kept as RawContent (decoded lazily if ever read).
+     * The default decodes everything.
+     */
+    default ChatMessage decodeHeader(byte[] buf, int offset, int length) {
+        return decode(buf, offset, length);
+    }
+
+    /**
+     * Encode msg as a full frame: [4-byte length][body].
+     */
+    default byte[] encodeFrame(ChatMessage msg) {
+        ByteWriter out = new ByteWriter(64 + estimateSize(msg));
+        out.writeInt(0); // length, patched below
+        encodeBody(msg, out);
+        out.putInt(0, out.size() - 4);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode only the body.
+     */
+    default byte[] encode(ChatMessage msg) {
+        ByteWriter out = new ByteWriter(64 + estimateSize(msg));
+        encodeBody(msg, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Rough body size, used to size the output buffer.
+     */
+    static int estimateSize(ChatMessage msg) {
+        int n = 0;
+        n += msg.getSender() != null ? msg.getSender().length() : 0;
+        n += msg.getRecipient() != null ? msg.getRecipient().length() : 0;
+        n += msg.getRoom() != null ? msg.getRoom().length() : 0;
+        if (msg.getRawContent() != null) {
+            n += msg.getRawContent().utf8().length;
+        } else if (msg.getContent() != null) {
+            n += msg.getContent().length();
+        }
+        return n + n / 4;
+    }
+}
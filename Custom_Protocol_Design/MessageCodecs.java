@@ -0,0 +1,99 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * MessageCodecs is the registry of available codecs.
+ * The three built-in codecs are always present; more can be added
+ * with register() before the server or client starts.
+ *
+ * Each codec gets a small integer id (its index here), used by
+ * FrameSet to cache one encoded frame per codec.
+ */
+public final class MessageCodecs {
+
+    public static final JsonCodec JSON = new JsonCodec();
+    public static final BinaryCodec BINARY = new BinaryCodec();
+    public static final CborCodec CBOR = new CborCodec();
+
+    private static volatile List<MessageCodec> codecs = List.of(JSON, BINARY, CBOR);
+
+    private MessageCodecs() {
+    }
+
+    /**
+     * Add a codec. Its name, version and first bytes must not clash
+     * with an existing one.
+     */
+    public static synchronized void register(MessageCodec codec) {
+        for (MessageCodec c : codecs) {
+            if (c.getName().equals(codec.getName()) || c.getVersion().equals(codec.getVersion())) {
+                throw new IllegalArgumentException("Codec already registered: " + codec.getName());
+            }
+        }
+        List<MessageCodec> copy = new ArrayList<>(codecs);
+        copy.add(codec);
+        codecs = Collections.unmodifiableList(copy);
+    }
+
+    public static List<MessageCodec> all() {
+        return codecs;
+    }
+
+    /**
+     * Id of a registered codec (index in all()).
+     */
+    public static int idOf(MessageCodec codec) {
+        int id = codecs.indexOf(codec);
+        if (id < 0) {
+            throw new IllegalArgumentException("Codec not registered: " + codec.getName());
+        }
+        return id;
+    }
+
+    /**
+     * Codec for a requested protocol version; unknown versions get JSON.
+     */
+    public static MessageCodec forVersion(String version) {
+        for (MessageCodec c : codecs) {
+            if (c.getVersion().equals(version)) {
+                return c;
+            }
+        }
+        return JSON;
+    }
+
+    /**
+     * Codec by name ("json", "binary", "cbor"), or null.
+     */
+    public static MessageCodec forName(String name) {
+        for (MessageCodec c : codecs) {
+            if (c.getName().equalsIgnoreCase(name)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Codec of a received body, from its first byte. Defaults to JSON.
+     */
+    public static MessageCodec sniff(byte[] buf, int offset, int length) {
+        if (length > 0) {
+            byte first = buf[offset];
+            for (MessageCodec c : codecs) {
+                if (c.accepts(first)) {
+                    return c;
+                }
+            }
+        }
+        return JSON;
+    }
+
+    /**
+     * Decode a body in whatever registered format it is.
+     */
+    public static ChatMessage decode(byte[] buf, int offset, int length) {
+        return sniff(buf, offset, length).decode(buf, offset, length);
+    }
+}
@@ -0,0 +1,595 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * MessageLog persists routed TEXT_MESSAGE and PRIVATE_MESSAGE frames in
+ * an append-only log of memory-mapped segment files.
+ *
+ * - append() numbers the message and puts it on a bounded OutboundQueue
+ *   (when it is full the append is refused and counted): the caller never
+ *   touches the disk, and knows the sequence number at once. A dedicated
+ *   appender thread writes the records in that order; awaitWritten()
+ *   waits for it.
+ * - Segments have a fixed size and are named after the sequence number of
+ *   their first record: 00000000000000000001.log, ... A record that does
+ *   not fit starts the next segment. A segment written with another size
+ *   setting keeps its own size (it is mapped at its file's size).
+ * - With a retention size, the oldest segments are deleted at each roll
+ *   (and at open) while the log is larger than it.
+ * - Record: [4 length][4 CRC32][8 sequence][8 timestamp][body], where
+ *   length and CRC cover sequence, timestamp and body, and the body is
+ *   the message in the binary codec. Length 0 marks the end of the data;
+ *   a record is valid only if its CRC matches and its sequence follows
+ *   the previous one. A record that cannot be written (too large, say)
+ *   leaves an empty one (length 16, no body) in its place, so the
+ *   numbering has no gaps.
+ * - Each segment has an offset index (.idx): [8 sequence][8 timestamp]
+ *   [4 position] for the first record and then one every INDEX_INTERVAL
+ *   bytes, so a lookup reads a small file and scans at most that much log.
+ * - On open the last segment is scanned; the first record with a bad
+ *   length or CRC (a torn write) and everything after it is cleared.
+ *   The index is rebuilt from there, so only the log itself is forced.
+ *
+ * Durability is chosen per append (see Durability). Records reach the OS
+ * page cache on write; a group commit forces the dirty range of the
+ * segment with one msync for every record written since the last one:
+ * - BATCHED records ask for a commit within commitMillis, or as soon as
+ *   commitBytes of them are waiting.
+ * - MESSAGE records ask for a commit as soon as the appender has written
+ *   what is queued, so concurrent appends share one commit.
+ * - NONE records are forced by the next commit, the segment roll or close.
+ * An append's onStored callback runs on the appender thread with the
+ * record's sequence number, once it is written (NONE, BATCHED) or
+ * committed (MESSAGE), or with FAILED if it could not be written.
+ * Callbacks of records with the same durability run in sequence order.
+ * Commit times and append-to-durable latencies go to CommitStats.
+ *
+ * A Listener (optional) sees every record as it is written.
+ */
+public class MessageLog {
+
+    /**
+     * When an appended record must be on disk.
+     */
+    public enum Durability {
+        /** Page cache only; forced along with later commits. */
+        NONE,
+        /** By the next group commit (commitMillis / commitBytes). */
+        BATCHED,
+        /** By a commit right after the appender wrote it. */
+        MESSAGE
+    }
+
+    /** No sequence number: the append was refused, or the write failed. */
+    public static final long FAILED = -1;
+
+    public static final int INDEX_ENTRY = 20;
+    public static final int INDEX_INTERVAL = 4096;
+    private static final int QUEUE_CAPACITY = 65536;
+    /** Records written between two looks at the commit deadline. */
+    private static final int MAX_BATCH = 1024;
+
+    /**
+     * Told of each record written, on the appender thread, before
+     * getNextSequence() moves past it: whoever reads getNextSequence()
+     * and then the listener's state sees every record before it.
+     */
+    public interface Listener {
+        void appended(long sequence, long timestamp, ChatMessage msg);
+    }
+
+    /**
+     * A queued append.
+     */
+    private static final class Pending {
+        final ChatMessage msg;
+        final Durability durability;
+        final LongConsumer onStored;
+        final long sequence;
+        final long enqueued = System.nanoTime();
+
+        Pending(ChatMessage msg, Durability durability, LongConsumer onStored, long sequence) {
+            this.msg = msg;
+            this.durability = durability;
+            this.onStored = onStored;
+            this.sequence = sequence;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long retentionBytes;       // 0 = keep every segment
+    private final long commitNanos;
+    private final int commitBytes;
+    private final OutboundQueue<Pending> queue =
+            new OutboundQueue<>(QUEUE_CAPACITY, OutboundQueue.OverflowPolicy.DISCONNECT); // refuses when full
+    private final CommitStats commitStats = new CommitStats();
+    private final Thread appender;
+    private final CRC32 crc = new CRC32();          // appender thread only
+    private final ByteWriter body = new ByteWriter(1024);
+
+    // current segment (appender thread only, after open)
+    private MappedByteBuffer log;
+    private MappedByteBuffer index;
+    private int lastIndexed = -INDEX_INTERVAL;
+    private volatile long nextSequence = 1;     // first one not yet written
+    private volatile long appended;
+    private long assignedSequence;             // first one not yet queued, guarded by queue
+    private final Object written = new Object(); // notified as records are written
+    private volatile int writtenWaiters;       // changed under written
+    private volatile Listener listener;
+
+    // group commit state (appender thread only)
+    private int committed;                 // log position forced so far
+    private final List<Pending> waiting = new ArrayList<>(); // BATCHED / MESSAGE since the last commit
+    private int waitingBytes;
+    private long commitDeadline;           // nanoTime, valid while waiting is not empty
+    private boolean commitNow;             // a MESSAGE record is waiting
+
+    public MessageLog(Path dir, int segmentBytes) throws IOException {
+        this(dir, segmentBytes, 10, 256 * 1024);
+    }
+
+    public MessageLog(Path dir, int segmentBytes, long commitMillis, int commitBytes) throws IOException {
+        this(dir, segmentBytes, 0, commitMillis, commitBytes);
+    }
+
+    public MessageLog(Path dir, int segmentBytes, long retentionBytes, long commitMillis, int commitBytes)
+            throws IOException {
+        if (segmentBytes < 64 * 1024) {
+            throw new IllegalArgumentException("segment size must be >= 64 KB: " + segmentBytes);
+        }
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.commitNanos = TimeUnit.MILLISECONDS.toNanos(commitMillis);
+        this.commitBytes = commitBytes;
+        Files.createDirectories(dir);
+        recover();
+        this.assignedSequence = nextSequence;
+        this.appender = new Thread(this::appendLoop, "message-log");
+        this.appender.setDaemon(true);
+        this.appender.start();
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Sequence number of the first record not yet written: every record
+     * before it is in the log (or failed).
+     */
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Wait until the record numbered sequence has been written (or has
+     * failed). Returns false on timeout, or if the log is closed first.
+     */
+    public boolean awaitWritten(long sequence, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (written) {
+            writtenWaiters++; // before the check: the appender notifies after it moves nextSequence
+            try {
+                while (nextSequence <= sequence) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0 || !appender.isAlive()) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(written, left);
+                }
+                return true;
+            } finally {
+                writtenWaiters--;
+            }
+        }
+    }
+
+    public long getAppended() {
+        return appended;
+    }
+
+    public long getDropped() {
+        return queue.getDropped();
+    }
+
+    public CommitStats getCommitStats() {
+        return commitStats;
+    }
+
+    /**
+     * Set before the first append; records written earlier are not seen.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Number msg and queue it for the appender; never blocks. Returns its
+     * sequence number, or FAILED if the queue is full.
+     */
+    public long append(ChatMessage msg, Durability durability) {
+        return append(msg, durability, null);
+    }
+
+    /**
+     * Number msg and queue it for the appender; never blocks. onStored
+     * (optional) runs on the appender thread with the record's sequence
+     * number once it is written, or for MESSAGE once it is committed, and
+     * with FAILED if it cannot be written. Returns the sequence number, or
+     * FAILED if the queue is full (onStored then never runs).
+     */
+    public long append(ChatMessage msg, Durability durability, LongConsumer onStored) {
+        synchronized (queue) { // queued in sequence order
+            long sequence = assignedSequence;
+            if (!queue.offer(new Pending(msg, durability, onStored, sequence))) {
+                return FAILED;
+            }
+            assignedSequence = sequence + 1;
+            return sequence;
+        }
+    }
+
+    /**
+     * Write what is queued, force it to disk and stop the appender.
+     */
+    public void close() throws InterruptedException {
+        queue.finish();
+        appender.join();
+    }
+
+    // ----- Appender thread -----
+
+    private void appendLoop() {
+        try {
+            while (true) {
+                Pending p;
+                if (waiting.isEmpty()) {
+                    p = queue.take();
+                    if (p == null) {
+                        break; // closed and drained
+                    }
+                } else {
+                    long wait = commitNow ? 0 : commitDeadline - System.nanoTime();
+                    p = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (p == null) {
+                        commit();
+                        if (queue.isClosed() && queue.getDepth() == 0) {
+                            break;
+                        }
+                        continue;
+                    }
+                }
+                // write what is queued, then commit once for all of it
+                int n = 0;
+                do {
+                    append(p);
+                } while (++n < MAX_BATCH && (p = queue.poll()) != null);
+                if (writtenWaiters > 0) {
+                    synchronized (written) {
+                        written.notifyAll();
+                    }
+                }
+                if (commitNow || waitingBytes >= commitBytes
+                        || (!waiting.isEmpty() && System.nanoTime() >= commitDeadline)) {
+                    commit();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (log != null) {
+                commit();
+                log.force();
+                index.force();
+            }
+            synchronized (written) {
+                written.notifyAll();
+            }
+        }
+    }
+
+    private void append(Pending p) {
+        int length;
+        try {
+            length = write(p.sequence, p.msg);
+        } catch (IOException | RuntimeException e) {
+            EventLog.warn("log.append_failed", "sequence", p.sequence, "error", e);
+            skip(p.sequence, p.msg.getTimestamp());
+            if (p.onStored != null) {
+                runCallback(p, FAILED);
+            }
+            return;
+        }
+        if (p.durability != Durability.MESSAGE && p.onStored != null) {
+            runCallback(p, p.sequence);
+        }
+        if (p.durability == Durability.NONE) {
+            return;
+        }
+        if (waiting.isEmpty()) {
+            commitDeadline = System.nanoTime() + commitNanos;
+        }
+        waiting.add(p);
+        waitingBytes += length;
+        commitNow |= p.durability == Durability.MESSAGE;
+    }
+
+    /**
+     * Group commit: force everything written since the last commit with
+     * one msync, then release the waiting records.
+     */
+    private void commit() {
+        int position = log.position();
+        if (position > committed) {
+            long start = System.nanoTime();
+            log.force(committed, position - committed);
+            commitStats.commitDone(position - committed, System.nanoTime() - start);
+            committed = position;
+        }
+        long now = System.nanoTime();
+        for (Pending p : waiting) {
+            commitStats.recordDurable(now - p.enqueued);
+            if (p.durability == Durability.MESSAGE && p.onStored != null) {
+                runCallback(p, p.sequence);
+            }
+        }
+        waiting.clear();
+        waitingBytes = 0;
+        commitNow = false;
+    }
+
+    private static void runCallback(Pending p, long sequence) {
+        try {
+            p.onStored.accept(sequence);
+        } catch (RuntimeException e) {
+            EventLog.warn("log.callback_failed", "error", e);
+        }
+    }
+
+    /**
+     * Write one record; returns its size in the log.
+     */
+    private int write(long sequence, ChatMessage msg) throws IOException {
+        long timestamp = msg.getTimestamp();
+        body.reset();
+        body.writeLong(sequence);
+        body.writeLong(timestamp);
+        MessageCodecs.BINARY.encodeBody(msg, body);
+        int length = body.size();
+        // keep 4 bytes for the end marker
+        if (8 + length + 4 > segmentBytes) {
+            throw new IOException("Record too large for a segment: " + length + " bytes");
+        }
+        put(sequence, timestamp, length);
+        Listener l = listener;
+        if (l != null) {
+            try {
+                l.appended(sequence, timestamp, msg);
+            } catch (RuntimeException e) {
+                EventLog.warn("log.listener_failed", "sequence", sequence, "error", e);
+            }
+        }
+        nextSequence = sequence + 1;
+        appended++;
+        return 8 + length;
+    }
+
+    /**
+     * Write an empty record in place of one that failed, so the next one
+     * follows it. If even that fails (the next segment cannot be opened)
+     * the numbering moves on regardless: the next segment that opens is
+     * named after its first record.
+     */
+    private void skip(long sequence, long timestamp) {
+        body.reset();
+        body.writeLong(sequence);
+        body.writeLong(timestamp);
+        try {
+            put(sequence, timestamp, body.size());
+        } catch (IOException | RuntimeException e) {
+            EventLog.warn("log.skip_failed", "sequence", sequence, "error", e);
+        }
+        nextSequence = sequence + 1;
+    }
+
+    /**
+     * Put the record in body (length bytes) at the end of the log.
+     */
+    private void put(long sequence, long timestamp, int length) throws IOException {
+        if (log.remaining() < 8 + length + 4) {
+            roll(sequence);
+        }
+
+        crc.reset();
+        crc.update(body.array(), 0, length);
+        int position = log.position();
+        log.putInt(length);
+        log.putInt((int) crc.getValue());
+        log.put(body.array(), 0, length);
+
+        if (position - lastIndexed >= INDEX_INTERVAL) {
+            index.putLong(sequence);
+            index.putLong(timestamp);
+            index.putInt(position);
+            lastIndexed = position;
+        }
+    }
+
+    /**
+     * Start the next segment at base. The full one is forced, which also
+     * makes the waiting records durable; their callbacks run at the next
+     * commit.
+     */
+    private void roll(long base) throws IOException {
+        log.force();
+        index.force();
+        openSegment(base);
+        retain();
+    }
+
+    /**
+     * Delete the oldest segments, never the current one, while the log is
+     * larger than retentionBytes. A reader that has one mapped can finish
+     * with it.
+     */
+    private void retain() {
+        if (retentionBytes <= 0) {
+            return;
+        }
+        try {
+            List<Long> bases = segments(dir);
+            long total = 0;
+            for (long base : bases) {
+                total += Files.size(logFile(dir, base));
+            }
+            for (int i = 0; i < bases.size() - 1 && total > retentionBytes; i++) {
+                Path file = logFile(dir, bases.get(i));
+                long size = Files.size(file);
+                Files.delete(file); // log first: a segment is listed by its .log
+                Files.deleteIfExists(indexFile(dir, bases.get(i)));
+                total -= size;
+                EventLog.info("log.segment_deleted", "file", file, "bytes", size);
+            }
+        } catch (IOException e) {
+            EventLog.warn("log.retention_failed", "dir", dir, "error", e);
+        }
+    }
+
+    // ----- Segments -----
+
+    static Path logFile(Path dir, long base) {
+        return dir.resolve(String.format("%020d.log", base));
+    }
+
+    static Path indexFile(Path dir, long base) {
+        return dir.resolve(String.format("%020d.idx", base));
+    }
+
+    /**
+     * Base sequences of the segments in dir, oldest first.
+     */
+    static List<Long> segments(Path dir) throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - 4)));
+                } catch (NumberFormatException ignored) {}
+            }
+        }
+        Collections.sort(bases);
+        return bases;
+    }
+
+    static int indexBytes(int segmentBytes) {
+        return (segmentBytes / INDEX_INTERVAL + 2) * INDEX_ENTRY;
+    }
+
+    /**
+     * CRC32 of buf[from, from + length), without moving buf's position.
+     */
+    static int checksum(ByteBuffer buf, int from, int length) {
+        ByteBuffer slice = buf.duplicate();
+        slice.limit(from + length).position(from);
+        CRC32 crc = new CRC32();
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Zero buf from position from to its end, skipping what is already 0
+     * (reading a never-written page does not allocate it on disk).
+     */
+    static void clear(ByteBuffer buf, int from) {
+        int i = from;
+        for (; i + 8 <= buf.capacity(); i += 8) {
+            if (buf.getLong(i) != 0L) {
+                buf.putLong(i, 0L);
+            }
+        }
+        for (; i < buf.capacity(); i++) {
+            buf.put(i, (byte) 0);
+        }
+    }
+
+    static MappedByteBuffer map(Path file, int size) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Size of a segment file: its own if it exists, else segmentBytes.
+     */
+    private static int segmentSize(Path file, int segmentBytes) throws IOException {
+        long size = Files.exists(file) ? Files.size(file) : 0;
+        return size > 0 ? (int) Math.min(size, Integer.MAX_VALUE) : segmentBytes;
+    }
+
+    private void openSegment(long base) throws IOException {
+        int size = segmentSize(logFile(dir, base), segmentBytes);
+        log = map(logFile(dir, base), size);
+        index = map(indexFile(dir, base), indexBytes(size));
+        lastIndexed = -INDEX_INTERVAL;
+        committed = 0;
+    }
+
+    /**
+     * Open the last segment and find the end of its valid records,
+     * rebuilding its index on the way.
+     */
+    private void recover() throws IOException {
+        List<Long> bases = segments(dir);
+        long base = bases.isEmpty() ? 1 : bases.get(bases.size() - 1);
+        openSegment(base);
+
+        long sequence = base;
+        int position = 0;
+        while (true) {
+            int length = log.getInt(position);
+            if (length < 16 || position + 8 + length > log.capacity() - 4) {
+                break;
+            }
+            if (checksum(log, position + 8, length) != log.getInt(position + 4)
+                    || log.getLong(position + 8) != sequence) {
+                EventLog.warn("log.torn_record", "sequence", sequence, "file", logFile(dir, base));
+                break;
+            }
+            if (position - lastIndexed >= INDEX_INTERVAL) {
+                index.putLong(sequence);
+                index.putLong(log.getLong(position + 16));
+                index.putInt(position);
+                lastIndexed = position;
+            }
+            position += 8 + length;
+            sequence++;
+        }
+        // clear anything after the last good record
+        clear(log, position);
+        clear(index, index.position());
+        log.position(position);
+        committed = position;
+        nextSequence = sequence;
+        if (sequence > base || !bases.isEmpty()) {
+            EventLog.info("log.recovered", "dir", dir, "nextSequence", sequence);
+        }
+        retain();
+    }
+}
@@ -0,0 +1,377 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * MessageLogReader finds the messages of one room in a MessageLog
+ * directory, for history replay, and walks the whole log (every room)
+ * from a sequence number on, for a restart.
+ *
+ * - Segments are mapped read-only at their file's size (the same page
+ *   cache the appender writes to), so records become readable as soon as
+ *   they are written. A record is only used if its CRC matches and its
+ *   sequence is the expected one, so a record being written is never
+ *   half-read.
+ * - At most MAX_MAPPED segments stay mapped (the oldest go first), and
+ *   the mappings of deleted segments (see retention in MessageLog) are
+ *   dropped at the next query.
+ * - A start point is found with the segments' sparse index (sequence or
+ *   timestamp -> position) and at most INDEX_INTERVAL bytes of log are
+ *   scanned to reach it.
+ * - The last N messages of a room are found by walking the index
+ *   backwards one chunk at a time; for a very quiet room the walk stops
+ *   after maxScanBytes of log.
+ * - Messages come back as routing headers: the content stays raw
+ *   (RawContent), so replay does not re-encode it.
+ *
+ * Thread-safe: several replays may read at the same time.
+ */
+public class MessageLogReader {
+
+    /**
+     * One message of the log.
+     */
+    public static final class Entry {
+        private final long sequence;
+        private final long timestamp;
+        private final ChatMessage message;
+
+        Entry(long sequence, long timestamp, ChatMessage message) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.message = message;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public ChatMessage getMessage() {
+            return message;
+        }
+    }
+
+    /** Segments kept mapped between queries. */
+    private static final int MAX_MAPPED = 64;
+
+    private final Path dir;
+    private final long maxScanBytes;
+    // segment base -> read-only mappings of its log and index
+    private final ConcurrentSkipListMap<Long, MappedByteBuffer[]> mapped = new ConcurrentSkipListMap<>();
+
+    public MessageLogReader(Path dir, long maxScanBytes) {
+        this.dir = dir;
+        this.maxScanBytes = maxScanBytes;
+    }
+
+    /**
+     * Receives the records of forEach().
+     */
+    public interface Visitor {
+        void record(long sequence, long timestamp, ChatMessage msg);
+    }
+
+    // ----- Queries -----
+
+    /**
+     * Messages of room with sequence in (after, upTo), oldest first, at most max.
+     */
+    public List<Entry> readAfter(String room, long after, long upTo, int max) throws IOException {
+        List<Entry> out = new ArrayList<>();
+        List<Long> bases = segments();
+        for (int s = segmentOf(bases, after + 1); s >= 0 && s < bases.size(); s++) {
+            long base = bases.get(s);
+            int position = indexPosition(base, after + 1, false);
+            if (!scan(base, position, room, after + 1, Long.MIN_VALUE, upTo, max, out)) {
+                break;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Messages of room logged at or after timestamp (and before upTo),
+     * oldest first, at most max.
+     */
+    public List<Entry> readSince(String room, long timestamp, long upTo, int max) throws IOException {
+        List<Entry> out = new ArrayList<>();
+        List<Long> bases = segments();
+        // the last segment whose first record is older than timestamp
+        int first = 0;
+        for (int s = bases.size() - 1; s > 0; s--) {
+            ByteBuffer index = segment(bases.get(s))[1];
+            if (index.capacity() >= MessageLog.INDEX_ENTRY && index.getLong(0) != 0
+                    && index.getLong(8) < timestamp) {
+                first = s;
+                break;
+            }
+        }
+        for (int s = first; s < bases.size(); s++) {
+            long base = bases.get(s);
+            int position = s == first ? indexPosition(base, timestamp, true) : 0;
+            if (!scan(base, position, room, 0, timestamp, upTo, max, out)) {
+                break;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Visit every record with sequence in (after, upTo), oldest first, as
+     * a routing header. Returns the number visited.
+     */
+    public long forEach(long after, long upTo, Visitor visitor) throws IOException {
+        long visited = 0;
+        List<Long> bases = segments();
+        for (int s = segmentOf(bases, after + 1); s >= 0 && s < bases.size(); s++) {
+            long base = bases.get(s);
+            ByteBuffer log = segment(base)[0];
+            int limit = log.capacity();
+            int position = indexPosition(base, after + 1, false);
+            long expected = -1;
+            while (position + 8 <= limit) {
+                int length = log.getInt(position);
+                if (length < 16 || position + 8 + length > limit) {
+                    break; // end of this segment's data
+                }
+                long sequence = log.getLong(position + 8);
+                if ((expected >= 0 && sequence != expected)
+                        || MessageLog.checksum(log, position + 8, length) != log.getInt(position + 4)) {
+                    break;
+                }
+                if (sequence >= upTo) {
+                    return visited;
+                }
+                if (sequence > after && length > 16) { // not a failed record
+                    byte[] body = new byte[length - 16];
+                    log.get(position + 24, body);
+                    visitor.record(sequence, log.getLong(position + 16),
+                            MessageCodecs.BINARY.decodeHeader(body, 0, body.length));
+                    visited++;
+                }
+                expected = sequence + 1;
+                position += 8 + length;
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * The last n messages of room before upTo, oldest first. Chunks that
+     * start at or after upTo are skipped without reading them, so an upTo
+     * just past the room's last message (see ServerState) saves the scan
+     * of everything logged since.
+     */
+    public List<Entry> readLast(String room, int n, long upTo) throws IOException {
+        ArrayDeque<Entry> found = new ArrayDeque<>();
+        List<Long> bases = segments();
+        long scanned = 0;
+        for (int s = bases.size() - 1; s >= 0 && found.size() < n && scanned < maxScanBytes; s--) {
+            long base = bases.get(s);
+            if (base >= upTo) {
+                continue;
+            }
+            MappedByteBuffer index = segment(base)[1];
+            int entries = indexEntries(index);
+            // chunks [entry i, entry i + 1) from the newest one back
+            int end = Integer.MAX_VALUE;
+            for (int i = entries - 1; i >= 0 && found.size() < n && scanned < maxScanBytes; i--) {
+                int start = index.getInt(i * MessageLog.INDEX_ENTRY + 16);
+                long firstSeq = index.getLong(i * MessageLog.INDEX_ENTRY);
+                if (firstSeq >= upTo) {
+                    end = start;
+                    continue;
+                }
+                List<Entry> chunk = new ArrayList<>();
+                scanRange(base, start, end, firstSeq, room, upTo, chunk);
+                for (int k = chunk.size() - 1; k >= 0 && found.size() < n; k--) {
+                    found.addFirst(chunk.get(k));
+                }
+                scanned += (end == Integer.MAX_VALUE ? MessageLog.INDEX_INTERVAL : end - start);
+                end = start;
+            }
+        }
+        return new ArrayList<>(found);
+    }
+
+    // ----- Scanning -----
+
+    /**
+     * Collect matching records of one segment from position on. Returns
+     * false once nothing more can match (max reached or upTo passed).
+     */
+    private boolean scan(long base, int position, String room, long fromSeq, long fromTime,
+                         long upTo, int max, List<Entry> out) throws IOException {
+        ByteBuffer log = segment(base)[0];
+        int limit = log.capacity();
+        long expected = -1;
+        while (position + 8 <= limit) {
+            int length = log.getInt(position);
+            if (length < 16 || position + 8 + length > limit) {
+                return true; // end of this segment's data
+            }
+            long sequence = log.getLong(position + 8);
+            if ((expected >= 0 && sequence != expected)
+                    || MessageLog.checksum(log, position + 8, length) != log.getInt(position + 4)) {
+                return true; // torn or still being written
+            }
+            if (sequence >= upTo) {
+                return false;
+            }
+            long timestamp = log.getLong(position + 16);
+            if (sequence >= fromSeq && timestamp >= fromTime) {
+                Entry e = decode(log, position, length, room);
+                if (e != null) {
+                    out.add(e);
+                    if (out.size() >= max) {
+                        return false;
+                    }
+                }
+            }
+            expected = sequence + 1;
+            position += 8 + length;
+        }
+        return true;
+    }
+
+    /**
+     * Collect matching records in [start, end) of one segment.
+     */
+    private void scanRange(long base, int start, int end, long firstSeq, String room,
+                           long upTo, List<Entry> out) throws IOException {
+        ByteBuffer log = segment(base)[0];
+        int limit = log.capacity();
+        long expected = firstSeq;
+        int position = start;
+        while (position < end && position + 8 <= limit) {
+            int length = log.getInt(position);
+            if (length < 16 || position + 8 + length > limit
+                    || log.getLong(position + 8) != expected
+                    || MessageLog.checksum(log, position + 8, length) != log.getInt(position + 4)) {
+                return;
+            }
+            if (expected >= upTo) {
+                return;
+            }
+            Entry e = decode(log, position, length, room);
+            if (e != null) {
+                out.add(e);
+            }
+            expected++;
+            position += 8 + length;
+        }
+    }
+
+    private static Entry decode(ByteBuffer log, int position, int length, String room) {
+        if (length == 16) {
+            return null; // in place of a record that failed
+        }
+        byte[] body = new byte[length - 16];
+        log.get(position + 24, body);
+        ChatMessage msg = MessageCodecs.BINARY.decodeHeader(body, 0, body.length);
+        if (!room.equals(msg.getRoom()) || msg.getType() != MessageType.TEXT_MESSAGE) {
+            return null;
+        }
+        return new Entry(log.getLong(position + 8), log.getLong(position + 16), msg);
+    }
+
+    // ----- Index -----
+
+    private static int indexEntries(ByteBuffer index) {
+        int n = 0;
+        while ((n + 1) * MessageLog.INDEX_ENTRY <= index.capacity()
+                && index.getLong(n * MessageLog.INDEX_ENTRY) != 0) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Position of the last indexed record whose sequence (or timestamp)
+     * is <= key, or 0.
+     */
+    private int indexPosition(long base, long key, boolean byTimestamp) throws IOException {
+        ByteBuffer index = segment(base)[1];
+        int lo = 0;
+        int hi = indexEntries(index) - 1;
+        int position = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int at = mid * MessageLog.INDEX_ENTRY;
+            long value = index.getLong(byTimestamp ? at + 8 : at);
+            if (value <= key) {
+                position = index.getInt(at + 16);
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Index in bases of the segment holding sequence (-1 if none).
+     */
+    private static int segmentOf(List<Long> bases, long sequence) {
+        int found = bases.isEmpty() ? -1 : 0;
+        for (int s = 0; s < bases.size() && bases.get(s) <= sequence; s++) {
+            found = s;
+        }
+        return found;
+    }
+
+    /**
+     * The segments in dir, oldest first; the mappings of any that are gone
+     * are dropped.
+     */
+    private List<Long> segments() throws IOException {
+        List<Long> bases = MessageLog.segments(dir);
+        for (Long base : mapped.keySet()) {
+            if (Collections.binarySearch(bases, base) < 0) {
+                mapped.remove(base);
+            }
+        }
+        return bases;
+    }
+
+    private MappedByteBuffer[] segment(long base) throws IOException {
+        MappedByteBuffer[] buffers = mapped.get(base);
+        if (buffers == null) {
+            buffers = new MappedByteBuffer[] {
+                    mapReadOnly(MessageLog.logFile(dir, base)),
+                    mapReadOnly(MessageLog.indexFile(dir, base))
+            };
+            MappedByteBuffer[] raced = mapped.putIfAbsent(base, buffers);
+            if (raced != null) {
+                return raced;
+            }
+            // dropped mappings are unmapped once no reader holds them
+            while (mapped.size() > MAX_MAPPED && mapped.pollFirstEntry() != null) {
+                // oldest first
+            }
+        }
+        return buffers;
+    }
+
+    /**
+     * Map file read-only, at its current size: a segment being written
+     * was created at its full size, so every later record is in the map.
+     */
+    private static MappedByteBuffer mapReadOnly(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+    }
+}
@@ -10,5 +10,11 @@ public enum MessageType {
     LOGIN_RESPONSE,      // login result
     JOIN_ROOM_RESPONSE,  // join room result
     USER_LIST_RESPONSE,  // list of users
-    ERROR_RESPONSE       // error information
+    ERROR_RESPONSE,      // error information
+
+    // Added later: appended so the binary codec's type ordinals stay stable
+    LEAVE_ROOM_REQUEST,  // client -> server: leave one room
+    LEAVE_ROOM_RESPONSE, // server -> client: leave room result
+    ROOM_LIST_REQUEST,   // client -> server: list rooms (prefix, cursor)
+    ROOM_LIST_RESPONSE   // server -> client: one page of rooms
 }
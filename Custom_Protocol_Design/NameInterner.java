@@ -0,0 +1,74 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * NameInterner maps names (room names) to dense int ids, so routing after
+ * the first lookup works on ints instead of hashing and comparing Strings.
+ *
+ * - acquire() interns a name and pins its id; release() unpins it. An id
+ *   is recycled (see SessionTable) only when nobody pins it any more, so
+ *   holders can use it without re-checking the name.
+ * - lookup() and name() are lock-free and do not pin.
+ * - Reference counts are changed with ConcurrentHashMap.compute, which
+ *   only serializes updates of the same name.
+ */
+public class NameInterner {
+
+    private static final class Entry {
+        final int id;
+        int refs; // guarded by the map's compute on this name
+
+        Entry(int id) {
+            this.id = id;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> byName = new ConcurrentHashMap<>();
+    private final SessionTable<String> byId = new SessionTable<>();
+
+    /**
+     * Id of name, interning it if needed; the caller must release() it.
+     */
+    public int acquire(String name) {
+        Entry entry = byName.compute(name, (n, e) -> {
+            if (e == null) {
+                e = new Entry(byId.register(n));
+            }
+            e.refs++;
+            return e;
+        });
+        return entry.id;
+    }
+
+    public void release(int id) {
+        String name = byId.get(id);
+        if (name == null) {
+            return;
+        }
+        byName.computeIfPresent(name, (n, e) -> {
+            if (e.id != id || --e.refs > 0) {
+                return e;
+            }
+            byId.release(id);
+            return null;
+        });
+    }
+
+    /**
+     * Id of name if it is currently interned, else -1.
+     */
+    public int lookup(String name) {
+        Entry entry = byName.get(name);
+        return entry != null ? entry.id : -1;
+    }
+
+    /**
+     * Name of a pinned id.
+     */
+    public String name(int id) {
+        return byId.get(id);
+    }
+
+    public int size() {
+        return byName.size();
+    }
+}
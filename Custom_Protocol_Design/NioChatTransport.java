@@ -0,0 +1,545 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * NioChatTransport
+ * - Non-blocking TLS transport for SecureChatServer.
+ * - One acceptor thread plus a small fixed set of event-loop threads,
+ *   each owning a Selector and many connections.
+ * - Every connection has its own SSLEngine; the handshake, wrap/unwrap
+ *   and the [length][json] framing (FrameDecoder) are all driven from
+ *   the event loop.
+ * - Network and application buffers come from BufferPools.
+ * - Queued frames are coalesced into 16 KB batches before wrap(), so
+ *   a burst of small messages leaves as a few full TLS records.
+ *
+ * Other threads may call send() on any connection: the frame is put on
+ * the connection's bounded OutboundQueue and the owning event loop is
+ * woken up to write it.
+ */
+public class NioChatTransport {
+
+    /**
+     * Callbacks for one connection, always invoked on its event loop.
+     */
+    public interface Handler {
+        void onMessage(ChatMessage msg) throws IOException;
+
+        void onClose();
+    }
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLContext sslContext;
+    private final int port;
+    private final Supplier<OutboundQueue<EncodedFrame>> queueFactory;
+    private final Function<ChatConnection, Handler> handlerFactory;
+    private final EventLoop[] loops;
+    private final BufferPool netPool;
+    private final BufferPool appPool;
+    private final BufferPool batchPool;
+    private final WriteStats writeStats;
+    private final int maxFrameSize;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+
+    public NioChatTransport(SSLContext sslContext, int port, int eventLoopThreads,
+                            Supplier<OutboundQueue<EncodedFrame>> queueFactory,
+                            Function<ChatConnection, Handler> handlerFactory,
+                            WriteStats writeStats, int maxFrameSize) throws IOException {
+        this.sslContext = sslContext;
+        this.port = port;
+        this.maxFrameSize = maxFrameSize;
+        this.writeStats = writeStats;
+        this.queueFactory = queueFactory;
+        this.handlerFactory = handlerFactory;
+
+        SSLSession session = sslContext.createSSLEngine().getSession();
+        this.netPool = new BufferPool(session.getPacketBufferSize(), 1024, true);
+        this.appPool = new BufferPool(session.getApplicationBufferSize(), 1024, false);
+        this.batchPool = new BufferPool(CoalescingWriter.RECORD_SIZE, 1024, false);
+
+        this.loops = new EventLoop[eventLoopThreads];
+        for (int i = 0; i < eventLoopThreads; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Bind, start the event loops and accept connections on the calling thread.
+     */
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        EventLog.info("nio.listening", "port", port, "eventLoops", loops.length);
+
+        for (EventLoop loop : loops) {
+            Thread t = new Thread(loop, "chat-nio-" + loop.index);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        int next = 0;
+        while (running) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                if (!running) {
+                    break;
+                }
+                throw e;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            EventLog.info("client.connected", "remote", channel.getRemoteAddress());
+
+            EventLoop loop = loops[next];
+            next = (next + 1) % loops.length;
+            loop.register(channel);
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException ignored) {}
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    // ----- Event loop -----
+
+    private class EventLoop implements Runnable {
+        private final int index;
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile Thread thread;
+
+        EventLoop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                Connection conn = null;
+                try {
+                    conn = new Connection(this, channel);
+                    conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                    conn.handler = handlerFactory.apply(conn);
+                    conn.engine.beginHandshake();
+                    conn.process();
+                } catch (IOException e) {
+                    EventLog.warn("client.register_failed", "error", e.getMessage());
+                    if (conn != null) {
+                        conn.close();
+                    } else {
+                        try {
+                            channel.close();
+                        } catch (IOException ignored) {}
+                    }
+                }
+            });
+        }
+
+        void shutdown() {
+            try {
+                selector.close();
+            } catch (IOException ignored) {}
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            try {
+                while (running) {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection conn = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            conn.close();
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                conn.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                conn.process();
+                            }
+                        } catch (IOException e) {
+                            EventLog.info("client.io_error", "error", e.getMessage());
+                            conn.close();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    EventLog.warn("nio.loop_stopped", "loop", index, "error", e.getMessage());
+                }
+            }
+        }
+    }
+
+    // ----- One TLS connection -----
+
+    private class Connection implements ChatConnection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SSLEngine engine;
+        private final String remoteAddress;
+        private final OutboundQueue<EncodedFrame> pending;
+        private final FrameDecoder decoder = new FrameDecoder(maxFrameSize);
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private SelectionKey key;
+        private Handler handler;
+        private ByteBuffer current; // frame being copied into batch, already off the queue
+        private boolean processing; // process() is running (loop thread only)
+
+        // netIn / appIn / batch are in "write mode", netOut is in "read mode"
+        private ByteBuffer netIn;
+        private ByteBuffer netOut;
+        private ByteBuffer appIn;
+        private ByteBuffer batch;
+
+        Connection(EventLoop loop, SocketChannel channel) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            this.remoteAddress = String.valueOf(channel.getRemoteAddress());
+            this.engine = sslContext.createSSLEngine();
+            this.engine.setUseClientMode(false);
+            this.pending = queueFactory.get();
+
+            this.netIn = netPool.acquire();
+            this.netOut = netPool.acquire();
+            this.netOut.flip();
+            this.appIn = appPool.acquire();
+            this.batch = batchPool.acquire();
+        }
+
+        @Override
+        public void send(EncodedFrame frame) throws IOException {
+            if (closed.get()) {
+                throw new IOException("Connection closed");
+            }
+            if (!pending.offer(frame)) {
+                close();
+                throw new IOException("Outbound queue full or closed (" + pending + ")");
+            }
+            if (loop.inLoop()) {
+                // a reply from onMessage lands here inside process(), which
+                // wraps it once deliverFrames has drained appIn
+                process();
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    flushScheduled.set(false);
+                    try {
+                        process();
+                    } catch (IOException e) {
+                        EventLog.info("client.io_error", "error", e.getMessage());
+                        close();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public OutboundQueue<?> getOutboundQueue() {
+            return pending;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        void onReadable() throws IOException {
+            int n = channel.read(netIn);
+            if (n < 0) {
+                EventLog.info("client.disconnected", "remote", remoteAddress);
+                close();
+                return;
+            }
+            process();
+        }
+
+        /**
+         * Drive the engine until nothing more can be done without I/O.
+         * Not re-entered: a call made while it runs (a handler replying from
+         * onMessage) returns at once, and the running call wraps what was
+         * queued after the frames being delivered, so appIn is never
+         * unwrapped into while it is being read.
+         */
+        void process() throws IOException {
+            if (processing) {
+                return;
+            }
+            processing = true;
+            try {
+                drive();
+            } finally {
+                processing = false;
+            }
+            updateInterest();
+        }
+
+        private void drive() throws IOException {
+            boolean progressed = true;
+            while (progressed && !closed.get()) {
+                progressed = false;
+                if (!flushNetOut()) {
+                    break;
+                }
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                        progressed = true;
+                        break;
+                    case NEED_WRAP:
+                        progressed = wrap(EMPTY);
+                        break;
+                    case NEED_UNWRAP:
+                    case NEED_UNWRAP_AGAIN:
+                        progressed = unwrap();
+                        break;
+                    default:
+                        // handshake finished: application data in both directions
+                        boolean read = unwrap();
+                        boolean wrote = wrapPending();
+                        progressed = read || wrote;
+                        break;
+                }
+            }
+        }
+
+        private boolean flushNetOut() throws IOException {
+            if (netOut.hasRemaining()) {
+                channel.write(netOut);
+            }
+            return !netOut.hasRemaining();
+        }
+
+        private boolean wrapPending() throws IOException {
+            fillBatch();
+            if (batch.position() == 0) {
+                return false;
+            }
+            batch.flip();
+            int before = batch.remaining();
+            boolean progressed = wrap(batch);
+            int consumed = before - batch.remaining();
+            batch.compact();
+            if (consumed > 0) {
+                writeStats.recordWritten(consumed);
+            }
+            return progressed;
+        }
+
+        /**
+         * Copy queued frames into batch until it holds one full record
+         * or the queue is empty.
+         */
+        private void fillBatch() {
+            while (batch.hasRemaining()) {
+                if (current == null) {
+                    EncodedFrame frame = pending.poll();
+                    if (frame == null) {
+                        return;
+                    }
+                    current = frame.asByteBuffer();
+                    writeStats.messageWritten();
+                }
+                int n = Math.min(current.remaining(), batch.remaining());
+                int limit = current.limit();
+                current.limit(current.position() + n);
+                batch.put(current);
+                current.limit(limit);
+                if (!current.hasRemaining()) {
+                    current = null;
+                }
+            }
+        }
+
+        private boolean wrap(ByteBuffer src) throws IOException {
+            netOut.clear();
+            SSLEngineResult result = engine.wrap(src, netOut);
+            netOut.flip();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                flushNetOut();
+                close();
+                return false;
+            }
+            return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+
+        private boolean unwrap() throws IOException {
+            netIn.flip();
+            if (!netIn.hasRemaining()) {
+                netIn.compact();
+                return false;
+            }
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    appIn = grow(appIn, appIn.capacity() * 2);
+                    return true;
+                case BUFFER_UNDERFLOW:
+                    if (netIn.position() == netIn.capacity()) {
+                        netIn = grow(netIn, netIn.capacity() * 2);
+                    }
+                    return false;
+                case CLOSED:
+                    EventLog.info("client.disconnected", "remote", remoteAddress);
+                    close();
+                    return false;
+                default:
+                    deliverFrames();
+                    return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+            }
+        }
+
+        /**
+         * Move unwrapped bytes into the frame decoder and hand every
+         * complete frame to the handler; partial frames stay in the decoder.
+         */
+        private void deliverFrames() throws IOException {
+            appIn.flip();
+            while (appIn.hasRemaining()) {
+                decoder.feed(appIn);
+                while (decoder.nextFrame()) {
+                    ChatMessage msg;
+                    try {
+                        msg = ChatMessage.headerFromBytes(
+                                decoder.frameArray(), decoder.frameOffset(), decoder.frameLength());
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException("Malformed message: " + e.getMessage());
+                    }
+                    handler.onMessage(msg);
+                    if (closed.get()) {
+                        return;
+                    }
+                }
+            }
+            appIn.clear();
+        }
+
+        /**
+         * Replace a write-mode buffer by a bigger one, keeping its content.
+         */
+        private ByteBuffer grow(ByteBuffer buf, int capacity) {
+            ByteBuffer bigger = buf.isDirect()
+                    ? ByteBuffer.allocateDirect(capacity)
+                    : ByteBuffer.allocate(capacity);
+            buf.flip();
+            bigger.put(buf);
+            return bigger;
+        }
+
+        private void updateInterest() {
+            if (closed.get() || !key.isValid()) {
+                return;
+            }
+            int ops = SelectionKey.OP_READ;
+            if (netOut.hasRemaining()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            if (!loop.inLoop()) {
+                // buffers and the key belong to the event loop
+                loop.execute(this::release);
+                return;
+            }
+            release();
+        }
+
+        private void release() {
+            engine.closeOutbound();
+            try {
+                // best effort close_notify
+                netOut.clear();
+                engine.wrap(EMPTY, netOut);
+                netOut.flip();
+                channel.write(netOut);
+            } catch (IOException ignored) {}
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            try {
+                engine.closeInbound();
+            } catch (SSLException ignored) {}
+
+            netPool.release(netIn);
+            netPool.release(netOut);
+            appPool.release(appIn);
+            batchPool.release(batch);
+            pending.close();
+            current = null;
+
+            if (handler != null) {
+                handler.onClose();
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * OutboundQueue is the bounded queue of frames waiting to be written
+ * to one client. Senders only enqueue; the connection's own writer
+ * (a writer thread, or the NIO event loop) drains it, so a slow
+ * consumer never blocks the thread that broadcast the message.
+ *
+ * When the queue is full the OverflowPolicy decides what happens.
+ * Depth, high-water mark and drop counters are kept for monitoring.
+ */
+public class OutboundQueue<T> {
+
+    /**
+     * What to do when a frame arrives and the queue is full.
+     * DROP_OLDEST : discard the oldest queued frame and keep the new one
+     * DROP_NEWEST : discard the new frame
+     * DISCONNECT  : refuse the frame; the caller closes the connection
+     */
+    public enum OverflowPolicy {
+        DROP_OLDEST,
+        DROP_NEWEST,
+        DISCONNECT
+    }
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ArrayDeque<T> items;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean closed;
+
+    // counters (guarded by lock)
+    private long enqueued;
+    private long dropped;
+    private int maxDepth;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0: " + capacity);
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        this.items = new ArrayDeque<>(Math.min(capacity, 64));
+    }
+
+    /**
+     * Add a frame, applying the overflow policy if full.
+     * Returns false if the queue is closed or the policy is DISCONNECT
+     * and the queue is full; the caller should then drop the connection.
+     */
+    public boolean offer(T item) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (items.size() >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        items.pollFirst();
+                        dropped++;
+                        break;
+                    case DROP_NEWEST:
+                        dropped++;
+                        return true;
+                    default:
+                        dropped++;
+                        return false;
+                }
+            }
+            items.addLast(item);
+            enqueued++;
+            if (items.size() > maxDepth) {
+                maxDepth = items.size();
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Non-blocking poll, returns null if empty.
+     */
+    public T poll() {
+        lock.lock();
+        try {
+            return items.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the next frame. Returns null once the queue is closed and empty.
+     */
+    public T take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (items.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return items.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait at most timeout for the next frame. Returns null on timeout or close.
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (items.isEmpty() && !closed) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return items.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Close the queue: pending frames are discarded and waiting writers wake up.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            items.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Refuse new frames but keep the queued ones: the consumer drains
+     * them and then take() returns null.
+     */
+    public void finish() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ----- Counters -----
+
+    public int getDepth() {
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getEnqueued() {
+        lock.lock();
+        try {
+            return enqueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "depth=" + items.size() + "/" + capacity
+                    + " max=" + maxDepth
+                    + " enqueued=" + enqueued
+                    + " dropped=" + dropped
+                    + " policy=" + policy;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * ParallelFanOut delivers one message to the members of a room, on
+ * several cores when the room is large.
+ *
+ * - Rooms below the threshold keep the plain loop on the room's shard.
+ * - Larger rooms are split into partitions of at most partitionSize
+ *   recipients that run on a ForkJoinPool. The shard waits until every
+ *   partition is done, so the member array never changes while it is
+ *   read and each recipient still gets the room's messages in order.
+ * - Every partition's duration goes to FanOutStats.
+ */
+public class ParallelFanOut {
+
+    private final int threshold; // 0 = always inline
+    private final int partitionSize;
+    private final ForkJoinPool pool;
+    private final FanOutStats stats = new FanOutStats();
+
+    public ParallelFanOut(int threshold, int partitionSize, int parallelism) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must be >= 0: " + threshold);
+        }
+        if (partitionSize <= 0) {
+            throw new IllegalArgumentException("partitionSize must be > 0: " + partitionSize);
+        }
+        this.threshold = threshold;
+        this.partitionSize = partitionSize;
+        this.pool = threshold > 0 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    public FanOutStats getStats() {
+        return stats;
+    }
+
+    public boolean isParallel(int recipients) {
+        return pool != null && recipients >= threshold;
+    }
+
+    /**
+     * Call deliver once for every index in [0, count); returns when all
+     * calls are done.
+     */
+    public void run(int count, IntConsumer deliver) {
+        if (!isParallel(count)) {
+            for (int i = 0; i < count; i++) {
+                deliver.accept(i);
+            }
+            stats.inlineFanOut();
+            return;
+        }
+        pool.invoke(new Partition(0, count, deliver));
+        stats.parallelFanOut();
+    }
+
+    private final class Partition extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final IntConsumer deliver;
+
+        Partition(int from, int to, IntConsumer deliver) {
+            this.from = from;
+            this.to = to;
+            this.deliver = deliver;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= partitionSize) {
+                long start = System.nanoTime();
+                for (int i = from; i < to; i++) {
+                    deliver.accept(i);
+                }
+                stats.partitionDone(System.nanoTime() - start);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Partition(from, mid, deliver), new Partition(mid, to, deliver));
+        }
+    }
+}
@@ -0,0 +1,206 @@
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PresenceDirectory answers USER_LIST_REQUEST from a versioned view of
+ * the logged-in users.
+ *
+ * - Logins and logouts update a sorted set and bump the version; nothing
+ *   else happens on that path.
+ * - A request reads an immutable Snapshot (sorted String[]) of the
+ *   current version. It is rebuilt at most once per version, on the first
+ *   request after a change.
+ * - Full pages of the default size are encoded once per snapshot (one
+ *   FrameSet per page), so repeated requests cost no encoding until the
+ *   presence changes.
+ * - The last LOG_SIZE changes are kept, so a client can ask only for the
+ *   joins and leaves since the version it last saw (delta mode).
+ *
+ * Request content: space separated options, all optional:
+ *   offset=N limit=N   full listing, one page (default 0 / 100)
+ *   since=V            delta since version V (full page 0 if too old)
+ * Response content: a header line, then one entry per line:
+ *   USERS v=<version> total=<n> offset=<o> next=<offset|end>
+ *   DELTA v=<version> since=<V>     entries are +name / -name
+ */
+public class PresenceDirectory {
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int MAX_PAGE_SIZE = 1000;
+    private static final int LOG_SIZE = 1024;
+
+    private static final class Snapshot {
+        final long version;
+        final String[] users;
+        // default-size pages, encoded on demand by whichever thread asks
+        final AtomicReferenceArray<FrameSet> pages;
+
+        Snapshot(long version, String[] users) {
+            this.version = version;
+            this.users = users;
+            this.pages = new AtomicReferenceArray<>(
+                    Math.max(1, (users.length + DEFAULT_PAGE_SIZE - 1) / DEFAULT_PAGE_SIZE));
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeSet<String> users = new TreeSet<>(); // guarded by lock
+    // change with version v is at index v % LOG_SIZE (guarded by lock)
+    private final String[] logNames = new String[LOG_SIZE];
+    private final boolean[] logJoined = new boolean[LOG_SIZE];
+    private volatile long version;
+    private volatile Snapshot snapshot = new Snapshot(0L, new String[0]);
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void userJoined(String username) {
+        record(username, true);
+    }
+
+    public void userLeft(String username) {
+        record(username, false);
+    }
+
+    private void record(String username, boolean joined) {
+        lock.lock();
+        try {
+            if (joined ? !users.add(username) : !users.remove(username)) {
+                return;
+            }
+            long v = version + 1;
+            int slot = (int) (v % LOG_SIZE);
+            logNames[slot] = username;
+            logJoined[slot] = joined;
+            version = v;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Answer a USER_LIST_REQUEST whose content is query (may be null).
+     * Throws IllegalArgumentException for a malformed query.
+     */
+    public FrameSet respond(String query) {
+        int offset = 0;
+        int limit = DEFAULT_PAGE_SIZE;
+        long since = -1;
+        if (query != null) {
+            for (String option : query.trim().split("\\s+")) {
+                if (option.isEmpty()) {
+                    continue;
+                }
+                int eq = option.indexOf('=');
+                String key = eq > 0 ? option.substring(0, eq) : option;
+                String value = eq > 0 ? option.substring(eq + 1) : "";
+                try {
+                    switch (key) {
+                        case "offset":
+                            offset = Integer.parseInt(value);
+                            break;
+                        case "limit":
+                            limit = Integer.parseInt(value);
+                            break;
+                        case "since":
+                            since = Long.parseLong(value);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown option: " + key);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Bad number for " + key + ": " + value);
+                }
+            }
+        }
+        if (offset < 0 || limit <= 0 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("offset must be >= 0 and limit in 1.." + MAX_PAGE_SIZE);
+        }
+        if (since >= 0) {
+            FrameSet delta = delta(since, limit);
+            if (delta != null) {
+                return delta;
+            }
+            offset = 0; // too old for the change log: send a full page
+        }
+        return page(offset, limit);
+    }
+
+    /**
+     * One page of the full, sorted listing.
+     */
+    public FrameSet page(int offset, int limit) {
+        Snapshot s = current();
+        boolean cacheable = limit == DEFAULT_PAGE_SIZE && offset % DEFAULT_PAGE_SIZE == 0
+                && offset / DEFAULT_PAGE_SIZE < s.pages.length();
+        if (cacheable) {
+            FrameSet cached = s.pages.get(offset / DEFAULT_PAGE_SIZE);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        int end = Math.min(s.users.length, offset + limit);
+        StringBuilder sb = new StringBuilder(32 + 16 * Math.max(0, end - offset));
+        sb.append("USERS v=").append(s.version)
+          .append(" total=").append(s.users.length)
+          .append(" offset=").append(offset)
+          .append(" next=").append(end < s.users.length ? String.valueOf(end) : "end");
+        for (int i = offset; i < end; i++) {
+            sb.append('\n').append(s.users[i]);
+        }
+        FrameSet frames = new FrameSet(response(sb.toString()));
+        if (cacheable && !s.pages.compareAndSet(offset / DEFAULT_PAGE_SIZE, null, frames)) {
+            return s.pages.get(offset / DEFAULT_PAGE_SIZE); // another thread was first
+        }
+        return frames;
+    }
+
+    /**
+     * Changes after version since, or null if they are no longer all
+     * known (or more than limit): the caller then sends a full listing.
+     */
+    private FrameSet delta(long since, int limit) {
+        StringBuilder sb;
+        lock.lock();
+        try {
+            long v = version;
+            if (since > v || v - since > Math.min(LOG_SIZE, limit)) {
+                return null;
+            }
+            sb = new StringBuilder(32 + 16 * (int) (v - since));
+            sb.append("DELTA v=").append(v).append(" since=").append(since);
+            for (long c = since + 1; c <= v; c++) {
+                int slot = (int) (c % LOG_SIZE);
+                sb.append('\n').append(logJoined[slot] ? '+' : '-').append(logNames[slot]);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return new FrameSet(response(sb.toString()));
+    }
+
+    private Snapshot current() {
+        Snapshot s = snapshot;
+        if (s.version == version) {
+            return s;
+        }
+        lock.lock();
+        try {
+            if (snapshot.version != version) {
+                snapshot = new Snapshot(version, users.toArray(new String[0]));
+            }
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static ChatMessage response(String content) {
+        ChatMessage msg = new ChatMessage(MessageType.USER_LIST_RESPONSE);
+        msg.setSender("SERVER");
+        msg.setContent(content);
+        return msg;
+    }
+}
@@ -0,0 +1,92 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * RawContent is the content of a received message kept as the bytes
+ * it arrived in, not as a String.
+ *
+ * The server only needs type, room and recipient to route a
+ * TEXT_MESSAGE or PRIVATE_MESSAGE (the routing header). The content is
+ * copied out of the frame as-is and written into the outgoing frame
+ * untouched, so it is never parsed or re-encoded on the routing path.
+ *
+ * Two forms exist:
+ * - JSON-escaped : the body of a JSON string, between the quotes
+ * - plain UTF-8  : as carried by the binary and CBOR codecs
+ * A codec asks for the form it writes (jsonEscaped() / utf8()); the
+ * other form is derived byte-wise on demand and cached. toString()
+ * decodes the text lazily for code that really needs it.
+ */
+public final class RawContent {
+
+    private final byte[] bytes;
+    private final boolean jsonEscaped;
+
+    // derived forms, computed on demand (racy but idempotent); volatile,
+    // as fan-out threads share them and an array is not safely published
+    // otherwise (a String is: its fields are final)
+    private volatile byte[] utf8;
+    private volatile byte[] escaped;
+    private String text;
+
+    public RawContent(byte[] bytes, boolean jsonEscaped) {
+        this.bytes = bytes;
+        this.jsonEscaped = jsonEscaped;
+    }
+
+    /**
+     * Content as the body of a JSON string (without the quotes).
+     */
+    public byte[] jsonEscaped() {
+        if (jsonEscaped) {
+            return bytes;
+        }
+        byte[] e = escaped;
+        if (e == null) {
+            e = JsonCodec.escapeUtf8(bytes);
+            escaped = e;
+        }
+        return e;
+    }
+
+    /**
+     * Content as plain UTF-8 bytes.
+     */
+    public byte[] utf8() {
+        if (!jsonEscaped) {
+            return bytes;
+        }
+        byte[] u = utf8;
+        if (u == null) {
+            // a JSON string without escapes is already plain UTF-8
+            u = indexOf(bytes, (byte) '\\') < 0
+                    ? bytes
+                    : toString().getBytes(StandardCharsets.UTF_8);
+            utf8 = u;
+        }
+        return u;
+    }
+
+    /**
+     * Decoded text of the content.
+     */
+    @Override
+    public String toString() {
+        String t = text;
+        if (t == null) {
+            t = jsonEscaped
+                    ? JsonCodec.unescape(bytes)
+                    : new String(bytes, StandardCharsets.UTF_8);
+            text = t;
+        }
+        return t;
+    }
+
+    private static int indexOf(byte[] a, byte b) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
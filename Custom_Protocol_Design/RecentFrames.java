@@ -0,0 +1,316 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RecentFrames keeps the last messages of each room in off-heap rings, so
+ * recent history and reconnect catch-up are served without the disk and
+ * without growing the Java heap.
+ *
+ * - Memory is split into fixed slots of roomBytes, one per cached room,
+ *   carved out of direct ByteBuffer chunks of about 1 MB that are only
+ *   allocated when needed. The global budget bounds the number of slots;
+ *   roomBytes and roomMessages cap each room.
+ * - Each slot is a byte ring of records [4 length][8 timestamp][body],
+ *   the body being the message in the binary codec (content kept as
+ *   received). Adding a message drops the oldest ones until it fits.
+ * - The budget is split evenly between the room shards, and each part is
+ *   only used by its shard's thread (the owner of the rooms mapped to it,
+ *   see RoomShards.shardOf), so nothing is locked. When a part has no free
+ *   slot, the room written to least recently loses its slot.
+ * - A slot remembers its room's name: a room id reused for another room
+ *   (see NameInterner) starts from an empty ring. A room whose id is
+ *   dropped and later re-created starts empty as well.
+ *
+ * Direct memory is limited by -XX:MaxDirectMemorySize (by default the
+ * maximum heap size), which must be above the budget.
+ */
+public class RecentFrames {
+
+    private static final int CHUNK_BYTES = 1 << 20;
+    private static final int RECORD_HEADER = 12;
+
+    private final Part[] parts;
+    private final int roomBytes;
+    private final int roomMessages;
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public RecentFrames(int shards, long budgetBytes, int roomBytes, int roomMessages) {
+        if (roomBytes < 1024) {
+            throw new IllegalArgumentException("room size must be >= 1024 bytes: " + roomBytes);
+        }
+        this.roomBytes = roomBytes;
+        this.roomMessages = roomMessages;
+        this.parts = new Part[shards];
+        long slotsPerPart = Math.max(1, budgetBytes / roomBytes / shards);
+        for (int i = 0; i < shards; i++) {
+            parts[i] = new Part((int) Math.min(slotsPerPart, Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Remember msg as the newest message of room (owner shard only).
+     */
+    public void add(int room, String name, ChatMessage msg) {
+        part(room).add(room, name, msg);
+    }
+
+    /**
+     * Up to n of the newest messages of room, oldest first (owner shard
+     * only).
+     */
+    public List<ChatMessage> last(int room, String name, int n) {
+        return part(room).read(room, name, Long.MIN_VALUE, n, false);
+    }
+
+    /**
+     * Up to max messages of room sent at or after timestamp, oldest first,
+     * or null if the ring does not reach back that far (owner shard only).
+     */
+    public List<ChatMessage> since(int room, String name, long timestamp, int max) {
+        return part(room).read(room, name, timestamp, max, true);
+    }
+
+    /**
+     * Messages held for room (owner shard only).
+     */
+    public int count(int room, String name) {
+        return part(room).count(room, name);
+    }
+
+    private Part part(int room) {
+        // same mapping as RoomShards.shardOf: a part has a single user
+        return parts[room % parts.length];
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * The slots of one shard.
+     */
+    private final class Part {
+        private final int maxSlots;
+        private final int slotsPerChunk;
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+        private final IntIntMap slotOf = new IntIntMap(); // room id -> slot
+        private final ByteWriter body = new ByteWriter(1024);
+        private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+
+        // per slot (on heap, a few words each)
+        private int[] room = new int[0];
+        private String[] name = new String[0];
+        private int[] start = new int[0];   // offset of the oldest record
+        private int[] used = new int[0];    // bytes of records held
+        private int[] count = new int[0];   // records held
+        // LRU list of the slots in use, most recently written first
+        private int[] prev = new int[0];
+        private int[] next = new int[0];
+        private int head = -1;
+        private int tail = -1;
+        private int[] free = new int[0];    // free slot stack
+        private int freeCount;
+        private int slots;                  // slots allocated so far
+
+        Part(int maxSlots) {
+            this.maxSlots = maxSlots;
+            this.slotsPerChunk = Math.max(1, Math.min(maxSlots, CHUNK_BYTES / roomBytes));
+        }
+
+        void add(int roomId, String roomName, ChatMessage msg) {
+            body.reset();
+            MessageCodecs.BINARY.encodeBody(msg, body);
+            int size = RECORD_HEADER + body.size();
+            if (size > roomBytes) {
+                return; // larger than a whole ring
+            }
+            int slot = slotFor(roomId, roomName, true);
+            while (count[slot] > 0 && (used[slot] + size > roomBytes || count[slot] >= roomMessages)) {
+                dropOldest(slot);
+            }
+            header.clear();
+            header.putInt(body.size()).putLong(msg.getTimestamp());
+            int at = (start[slot] + used[slot]) % roomBytes;
+            at = put(slot, at, header.array(), 0, RECORD_HEADER);
+            put(slot, at, body.array(), 0, body.size());
+            used[slot] += size;
+            count[slot]++;
+            touch(slot);
+        }
+
+        List<ChatMessage> read(int roomId, String roomName, long from, int n, boolean complete) {
+            int slot = slotFor(roomId, roomName, false);
+            List<ChatMessage> out = new ArrayList<>();
+            if (slot < 0) {
+                return complete ? null : out;
+            }
+            byte[] head = new byte[RECORD_HEADER];
+            int at = start[slot];
+            int skip = complete ? 0 : Math.max(0, count[slot] - n);
+            for (int i = 0; i < count[slot] && out.size() < n; i++) {
+                get(slot, at, head, 0, RECORD_HEADER);
+                ByteBuffer h = ByteBuffer.wrap(head);
+                int length = h.getInt(0);
+                long timestamp = h.getLong(4);
+                int bodyAt = (at + RECORD_HEADER) % roomBytes;
+                at = (bodyAt + length) % roomBytes;
+                if (i == 0 && complete && timestamp > from) {
+                    return null; // older messages were dropped
+                }
+                if (i < skip || timestamp < from) {
+                    continue;
+                }
+                byte[] buf = new byte[length];
+                get(slot, bodyAt, buf, 0, length);
+                out.add(MessageCodecs.BINARY.decodeHeader(buf, 0, length));
+            }
+            return out;
+        }
+
+        int count(int roomId, String roomName) {
+            int slot = slotFor(roomId, roomName, false);
+            return slot < 0 ? 0 : count[slot];
+        }
+
+        // ----- Slots -----
+
+        /**
+         * Slot of room, taking one (free, new or least recently written)
+         * if create; -1 if none. Only a write frees the slot of an id that
+         * now names another room: a read with a stale name finds nothing.
+         */
+        private int slotFor(int roomId, String roomName, boolean create) {
+            int slot = slotOf.get(roomId);
+            if (slot >= 0 && !name[slot].equals(roomName)) {
+                if (!create) {
+                    return -1;
+                }
+                release(slot); // the id now names another room
+                slot = -1;
+            }
+            if (slot >= 0 || !create) {
+                return slot;
+            }
+            if (freeCount > 0) {
+                slot = free[--freeCount];
+            } else if (slots < maxSlots) {
+                slot = newSlot();
+            } else {
+                slot = tail;
+                release(slot);
+                freeCount--; // take it back from the free stack
+                evictions.incrementAndGet();
+            }
+            room[slot] = roomId;
+            name[slot] = roomName;
+            start[slot] = 0;
+            used[slot] = 0;
+            count[slot] = 0;
+            slotOf.put(roomId, slot);
+            link(slot);
+            return slot;
+        }
+
+        private int newSlot() {
+            if (slots % slotsPerChunk == 0) {
+                chunks.add(ByteBuffer.allocateDirect(slotsPerChunk * roomBytes));
+                allocatedBytes.addAndGet((long) slotsPerChunk * roomBytes);
+                int capacity = Math.min(maxSlots, slots + slotsPerChunk);
+                room = Arrays.copyOf(room, capacity);
+                name = Arrays.copyOf(name, capacity);
+                start = Arrays.copyOf(start, capacity);
+                used = Arrays.copyOf(used, capacity);
+                count = Arrays.copyOf(count, capacity);
+                prev = Arrays.copyOf(prev, capacity);
+                next = Arrays.copyOf(next, capacity);
+                free = Arrays.copyOf(free, capacity);
+            }
+            return slots++;
+        }
+
+        private void release(int slot) {
+            slotOf.remove(room[slot]);
+            unlink(slot);
+            name[slot] = null;
+            free[freeCount++] = slot;
+        }
+
+        private void dropOldest(int slot) {
+            byte[] head = new byte[4];
+            get(slot, start[slot], head, 0, 4);
+            int size = RECORD_HEADER + ByteBuffer.wrap(head).getInt(0);
+            start[slot] = (start[slot] + size) % roomBytes;
+            used[slot] -= size;
+            count[slot]--;
+        }
+
+        // ----- LRU list -----
+
+        private void touch(int slot) {
+            if (head != slot) {
+                unlink(slot);
+                link(slot);
+            }
+        }
+
+        private void link(int slot) {
+            prev[slot] = -1;
+            next[slot] = head;
+            if (head >= 0) {
+                prev[head] = slot;
+            }
+            head = slot;
+            if (tail < 0) {
+                tail = slot;
+            }
+        }
+
+        private void unlink(int slot) {
+            if (prev[slot] >= 0) {
+                next[prev[slot]] = next[slot];
+            } else {
+                head = next[slot];
+            }
+            if (next[slot] >= 0) {
+                prev[next[slot]] = prev[slot];
+            } else {
+                tail = prev[slot];
+            }
+        }
+
+        // ----- Ring bytes -----
+
+        /**
+         * Copy src into the ring of slot at offset at (wrapping); returns
+         * the offset after it.
+         */
+        private int put(int slot, int at, byte[] src, int offset, int length) {
+            ByteBuffer chunk = chunks.get(slot / slotsPerChunk);
+            int base = (slot % slotsPerChunk) * roomBytes;
+            int first = Math.min(length, roomBytes - at);
+            chunk.put(base + at, src, offset, first);
+            if (first < length) {
+                chunk.put(base, src, offset + first, length - first);
+            }
+            return (at + length) % roomBytes;
+        }
+
+        private void get(int slot, int at, byte[] dst, int offset, int length) {
+            ByteBuffer chunk = chunks.get(slot / slotsPerChunk);
+            int base = (slot % slotsPerChunk) * roomBytes;
+            int first = Math.min(length, roomBytes - at);
+            chunk.get(base + at, dst, offset, first);
+            if (first < length) {
+                chunk.get(base, dst, offset + first, length - first);
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RoomDirectory answers ROOM_LIST_REQUEST from a sorted index of the
+ * rooms that currently have members.
+ *
+ * - A ConcurrentSkipListMap keyed by room name keeps rooms sorted, so a
+ *   prefix search or the next page after a cursor is one O(log n) seek
+ *   plus O(page) steps, even with 100k rooms.
+ * - Member counts are kept up to date by the room's RoomShards owner on
+ *   every join / leave: only that thread writes a room's entry.
+ * - The first page of the plain listing is encoded once per directory
+ *   version and reused until a room or a count changes.
+ *
+ * Request content: one option per line (room names may contain spaces):
+ *   prefix=<text>   only rooms whose name starts with text
+ *   after=<name>    cursor: continue after this room (last one received)
+ *   limit=N         page size (default 50)
+ * Response content: a header line, then "<members> <room>" per line:
+ *   ROOMS total=<rooms> more=<true|false>
+ */
+public class RoomDirectory {
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int MAX_PAGE_SIZE = 500;
+
+    private static final class Entry {
+        volatile int members; // written by the room's owner shard only
+    }
+
+    private static final class CachedPage {
+        final long version;
+        final FrameSet frames;
+
+        CachedPage(long version, FrameSet frames) {
+            this.version = version;
+            this.frames = frames;
+        }
+    }
+
+    private final ConcurrentSkipListMap<String, Entry> rooms = new ConcurrentSkipListMap<>();
+    private final AtomicInteger roomCount = new AtomicInteger();
+    private final AtomicLong version = new AtomicLong();
+    private volatile CachedPage firstPage;
+
+    /**
+     * A member joined room (owner shard only).
+     */
+    public void memberJoined(String room) {
+        Entry entry = rooms.get(room);
+        if (entry == null) {
+            entry = new Entry();
+            rooms.put(room, entry);
+            roomCount.incrementAndGet();
+        }
+        entry.members++;
+        version.incrementAndGet();
+    }
+
+    /**
+     * A member left room (owner shard only); the room goes once empty.
+     */
+    public void memberLeft(String room) {
+        Entry entry = rooms.get(room);
+        if (entry == null) {
+            return;
+        }
+        if (--entry.members <= 0) {
+            rooms.remove(room, entry);
+            roomCount.decrementAndGet();
+        }
+        version.incrementAndGet();
+    }
+
+    public int getRoomCount() {
+        return roomCount.get();
+    }
+
+    /**
+     * Answer a ROOM_LIST_REQUEST whose content is query (may be null).
+     * Throws IllegalArgumentException for a malformed query.
+     */
+    public FrameSet respond(String query) {
+        String prefix = "";
+        String after = null;
+        int limit = DEFAULT_PAGE_SIZE;
+        if (query != null) {
+            for (String option : query.split("\n")) {
+                if (option.isEmpty()) {
+                    continue;
+                }
+                int eq = option.indexOf('=');
+                String key = eq > 0 ? option.substring(0, eq) : option;
+                String value = eq > 0 ? option.substring(eq + 1) : "";
+                switch (key) {
+                    case "prefix":
+                        prefix = value;
+                        break;
+                    case "after":
+                        after = value;
+                        break;
+                    case "limit":
+                        try {
+                            limit = Integer.parseInt(value);
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("Bad number for limit: " + value);
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + key);
+                }
+            }
+        }
+        if (limit <= 0 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("limit must be in 1.." + MAX_PAGE_SIZE);
+        }
+        return page(prefix, after, limit);
+    }
+
+    /**
+     * Up to limit rooms starting with prefix, after cursor (exclusive,
+     * null = from the start).
+     */
+    public FrameSet page(String prefix, String after, int limit) {
+        boolean cacheable = prefix.isEmpty() && after == null && limit == DEFAULT_PAGE_SIZE;
+        long v = version.get();
+        if (cacheable) {
+            CachedPage cached = firstPage;
+            if (cached != null && cached.version == v) {
+                return cached.frames;
+            }
+        }
+
+        // seek once, then walk the page in order
+        Map<String, Entry> tail = after != null && after.compareTo(prefix) >= 0
+                ? rooms.tailMap(after, false)
+                : rooms.tailMap(prefix, true);
+        StringBuilder lines = new StringBuilder();
+        int count = 0;
+        boolean more = false;
+        for (Map.Entry<String, Entry> e : tail.entrySet()) {
+            if (!e.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (count == limit) {
+                more = true;
+                break;
+            }
+            lines.append('\n').append(e.getValue().members).append(' ').append(e.getKey());
+            count++;
+        }
+
+        ChatMessage msg = new ChatMessage(MessageType.ROOM_LIST_RESPONSE);
+        msg.setSender("SERVER");
+        msg.setContent("ROOMS total=" + roomCount.get() + " more=" + more + lines);
+        FrameSet frames = new FrameSet(msg);
+        if (cacheable) {
+            firstPage = new CachedPage(v, frames);
+        }
+        return frames;
+    }
+}
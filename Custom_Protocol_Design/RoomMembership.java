@@ -0,0 +1,113 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * RoomMembership is the member index of all rooms: room id (NameInterner)
+ * -> member session ids (SessionTable).
+ *
+ * - Rooms are found by indexing fixed-size chunks of an array, never by
+ *   hashing a name; chunks are only ever added, never copied.
+ * - Each room keeps its members in an IntSet: join, leave and contains
+ *   are O(1) and fan-out is a scan of a dense int[].
+ * - A user sitting in 50 rooms costs 50 set entries, so leaving every
+ *   room on disconnect is 50 O(1) removals.
+ * - Every change bumps the room's version.
+ * - A room is only changed and read by its RoomShards owner, so members
+ *   need no lock and broadcast never copies them.
+ * - A room disappears when its last member leaves.
+ */
+public class RoomMembership {
+
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int MAX_CHUNKS = 4096; // 4M room ids
+
+    /**
+     * Members of one room. Not thread-safe: owner shard only.
+     */
+    public static final class Members {
+        private final IntSet ids = new IntSet();
+        private long version;
+
+        public int size() {
+            return ids.size();
+        }
+
+        public int idAt(int i) {
+            return ids.get(i);
+        }
+
+        public boolean contains(int id) {
+            return ids.contains(id);
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    private final AtomicReferenceArray<Members[]> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+    private final AtomicInteger roomCount = new AtomicInteger();
+
+    /**
+     * Add member to room (owner shard only). Returns false if already in.
+     */
+    public boolean join(int room, int member) {
+        Members[] chunk = chunk(room, true);
+        int slot = room & (CHUNK_SIZE - 1);
+        Members members = chunk[slot];
+        if (members == null) {
+            members = new Members();
+            chunk[slot] = members;
+            roomCount.incrementAndGet();
+        }
+        if (!members.ids.add(member)) {
+            return false;
+        }
+        members.version++;
+        return true;
+    }
+
+    /**
+     * Remove member from room (owner shard only). Returns false if not in.
+     */
+    public boolean leave(int room, int member) {
+        Members[] chunk = chunk(room, false);
+        int slot = room & (CHUNK_SIZE - 1);
+        Members members = chunk != null ? chunk[slot] : null;
+        if (members == null || !members.ids.remove(member)) {
+            return false;
+        }
+        members.version++;
+        if (members.ids.isEmpty()) {
+            chunk[slot] = null;
+            roomCount.decrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * Members of room, or null if nobody is in it (owner shard only).
+     */
+    public Members members(int room) {
+        Members[] chunk = chunk(room, false);
+        return chunk != null ? chunk[room & (CHUNK_SIZE - 1)] : null;
+    }
+
+    public int roomCount() {
+        return roomCount.get();
+    }
+
+    private Members[] chunk(int room, boolean create) {
+        int c = room >>> CHUNK_BITS;
+        if (c >= MAX_CHUNKS) {
+            throw new IllegalArgumentException("Room id out of range: " + room);
+        }
+        Members[] chunk = chunks.get(c);
+        if (chunk == null && create) {
+            chunks.compareAndSet(c, null, new Members[CHUNK_SIZE]);
+            chunk = chunks.get(c);
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * RoomShards runs room operations on a fixed set of single-threaded
+ * owners ("actors").
+ *
+ * - Every room id (see NameInterner) maps to one shard; only that
+ *   shard's thread ever changes the room's membership or fans out its
+ *   messages.
+ * - Any thread submits commands through the shard's mailbox, a lock-free
+ *   multi-producer / single-consumer queue.
+ * - A shard runs its commands one at a time in submission order, so all
+ *   operations of one room are totally ordered (a JOIN submitted before
+ *   a TEXT is applied before it), while different shards run in parallel.
+ * - An idle shard parks and is unparked by the next submit.
+ */
+public class RoomShards {
+
+    private final Shard[] shards;
+
+    public RoomShards(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("shard count must be > 0: " + count);
+        }
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard("room-shard-" + i);
+            shards[i].start();
+        }
+    }
+
+    public int size() {
+        return shards.length;
+    }
+
+    /**
+     * Run command on the shard that owns room.
+     */
+    public void submit(int room, Runnable command) {
+        shardFor(room).submit(command);
+    }
+
+    /**
+     * True if the calling thread is the owner of room.
+     */
+    public boolean isOwner(int room) {
+        return Thread.currentThread() == shardFor(room);
+    }
+
+    /**
+     * Index of the shard that owns room.
+     */
+    public int shardOf(int room) {
+        // room ids are dense, so a modulo spreads them evenly
+        return room % shards.length;
+    }
+
+    private Shard shardFor(int room) {
+        return shards[shardOf(room)];
+    }
+
+    /**
+     * Stop all shards after the commands already submitted; later ones
+     * never run.
+     */
+    public void shutdown() {
+        for (Shard shard : shards) {
+            shard.submit(shard::finish);
+        }
+    }
+
+    /**
+     * Wait up to millis for every shard to stop (after shutdown()).
+     * Returns false on timeout.
+     */
+    public boolean awaitTermination(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        for (Shard shard : shards) {
+            long left = deadline - System.currentTimeMillis();
+            if (left > 0) {
+                shard.join(left);
+            }
+            if (shard.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Shard extends Thread {
+        private final ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+        private volatile boolean idle;
+        private boolean running = true; // only touched by this thread
+
+        Shard(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        void submit(Runnable command) {
+            mailbox.offer(command);
+            if (idle) {
+                LockSupport.unpark(this);
+            }
+        }
+
+        void finish() {
+            running = false;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Runnable command = mailbox.poll();
+                if (command == null) {
+                    idle = true;
+                    // re-check after publishing idle, or a submit could be missed
+                    if (mailbox.isEmpty()) {
+                        LockSupport.park(this);
+                    }
+                    idle = false;
+                    continue;
+                }
+                try {
+                    command.run();
+                } catch (RuntimeException e) {
+                    EventLog.warn("shard.command_failed", "shard", getName(), "error", e);
+                }
+            }
+        }
+    }
+}
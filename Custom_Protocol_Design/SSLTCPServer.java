@@ -7,6 +7,7 @@ public class SSLTCPServer {
     private int port;
     private SSLServerSocket serverSocket;
     private boolean isRunning;
+    private boolean useVirtualThreads; // one virtual thread per client (Java 21+)
 
     public SSLTCPServer(int port, String keystorePath, String password) throws Exception {
         this.port = port;
@@ -37,12 +38,16 @@ public class SSLTCPServer {
         return ctx;
     }
 
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = VirtualThreads.resolve(useVirtualThreads);
+    }
+
     public void launch() throws IOException {
         while (isRunning) {
             SSLSocket client = (SSLSocket) serverSocket.accept();
             System.out.println("Client connected: " + client.getInetAddress());
 
-            new Thread(() -> handleClient(client)).start();
+            VirtualThreads.start(() -> handleClient(client), useVirtualThreads);
         }
     }
 
@@ -81,6 +86,8 @@ public class SSLTCPServer {
     // entry point
     public static void main(String[] args) throws Exception {
         SSLTCPServer server = new SSLTCPServer(8443, "server.jks", "password123");
+        // "java SSLTCPServer virtual" runs each client on a virtual thread
+        server.setUseVirtualThreads(args.length > 0 && args[0].equals("virtual"));
         server.launch();
     }
 }
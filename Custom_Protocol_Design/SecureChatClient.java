@@ -1,6 +1,8 @@
 import java.io.*;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
 import javax.net.ssl.*;
 
 /**
@@ -8,10 +10,19 @@ import javax.net.ssl.*;
  * - Connects to SecureChatServer over TLS.
  * - Supports commands:
  *   /login <name>        : login
- *   /join <room>         : join or create a room
+ *   /join <room>         : join or create a room (other rooms are kept)
+ *   /join <room> last=N  : ... and replay its last N messages
+ *                          (or since=<epoch millis>, after=<log sequence>)
+ *   /leave <room>        : leave a room
  *   /msg <text>          : send message to current room
  *   /pm <user> <text>    : send private message
+ *   /users [offset]      : list online users (one page)
+ *   /users delta         : only the logins / logouts since the last list
+ *   /rooms [prefix]      : list rooms (with member counts)
+ *   /rooms more          : next page of the last room listing
  *   /quit                : exit
+ * - Start with --codec=binary or --codec=cbor to ask the server for
+ *   another MessageCodec; JSON is used until the server accepts.
  */
 public class SecureChatClient {
 
@@ -25,6 +36,18 @@ public class SecureChatClient {
     private volatile boolean running = true;
 
     private String currentRoom = null;
+    // version of the last user list received, for /users delta
+    private volatile long userListVersion = -1;
+    // last room listing, for /rooms more
+    private volatile String roomListPrefix = "";
+    private volatile String roomListCursor = null;
+    // room -> time of the JOIN OK; older room messages are history
+    // (reader thread only)
+    private final Map<String, Long> joinedAt = new HashMap<>();
+
+    // codec asked for at login, and the one currently in use
+    private MessageCodec requestedCodec = MessageCodecs.JSON;
+    private volatile MessageCodec codec = MessageCodecs.JSON;
 
     public SecureChatClient(String host, int port, boolean trustAll) {
         this.host = host;
@@ -54,6 +77,10 @@ public class SecureChatClient {
         return ctx;
     }
 
+    public void setRequestedCodec(MessageCodec requestedCodec) {
+        this.requestedCodec = requestedCodec;
+    }
+
     public void connect() throws Exception {
         SSLContext ctx = trustAll ? createTrustAllContext() : SSLContext.getDefault();
         SSLSocketFactory factory = ctx.getSocketFactory();
@@ -78,8 +105,14 @@ public class SecureChatClient {
         System.out.println("Commands:");
         System.out.println("  /login <name>        - log in with a username");
         System.out.println("  /join <room>         - join or create a room");
+        System.out.println("  /join <room> last=N  - ... and show its last N messages");
+        System.out.println("  /leave <room>        - leave a room");
         System.out.println("  /msg <text>          - send message to current room");
         System.out.println("  /pm <user> <text>    - send private message");
+        System.out.println("  /users [offset]      - list online users");
+        System.out.println("  /users delta         - user changes since the last list");
+        System.out.println("  /rooms [prefix]      - list rooms");
+        System.out.println("  /rooms more          - next page of rooms");
         System.out.println("  /quit                - exit");
 
         while (running) {
@@ -98,19 +131,38 @@ public class SecureChatClient {
                     System.out.println("Username cannot be empty.");
                     continue;
                 }
+                // the login itself is always JSON; the version asks for a codec
                 ChatMessage msg = new ChatMessage(MessageType.LOGIN_REQUEST);
+                msg.setVersion(requestedCodec.getVersion());
                 msg.setContent(username);
                 msg.writeTo(out);
 
             } else if (line.startsWith("/join ")) {
                 String room = line.substring(6).trim();
+                String history = null;
+                int sp = room.lastIndexOf(' ');
+                if (sp > 0 && room.substring(sp + 1).matches("(last|since|after)=\\d+")) {
+                    history = room.substring(sp + 1);
+                    room = room.substring(0, sp).trim();
+                }
                 if (room.isEmpty()) {
                     System.out.println("Room name cannot be empty.");
                     continue;
                 }
                 ChatMessage msg = new ChatMessage(MessageType.JOIN_ROOM_REQUEST);
                 msg.setRoom(room);
-                msg.writeTo(out);
+                msg.setContent(history);
+                send(msg);
+
+            } else if (line.startsWith("/leave ")) {
+                String room = line.substring(7).trim();
+                if (room.isEmpty()) {
+                    System.out.println("Room name cannot be empty.");
+                    continue;
+                }
+                ChatMessage msg = new ChatMessage(MessageType.LEAVE_ROOM_REQUEST);
+                msg.setRoom(room);
+                send(msg);
 
             } else if (line.startsWith("/msg ")) {
                 String text = line.substring(5).trim();
@@ -122,7 +174,7 @@ public class SecureChatClient {
                 if (currentRoom != null) {
                     msg.setRoom(currentRoom);
                 }
-                msg.writeTo(out);
+                send(msg);
 
             } else if (line.startsWith("/pm ")) {
                 // /pm <user> <text>
@@ -141,7 +193,41 @@ public class SecureChatClient {
                 ChatMessage msg = new ChatMessage(MessageType.PRIVATE_MESSAGE);
                 msg.setRecipient(targetUser);
                 msg.setContent(text);
-                msg.writeTo(out);
+                send(msg);
+
+            } else if (line.equals("/users") || line.startsWith("/users ")) {
+                String arg = line.substring(6).trim();
+                ChatMessage msg = new ChatMessage(MessageType.USER_LIST_REQUEST);
+                if (arg.equals("delta")) {
+                    if (userListVersion < 0) {
+                        System.out.println("No user list yet, use /users first.");
+                        continue;
+                    }
+                    msg.setContent("since=" + userListVersion);
+                } else if (!arg.isEmpty()) {
+                    msg.setContent("offset=" + arg);
+                }
+                send(msg);
+
+            } else if (line.equals("/rooms") || line.startsWith("/rooms ")) {
+                String arg = line.substring(6).trim();
+                StringBuilder query = new StringBuilder();
+                if (arg.equals("more")) {
+                    if (roomListCursor == null) {
+                        System.out.println("No more rooms.");
+                        continue;
+                    }
+                    query.append("after=").append(roomListCursor).append('\n');
+                } else {
+                    roomListPrefix = arg;
+                    roomListCursor = null;
+                }
+                if (!roomListPrefix.isEmpty()) {
+                    query.append("prefix=").append(roomListPrefix);
+                }
+                ChatMessage msg = new ChatMessage(MessageType.ROOM_LIST_REQUEST);
+                msg.setContent(query.toString());
+                send(msg);
 
             } else if (line.equals("/quit")) {
                 System.out.println("Closing connection...");
@@ -152,15 +238,23 @@ public class SecureChatClient {
                 break;
 
             } else {
-                System.out.println("Unknown command. Use /login, /join, /msg, /pm or /quit.");
+                System.out.println("Unknown command. Use /login, /join, /leave, /msg, /pm, /users, /rooms or /quit.");
             }
         }
     }
 
+    private void send(ChatMessage msg) throws IOException {
+        msg.encode(codec).writeTo(out);
+        out.flush();
+    }
+
     private void readLoop() {
         try {
+            FrameDecoder decoder = new FrameDecoder(FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
             while (running) {
-                ChatMessage msg = ChatMessage.readFrom(in);
+                decoder.readFrame(in);
+                ChatMessage msg = ChatMessage.fromBytes(
+                        decoder.frameArray(), decoder.frameOffset(), decoder.frameLength());
                 handleIncoming(msg);
             }
         } catch (IOException e) {
@@ -179,20 +273,38 @@ public class SecureChatClient {
 
         switch (msg.getType()) {
             case LOGIN_RESPONSE:
-                System.out.println("[LOGIN] " + msg.getContent());
+                if ("OK".equals(msg.getContent())) {
+                    codec = MessageCodecs.forVersion(msg.getVersion());
+                }
+                System.out.println("[LOGIN] " + msg.getContent()
+                        + " (codec " + codec.getName() + ")");
                 break;
             case JOIN_ROOM_RESPONSE:
                 if ("OK".equals(msg.getContent())) {
                     currentRoom = msg.getRoom();
+                    joinedAt.put(currentRoom, msg.getTimestamp());
                     System.out.println("[ROOM] joined room: " + currentRoom);
                 } else {
                     System.out.println("[ROOM] join failed: " + msg.getContent());
                 }
                 break;
+            case LEAVE_ROOM_RESPONSE:
+                if ("OK".equals(msg.getContent())) {
+                    if (msg.getRoom() != null && msg.getRoom().equals(currentRoom)) {
+                        currentRoom = null; // the server picks another joined room
+                    }
+                    System.out.println("[ROOM] left room: " + msg.getRoom());
+                } else {
+                    System.out.println("[ROOM] leave failed: " + msg.getContent());
+                }
+                break;
             case TEXT_MESSAGE:
                 String room = msg.getRoom();
                 String sender = msg.getSender() != null ? msg.getSender() : "UNKNOWN";
-                if (room != null) {
+                Long since = room != null ? joinedAt.get(room) : null;
+                if (since != null && msg.getTimestamp() < since) {
+                    System.out.println("[" + room + "][" + sender + "] (history): " + msg.getContent());
+                } else if (room != null) {
                     System.out.println("[" + room + "][" + sender + "]: " + msg.getContent());
                 } else {
                     System.out.println("[" + sender + "]: " + msg.getContent());
@@ -202,6 +314,12 @@ public class SecureChatClient {
                 String from = msg.getSender() != null ? msg.getSender() : "UNKNOWN";
                 System.out.println("[PM from " + from + "]: " + msg.getContent());
                 break;
+            case USER_LIST_RESPONSE:
+                handleUserList(msg.getContent());
+                break;
+            case ROOM_LIST_RESPONSE:
+                handleRoomList(msg.getContent());
+                break;
             case ERROR_RESPONSE:
                 System.out.println("[ERROR] " + msg.getContent());
                 break;
@@ -211,8 +329,54 @@ public class SecureChatClient {
         }
     }
 
+    private void handleUserList(String content) {
+        if (content == null) {
+            return;
+        }
+        String[] lines = content.split("\n");
+        // header: USERS|DELTA v=<version> ...
+        for (String field : lines[0].split(" ")) {
+            if (field.startsWith("v=")) {
+                try {
+                    userListVersion = Long.parseLong(field.substring(2));
+                } catch (NumberFormatException ignored) {}
+            }
+        }
+        System.out.println("[USERS] " + lines[0]);
+        for (int i = 1; i < lines.length; i++) {
+            System.out.println("  " + lines[i]);
+        }
+    }
+
+    private void handleRoomList(String content) {
+        if (content == null) {
+            return;
+        }
+        // header: ROOMS total=<n> more=<true|false>, then "<members> <room>"
+        String[] lines = content.split("\n");
+        String last = null;
+        System.out.println("[ROOMS] " + lines[0]);
+        for (int i = 1; i < lines.length; i++) {
+            int space = lines[i].indexOf(' ');
+            last = space >= 0 ? lines[i].substring(space + 1) : lines[i];
+            System.out.println("  " + last + " (" + (space >= 0 ? lines[i].substring(0, space) : "?") + ")");
+        }
+        roomListCursor = lines[0].endsWith("more=true") ? last : null;
+        if (roomListCursor != null) {
+            System.out.println("  ... /rooms more for the next page");
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         SecureChatClient client = new SecureChatClient("localhost", 8443, true);
+        if (args.length > 0 && args[0].startsWith("--codec=")) {
+            MessageCodec requested = MessageCodecs.forName(args[0].substring(8));
+            if (requested == null) {
+                System.out.println("Unknown codec, using json: " + args[0]);
+            } else {
+                client.setRequestedCodec(requested);
+            }
+        }
         client.connect();
         client.startConsole();
         System.out.println("Client terminated.");
@@ -1,10 +1,13 @@
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Paths;
 import java.security.KeyStore;
-import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.ssl.*;
 
 /**
@@ -12,34 +15,175 @@ import javax.net.ssl.*;
  * - TLS server using server.jks keystore.
  * - Supports:
  *   * LOGIN_REQUEST / LOGIN_RESPONSE
- *   * JOIN_ROOM_REQUEST / JOIN_ROOM_RESPONSE
+ *   * JOIN_ROOM_REQUEST / JOIN_ROOM_RESPONSE  (a user can be in many rooms)
+ *   * LEAVE_ROOM_REQUEST / LEAVE_ROOM_RESPONSE
  *   * TEXT_MESSAGE  (room-based broadcast)
  *   * PRIVATE_MESSAGE (direct user-to-user)
+ *   * USER_LIST_REQUEST / USER_LIST_RESPONSE (pages or deltas, see
+ *     PresenceDirectory)
+ *   * ROOM_LIST_REQUEST / ROOM_LIST_RESPONSE (prefix search and cursor
+ *     pages, see RoomDirectory)
  *   * ERROR_RESPONSE
+ * - MessageCodec per connection: JSON ("1.0") by default, or the codec
+ *   whose version the client sends in its LOGIN_REQUEST (binary "2.0",
+ *   CBOR "3.0").
+ * - Incoming frames are decoded as routing headers only: the content of
+ *   TEXT_MESSAGE / PRIVATE_MESSAGE is forwarded as raw bytes.
+ * - Routed TEXT_MESSAGE / PRIVATE_MESSAGE are appended to a MessageLog
+ *   (--logDir, memory-mapped segments written by their own thread) and
+ *   made durable by group commits. A room whose durability is "message"
+ *   (--roomDurability) is broadcast only once its message is on disk.
+ * - Each room keeps its last messages in an off-heap ring (RecentFrames,
+ *   --recentBudgetBytes). A JOIN_ROOM_REQUEST may ask for the room's
+ *   history (last=N, since=T or after=S in its content); it comes from
+ *   the ring when it holds enough, else from the log, and is streamed by
+ *   HistoryReplay, off the room's shard.
+ * - A PRIVATE_MESSAGE to a user who is not connected is kept in their
+ *   Mailbox (--mailDir) and delivered right after their next login.
+ * - ServerState keeps per-room log stats and the rooms each logged-in
+ *   user is in. SnapshotStore writes it to --snapshotDir every
+ *   --snapshotSeconds, off-thread; a restart loads the latest snapshot,
+ *   applies only the log written after it, and joins each user again to
+ *   their rooms at their first login after the restart.
+ * - Server events go through EventLog (asynchronous, levels, sampling);
+ *   chat lines are logged at DEBUG only.
+ * - Two transports, chosen at startup (see ChatServerConfig):
+ *   * BLOCKING : one thread per SSLSocket
+ *   * NIO      : SSLEngine on a few Selector event loops (NioChatTransport)
+ * - In BLOCKING mode each ClientHandler runs on a platform thread or,
+ *   with --virtualThreads=true (Java 21+), on a virtual thread.
+ *   Users live in a lock-free UserRegistry; rooms are owned by
+ *   RoomShards, whose single-threaded owners apply joins, leaves and
+ *   broadcasts in order, so no handler thread blocks on a shared monitor
+ *   (and a virtual thread never pins its carrier).
  */
 public class SecureChatServer {
 
     private final int port;
+    private final ChatServerConfig config;
     private SSLServerSocket serverSocket;
+    private NioChatTransport nioTransport;
+    private final boolean virtualThreads;
+    private final WriteStats writeStats = new WriteStats();
+    private final ParallelFanOut parallelFanOut;
+    private final MessageLog messageLog; // null if disabled
+    private final RecentFrames recent; // null if disabled
+    private final HistoryReplay historyReplay; // null without log and ring, or with --historyMax=0
+    private final Mailbox mailbox; // null if disabled
+    private final ServerState state = new ServerState();
+    private final SnapshotStore snapshots; // null if disabled
     private volatile boolean running = true;
 
-    // username -> ClientHandler
-    private final Map<String, ClientHandler> clients =
-            Collections.synchronizedMap(new HashMap<>());
+    // username -> ClientHandler (lock-free)
+    private final UserRegistry<ClientHandler> clients = new UserRegistry<>();
+    // sorted, versioned user list for USER_LIST_REQUEST
+    private final PresenceDirectory presence = new PresenceDirectory();
 
-    // roomName -> set of ClientHandler
-    private final Map<String, Set<ClientHandler>> rooms =
-            Collections.synchronizedMap(new HashMap<>());
+    // session id -> ClientHandler, for logged-in users
+    private final SessionTable<ClientHandler> sessions = new SessionTable<>();
+    // roomName <-> room id, pinned by every member and in-flight command
+    private final NameInterner roomNames = new NameInterner();
+    // room id -> member session ids (owned by the room's shard)
+    private final RoomMembership rooms = new RoomMembership();
+    // sorted room names with member counts, for ROOM_LIST_REQUEST
+    private final RoomDirectory directory = new RoomDirectory();
+    // single-threaded owners of room membership and fan-out
+    private final RoomShards roomShards;
+    // room name -> sequence number of the last logged message broadcast to
+    // it (written by the room's shard); where its history replay ends
+    private final ConcurrentHashMap<String, Long> broadcastSequence = new ConcurrentHashMap<>();
+    // first sequence number logged by this process
+    private final long firstSequence;
 
     // default room name
     private static final String DEFAULT_ROOM = "lobby";
+    // events the logger can hold before it drops
+    private static final int EVENT_BUFFER = 8192;
 
     public SecureChatServer(int port, String keystorePath, String keystorePassword) throws Exception {
-        this.port = port;
-        SSLContext ctx = createSSLContext(keystorePath, keystorePassword);
-        SSLServerSocketFactory factory = ctx.getServerSocketFactory();
-        this.serverSocket = (SSLServerSocket) factory.createServerSocket(port);
-        System.out.println("SecureChatServer listening on port " + port);
+        this(configFor(port, keystorePath, keystorePassword));
+    }
+
+    public SecureChatServer(ChatServerConfig config) throws Exception {
+        long startNanos = System.nanoTime();
+        EventLog.configure(config.getEventLevel(),
+                config.getEventLogFile().isEmpty() ? null : Paths.get(config.getEventLogFile()),
+                EVENT_BUFFER, config.getEventSampling());
+        this.config = config;
+        this.port = config.getPort();
+        this.virtualThreads = VirtualThreads.resolve(config.isVirtualThreads(),
+                warning -> EventLog.warn("server.virtual_threads_unavailable", "reason", warning));
+        this.roomShards = new RoomShards(config.getRoomShards());
+        this.parallelFanOut = new ParallelFanOut(config.getParallelFanOutThreshold(),
+                config.getFanOutPartitionSize(), Runtime.getRuntime().availableProcessors());
+        this.messageLog = config.isMessageLogEnabled()
+                ? new MessageLog(Paths.get(config.getLogDir()), config.getLogSegmentBytes(),
+                        config.getLogRetentionBytes(), config.getCommitMillis(), config.getCommitBytes())
+                : null;
+        this.snapshots = config.isSnapshotEnabled()
+                ? new SnapshotStore(Paths.get(config.getSnapshotDir()), state, config.getSnapshotSeconds())
+                : null;
+        restoreState(startNanos);
+        this.firstSequence = messageLog != null ? messageLog.getNextSequence() : 1;
+        this.recent = config.isRecentFramesEnabled()
+                ? new RecentFrames(roomShards.size(), config.getRecentBudgetBytes(),
+                        config.getRecentRoomBytes(), config.getRecentMessages())
+                : null;
+        this.historyReplay = (messageLog != null || recent != null) && config.getHistoryMax() > 0
+                ? new HistoryReplay(messageLog, recent, state,
+                        config.getHistoryMax(), config.getHistoryBatch(), 2)
+                : null;
+        this.mailbox = config.isMailboxEnabled()
+                ? new Mailbox(Paths.get(config.getMailDir()), config.getMailboxQuota(),
+                        TimeUnit.SECONDS.toMillis(config.getMailboxTtlSeconds()), config.getHistoryBatch())
+                : null;
+        SSLContext ctx = createSSLContext(config.getKeystorePath(), config.getKeystorePassword());
+
+        if (config.getTransportMode() == ChatServerConfig.TransportMode.NIO) {
+            this.nioTransport = new NioChatTransport(ctx, port, config.getEventLoopThreads(),
+                    this::newOutboundQueue, ClientHandler::new, writeStats, config.getMaxFrameSize());
+        } else {
+            SSLServerSocketFactory factory = ctx.getServerSocketFactory();
+            this.serverSocket = (SSLServerSocket) factory.createServerSocket(port);
+        }
+        EventLog.info("server.listening", "port", port, "transport", config.getTransportMode(),
+                "virtualThreads", virtualThreads);
+    }
+
+    private static ChatServerConfig configFor(int port, String keystorePath, String keystorePassword) {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setPort(port);
+        config.setKeystorePath(keystorePath);
+        config.setKeystorePassword(keystorePassword);
+        return config;
+    }
+
+    /**
+     * Load the latest snapshot, then apply the log written after it (the
+     * whole log without one), before any client connects. A snapshot the
+     * log does not match (records lost in a crash, or another log) only
+     * gives the memberships.
+     */
+    private void restoreState(long startNanos) throws IOException {
+        ServerState.Snapshot snapshot = snapshots != null ? snapshots.load() : null;
+        long logEnd = messageLog != null ? messageLog.getNextSequence() : 1;
+        if (snapshot != null) {
+            boolean matches = messageLog != null && ServerState.matches(snapshot, logEnd);
+            if (messageLog != null && !matches) {
+                EventLog.warn("snapshot.stale", "sequence", snapshot.getSequence(), "logEnd", logEnd);
+            }
+            state.restore(snapshot, matches);
+        }
+        long replayed = 0;
+        if (messageLog != null) {
+            MessageLogReader reader = new MessageLogReader(messageLog.getDirectory(), 0);
+            replayed = reader.forEach(state.getAppliedSequence() - 1, logEnd, state::apply);
+            messageLog.setListener(state::apply);
+        }
+        EventLog.info("server.state_restored",
+                "snapshot", snapshot != null ? snapshot.getSequence() : "none",
+                "replayed", replayed,
+                "millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
     }
 
     private SSLContext createSSLContext(String keystorePath, String keystorePassword) throws Exception {
@@ -58,121 +202,526 @@ public class SecureChatServer {
     }
 
     public void start() throws IOException {
+        if (nioTransport != null) {
+            nioTransport.start();
+            return;
+        }
         while (running) {
-            SSLSocket socket = (SSLSocket) serverSocket.accept();
-            System.out.println("Client connected: " + socket.getInetAddress());
+            SSLSocket socket;
+            try {
+                socket = (SSLSocket) serverSocket.accept();
+            } catch (IOException e) {
+                if (!running) {
+                    break; // closed by shutdown()
+                }
+                throw e;
+            }
+            EventLog.info("client.connected", "remote", socket.getInetAddress());
             ClientHandler handler = new ClientHandler(socket);
-            new Thread(handler).start();
+            VirtualThreads.start(handler, virtualThreads);
         }
     }
 
-    private void addToRoom(String room, ClientHandler handler) {
-        synchronized (rooms) {
-            rooms.computeIfAbsent(room, r -> Collections.synchronizedSet(new HashSet<>()));
-            rooms.get(room).add(handler);
+    /**
+     * Stop in dependency order (called from a shutdown hook): first stop
+     * accepting and reading clients, then let the room shards run what
+     * they were given, then close what persists: replays, mailbox, the
+     * message log, a last snapshot, and the event log last. Users still
+     * connected keep their rooms for the next start (see removeClient).
+     */
+    public void shutdown() {
+        running = false;
+        if (nioTransport != null) {
+            nioTransport.shutdown();
+        } else {
+            try {
+                serverSocket.close();
+            } catch (IOException ignored) {}
+            sessions.forEach(ClientHandler::closeSocket);
+        }
+        roomShards.shutdown();
+        try {
+            if (!roomShards.awaitTermination(5000)) {
+                EventLog.warn("server.shards_busy", "shards", roomShards.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        if (historyReplay != null) {
+            historyReplay.shutdown();
+        }
+        if (mailbox != null) {
+            mailbox.shutdown();
+        }
+        if (messageLog != null) {
+            try {
+                messageLog.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (snapshots != null) {
+            snapshots.shutdown(); // after the log: it has applied every record
+        }
+        EventLog.shutdown();
     }
 
-    private void removeFromRoom(String room, ClientHandler handler) {
-        synchronized (rooms) {
-            Set<ClientHandler> set = rooms.get(room);
-            if (set != null) {
-                set.remove(handler);
-                if (set.isEmpty()) {
-                    rooms.remove(room);
-                }
+    public WriteStats getWriteStats() {
+        return writeStats;
+    }
+
+    public FanOutStats getFanOutStats() {
+        return parallelFanOut.getStats();
+    }
+
+    public MessageLog getMessageLog() {
+        return messageLog;
+    }
+
+    /**
+     * Persist a routed message; only enqueues, never waits for the disk.
+     */
+    private void persist(ChatMessage msg, MessageLog.Durability durability) {
+        if (messageLog != null && messageLog.append(msg, durability) == MessageLog.FAILED
+                && messageLog.getDropped() % 1000 == 1) {
+            EventLog.warn("log.queue_full", "dropped", messageLog.getDropped());
+        }
+    }
+
+    private <T> OutboundQueue<T> newOutboundQueue() {
+        return new OutboundQueue<>(config.getOutboundQueueCapacity(), config.getOverflowPolicy());
+    }
+
+    // ----- Room commands (run on the room's shard) -----
+
+    private void addMember(int room, int id) {
+        if (rooms.join(room, id)) {
+            directory.memberJoined(roomNames.name(room));
+        }
+    }
+
+    private void removeMember(int room, int id) {
+        if (rooms.leave(room, id)) {
+            directory.memberLeft(roomNames.name(room));
+        }
+    }
+
+    private void joinRoom(int room, ClientHandler handler, ChatMessage reply, ChatMessage notice) {
+        joinRoom(room, handler, reply, notice, null);
+    }
+
+    /**
+     * Add handler to room, then send it reply and broadcast notice (both
+     * optional). Running all three on the shard means the joiner sees its
+     * reply before any message of the room. A history replay (optional)
+     * covers the messages logged before the join and runs off the shard.
+     */
+    private void joinRoom(int room, ClientHandler handler, ChatMessage reply, ChatMessage notice,
+                          HistoryReplay.Request history) {
+        int id = handler.getId();
+        roomShards.submit(room, () -> {
+            addMember(room, id);
+            if (reply != null) {
+                sendTo(handler, reply);
+            }
+            if (history != null) {
+                String name = roomNames.name(room);
+                historyReplay.replay(room, name, history, replayEnd(name), handler);
+            }
+            if (notice != null) {
+                fanOut(room, notice);
+            }
+        });
+    }
+
+    /**
+     * Remove handler from room, then send it reply and broadcast notice
+     * (both optional); no room message follows the reply. The member's
+     * pin on the room id is dropped last.
+     */
+    private void leaveRoom(int room, ClientHandler handler, ChatMessage reply, ChatMessage notice) {
+        int id = handler.getId();
+        roomShards.submit(room, () -> {
+            removeMember(room, id);
+            if (reply != null) {
+                sendTo(handler, reply);
+            }
+            if (notice != null) {
+                fanOut(room, notice);
             }
+            roomNames.release(room);
+        });
+    }
+
+    /**
+     * Disconnect: leave every room of handler. The session id is recycled
+     * only after the last shard has dropped it, so a new session can never
+     * receive messages of rooms it did not join.
+     */
+    private void leaveAllRooms(ClientHandler handler, String username) {
+        int id = handler.getId();
+        IntSet joined = handler.getRooms();
+        if (joined.isEmpty()) {
+            sessions.release(id);
+            return;
+        }
+        AtomicInteger pending = new AtomicInteger(joined.size());
+        for (int i = 0; i < joined.size(); i++) {
+            int room = joined.get(i);
+            ChatMessage notice = new ChatMessage(MessageType.TEXT_MESSAGE);
+            notice.setSender("SERVER");
+            notice.setRoom(roomNames.name(room));
+            notice.setContent(username + " left the chat");
+            roomShards.submit(room, () -> {
+                removeMember(room, id);
+                fanOut(room, notice);
+                roomNames.release(room);
+                if (pending.decrementAndGet() == 0) {
+                    sessions.release(id);
+                }
+            });
         }
     }
 
-    private void broadcastToRoom(String room, ChatMessage msg) {
-        Set<ClientHandler> targets;
-        synchronized (rooms) {
-            targets = rooms.get(room) != null
-                    ? new HashSet<>(rooms.get(room))
-                    : Collections.emptySet();
+    /**
+     * Log (if durability is not null) and broadcast sender's message to a
+     * room the sender is a member of (its id is pinned).
+     */
+    private void broadcastToRoom(int room, ChatMessage msg, MessageLog.Durability durability,
+                                 ClientHandler sender) {
+        roomShards.submit(room, () -> {
+            logOnShard(msg, durability, sender);
+            remember(room, msg);
+            fanOut(room, msg);
+        });
+    }
+
+    /**
+     * As above, to a room by name, pinning its id until the broadcast ran.
+     */
+    private void broadcastToRoom(String roomName, ChatMessage msg, MessageLog.Durability durability,
+                                 ClientHandler sender) {
+        int room = roomNames.acquire(roomName);
+        roomShards.submit(room, () -> {
+            logOnShard(msg, durability, sender);
+            remember(room, msg);
+            fanOut(room, msg);
+            roomNames.release(room);
+        });
+    }
+
+    /**
+     * Number msg in the log on its room's shard, right before it is
+     * broadcast, so the room's messages are numbered in the order they go
+     * out (see replayEnd); the appender writes it meanwhile. A message the
+     * log refuses is still broadcast, but is in no replay.
+     */
+    private void logOnShard(ChatMessage msg, MessageLog.Durability durability, ClientHandler sender) {
+        if (messageLog == null || durability == null) {
+            return;
         }
-        for (ClientHandler handler : targets) {
-            try {
-                handler.send(msg);
-            } catch (IOException e) {
-                System.out.println("Failed to send to " + handler.getUsername() + ": " + e.getMessage());
+        String roomName = msg.getRoom();
+        long sequence = messageLog.append(msg, durability, seq -> {
+            if (seq == MessageLog.FAILED) {
+                sendTo(sender, notStored(roomName, "was sent but could not be stored"));
             }
+        });
+        if (sequence != MessageLog.FAILED) {
+            broadcastSequence.put(roomName, sequence);
+        } else if (messageLog.getDropped() % 1000 == 1) {
+            EventLog.warn("log.queue_full", "dropped", messageLog.getDropped());
+        }
+    }
+
+    private static ChatMessage notStored(String roomName, String what) {
+        ChatMessage err = new ChatMessage(MessageType.ERROR_RESPONSE);
+        err.setContent("Message to " + roomName + " " + what + ".");
+        return err;
+    }
+
+    /**
+     * Broadcast a committed message (MESSAGE durability) from the log's
+     * appender thread, which calls this in sequence order for the messages
+     * of a room (a room has one durability), so they reach the room's
+     * shard in that order.
+     */
+    private void broadcastLogged(String roomName, ChatMessage msg, long sequence) {
+        int room = roomNames.acquire(roomName);
+        roomShards.submit(room, () -> {
+            broadcastSequence.put(roomName, sequence);
+            remember(room, msg);
+            fanOut(room, msg);
+            roomNames.release(room);
+        });
+    }
+
+    /**
+     * First sequence number not yet broadcast to room (its shard only):
+     * a history replay that starts now ends there, and the live stream
+     * starts there. Before the first broadcast of this process, only
+     * messages of earlier runs are in the log. The appender may still be
+     * writing the last ones (HistoryReplay waits for them).
+     */
+    private long replayEnd(String roomName) {
+        Long last = broadcastSequence.get(roomName);
+        return last != null ? last + 1 : firstSequence;
+    }
+
+    private void remember(int room, ChatMessage msg) {
+        if (recent != null) {
+            recent.add(room, msg.getRoom(), msg);
+        }
+    }
+
+    /**
+     * The handler of a logged-in user, or null. A login in progress is
+     * not online until its LOGIN_RESPONSE is queued, so nothing sent from
+     * another thread can overtake it.
+     */
+    private ClientHandler online(String user) {
+        ClientHandler handler = clients.lookup(user);
+        return handler != null && handler.ready ? handler : null;
+    }
+
+    private void sendTo(ClientHandler handler, ChatMessage msg) {
+        try {
+            handler.send(msg);
+        } catch (IOException e) {
+            EventLog.info("client.send_failed", "user", handler.getUsername(), "error", e.getMessage());
+        }
+    }
+
+    private void fanOut(int room, ChatMessage msg) {
+        // runs on the owner shard: the member array is read in place
+        RoomMembership.Members members = rooms.members(room);
+        if (members == null) {
+            return;
+        }
+        // the message is encoded only once per codec present in the room;
+        // large rooms are split across cores (see ParallelFanOut)
+        FrameSet frames = new FrameSet(msg);
+        parallelFanOut.run(members.size(), i -> deliver(sessions.get(members.idAt(i)), frames));
+    }
+
+    private void deliver(ClientHandler handler, FrameSet frames) {
+        if (handler == null) {
+            return;
+        }
+        try {
+            handler.send(frames);
+        } catch (IOException e) {
+            EventLog.info("client.send_failed", "user", handler.getUsername(), "error", e.getMessage());
         }
     }
 
     private void removeClient(ClientHandler handler) {
         String username = handler.getUsername();
-        String room = handler.getCurrentRoom();
 
-        if (room != null) {
-            removeFromRoom(room, handler);
+        OutboundQueue<?> queue = handler.getOutboundQueue();
+        if (queue != null && queue.getDropped() > 0) {
+            EventLog.info("client.queue", "user", username, "queue", queue);
         }
 
         if (username != null) {
-            synchronized (clients) {
-                clients.remove(username);
+            // leave the presence set while the name is still ours: once it
+            // is released, a new login under it must find it absent
+            presence.userLeft(username);
+            if (running) {
+                state.loggedOut(username); // else kept: rejoined after a restart
             }
-            System.out.println("User logged out: " + username);
-
-            ChatMessage notice = new ChatMessage(MessageType.TEXT_MESSAGE);
-            notice.setSender("SERVER");
-            notice.setRoom(room != null ? room : DEFAULT_ROOM);
-            notice.setContent(username + " left the chat");
-            broadcastToRoom(notice.getRoom(), notice);
+            clients.release(username, handler);
+            EventLog.info("user.logout", "user", username);
+            leaveAllRooms(handler, username);
         }
     }
 
-    private class ClientHandler implements Runnable {
+    /**
+     * Blocking transport: send() only enqueues, and a dedicated writer
+     * thread per connection drains the OutboundQueue onto the SSLSocket,
+     * so a congested client never blocks the sender's thread.
+     *
+     * The writer coalesces queued frames into 16 KB TLS records and
+     * flushes once the queue is empty, optionally lingering up to the
+     * flush latency budget for more frames first.
+     */
+    private static class SocketConnection implements ChatConnection {
         private final SSLSocket socket;
-        private DataInputStream in;
-        private DataOutputStream out;
+        private final CoalescingWriter writer;
+        private final OutboundQueue<EncodedFrame> queue;
+        private final long flushLatencyNanos;
+        private volatile boolean closed;
+
+        SocketConnection(SSLSocket socket, OutputStream out, OutboundQueue<EncodedFrame> queue,
+                         WriteStats writeStats, long flushLatencyMicros, boolean virtualThreads) {
+            this.socket = socket;
+            this.writer = new CoalescingWriter(out, writeStats);
+            this.queue = queue;
+            this.flushLatencyNanos = TimeUnit.MICROSECONDS.toNanos(flushLatencyMicros);
+            VirtualThreads.start(this::writeLoop, virtualThreads);
+        }
+
+        @Override
+        public void send(EncodedFrame frame) throws IOException {
+            if (!queue.offer(frame)) {
+                close();
+                throw new IOException("Outbound queue full or closed (" + queue + ")");
+            }
+        }
+
+        private void writeLoop() {
+            try {
+                EncodedFrame frame;
+                while ((frame = queue.take()) != null) {
+                    long deadline = System.nanoTime() + flushLatencyNanos;
+                    do {
+                        writer.write(frame);
+                        frame = queue.poll();
+                        if (frame == null) {
+                            long wait = deadline - System.nanoTime();
+                            if (wait > 0) {
+                                frame = queue.poll(wait, TimeUnit.NANOSECONDS);
+                            }
+                        }
+                    } while (frame != null);
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    EventLog.info("client.write_error", "error", e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        public OutboundQueue<?> getOutboundQueue() {
+            return queue;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            queue.close();
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return String.valueOf(socket.getInetAddress());
+        }
+    }
+
+    private class ClientHandler implements Runnable, NioChatTransport.Handler, BatchedSender.Client {
+        private final SSLSocket socket; // null with the NIO transport
+        private ChatConnection connection;
         private String username;
-        private String currentRoom;
+        private int id = -1; // SessionTable id, once logged in
+        // ids of the rooms joined, and of the one a TEXT_MESSAGE without
+        // room goes to (only touched by this connection's thread / event loop)
+        private final IntSet joinedRooms = new IntSet();
+        private int currentRoom = -1;
+        private volatile MessageCodec codec = MessageCodecs.JSON;
+        // set once the LOGIN_RESPONSE is queued (see online())
+        private volatile boolean ready;
 
         ClientHandler(SSLSocket socket) {
             this.socket = socket;
-            this.currentRoom = null;
+        }
+
+        ClientHandler(ChatConnection connection) {
+            this.socket = null;
+            this.connection = connection;
         }
 
         String getUsername() {
             return username;
         }
 
-        String getCurrentRoom() {
-            return currentRoom;
+        int getId() {
+            return id;
+        }
+
+        IntSet getRooms() {
+            return joinedRooms;
+        }
+
+        /**
+         * Blocking transport: stop this connection's reader (shutdown).
+         */
+        void closeSocket() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+            }
+        }
+
+        @Override
+        public OutboundQueue<?> getOutboundQueue() {
+            return connection != null ? connection.getOutboundQueue() : null;
         }
 
         @Override
         public void run() {
             try {
                 socket.startHandshake();
-                System.out.println("Handshake done with " + socket.getInetAddress());
+                EventLog.debug("client.handshake", "remote", socket.getInetAddress());
 
-                in = new DataInputStream(socket.getInputStream());
-                out = new DataOutputStream(socket.getOutputStream());
+                InputStream in = socket.getInputStream();
+                FrameDecoder decoder = new FrameDecoder(config.getMaxFrameSize());
+                connection = new SocketConnection(socket, socket.getOutputStream(), newOutboundQueue(),
+                        writeStats, config.getFlushLatencyMicros(), virtualThreads);
 
                 // initial room join to DEFAULT_ROOM after successful login
 
                 while (true) {
-                    ChatMessage msg = ChatMessage.readFrom(in);
+                    decoder.readFrame(in);
+                    ChatMessage msg = ChatMessage.headerFromBytes(
+                            decoder.frameArray(), decoder.frameOffset(), decoder.frameLength());
                     handleMessage(msg);
                 }
             } catch (EOFException eof) {
-                String nameOrAddr = (username != null) ? username : socket.getInetAddress().toString();
-                System.out.println("Client disconnected: " + nameOrAddr);
+                EventLog.info("client.disconnected", "user", username, "remote", socket.getInetAddress());
             } catch (IOException e) {
-                System.out.println("Client IO error: " + e.getMessage());
+                EventLog.info("client.io_error", "user", username, "error", e.getMessage());
+            } catch (IllegalArgumentException e) {
+                EventLog.warn("client.malformed", "user", username, "error", e.getMessage());
             } finally {
-                try {
-                    socket.close();
-                } catch (IOException ignored) {}
+                if (connection != null) {
+                    connection.close();
+                } else {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {}
+                }
                 removeClient(this);
             }
         }
 
-        void send(ChatMessage msg) throws IOException {
-            msg.writeTo(out);
+        // ----- NioChatTransport.Handler -----
+
+        @Override
+        public void onMessage(ChatMessage msg) throws IOException {
+            handleMessage(msg);
+        }
+
+        @Override
+        public void onClose() {
+            removeClient(this);
+        }
+
+        @Override
+        public void send(ChatMessage msg) throws IOException {
+            connection.send(msg.encode(codec));
+        }
+
+        void send(FrameSet frames) throws IOException {
+            connection.send(frames.get(codec));
         }
 
         private void handleMessage(ChatMessage msg) throws IOException {
@@ -187,12 +736,21 @@ public class SecureChatServer {
                 case JOIN_ROOM_REQUEST:
                     handleJoinRoom(msg);
                     break;
+                case LEAVE_ROOM_REQUEST:
+                    handleLeaveRoom(msg);
+                    break;
                 case TEXT_MESSAGE:
                     handleTextMessage(msg);
                     break;
                 case PRIVATE_MESSAGE:
                     handlePrivateMessage(msg);
                     break;
+                case USER_LIST_REQUEST:
+                    handleUserList(msg);
+                    break;
+                case ROOM_LIST_REQUEST:
+                    handleRoomList(msg);
+                    break;
                 default:
                     ChatMessage err = new ChatMessage(MessageType.ERROR_RESPONSE);
                     err.setContent("Unsupported message type: " + msg.getType());
@@ -210,32 +768,69 @@ public class SecureChatServer {
                 return;
             }
 
-            synchronized (clients) {
-                if (clients.containsKey(requestedUsername)) {
-                    ChatMessage resp = new ChatMessage(MessageType.LOGIN_RESPONSE);
-                    resp.setContent("ERROR: username already in use");
-                    send(resp);
-                    return;
-                } else {
-                    this.username = requestedUsername;
-                    clients.put(requestedUsername, this);
-                    System.out.println("User logged in: " + username);
-                }
+            if (username != null) {
+                ChatMessage resp = new ChatMessage(MessageType.LOGIN_RESPONSE);
+                resp.setContent("ERROR: already logged in as " + username);
+                send(resp);
+                return;
             }
 
-            // join default room
-            this.currentRoom = DEFAULT_ROOM;
-            addToRoom(DEFAULT_ROOM, this);
+            // negotiate the codec first; the OK is already sent with it
+            MessageCodec negotiated = MessageCodecs.forVersion(msg.getVersion());
 
+            // atomic claim; the rejection is sent without holding anything
+            if (!clients.claim(requestedUsername, this)) {
+                ChatMessage resp = new ChatMessage(MessageType.LOGIN_RESPONSE);
+                resp.setContent("ERROR: username already in use");
+                send(resp);
+                return;
+            }
+            // claimed, but not online() yet: no other thread sends to us
+            // until the OK is queued
+            this.codec = negotiated;
+            this.username = requestedUsername;
+            this.id = sessions.register(this);
             ChatMessage resp = new ChatMessage(MessageType.LOGIN_RESPONSE);
+            resp.setVersion(codec.getVersion());
             resp.setContent("OK");
             send(resp);
+            this.ready = true;
+            presence.userJoined(username);
+            EventLog.info("user.login", "user", username, "version", msg.getVersion());
+
+            // join default room; after the OK, so no room message can
+            // overtake it
+            int lobby = roomNames.acquire(DEFAULT_ROOM);
+            this.currentRoom = lobby;
+            joinedRooms.add(lobby);
+            if (mailbox != null) {
+                mailbox.deliver(username, this);
+            }
 
             ChatMessage notice = new ChatMessage(MessageType.TEXT_MESSAGE);
             notice.setSender("SERVER");
             notice.setRoom(DEFAULT_ROOM);
             notice.setContent(username + " joined the chat (room: " + DEFAULT_ROOM + ")");
-            broadcastToRoom(DEFAULT_ROOM, notice);
+            joinRoom(lobby, this, null, notice);
+
+            // rooms the user was in when the server stopped
+            for (String name : state.takeRestored(username)) {
+                int room = roomNames.acquire(name);
+                if (!joinedRooms.add(room)) {
+                    roomNames.release(room);
+                    continue;
+                }
+                currentRoom = room; // as the client sees it: the last room joined
+                state.joined(username, name);
+                ChatMessage joined = new ChatMessage(MessageType.JOIN_ROOM_RESPONSE);
+                joined.setRoom(name);
+                joined.setContent("OK");
+                ChatMessage rejoined = new ChatMessage(MessageType.TEXT_MESSAGE);
+                rejoined.setSender("SERVER");
+                rejoined.setRoom(name);
+                rejoined.setContent(username + " joined the room");
+                joinRoom(room, this, joined, rejoined);
+            }
         }
 
         private void handleJoinRoom(ChatMessage msg) throws IOException {
@@ -254,26 +849,79 @@ public class SecureChatServer {
                 return;
             }
 
-            // leave old room
-            if (currentRoom != null) {
-                removeFromRoom(currentRoom, this);
+            HistoryReplay.Request history;
+            try {
+                history = historyReplay != null ? HistoryReplay.Request.parse(msg.getContent()) : null;
+            } catch (IllegalArgumentException e) {
+                ChatMessage resp = new ChatMessage(MessageType.JOIN_ROOM_RESPONSE);
+                resp.setRoom(newRoom);
+                resp.setContent("ERROR: bad history request: " + e.getMessage());
+                send(resp);
+                return;
             }
 
-            currentRoom = newRoom;
-            addToRoom(currentRoom, this);
-
-            System.out.println("User " + username + " joined room: " + currentRoom);
+            // other rooms are kept; the new one becomes the default target
+            int room = roomNames.acquire(newRoom);
+            currentRoom = room;
 
             ChatMessage resp = new ChatMessage(MessageType.JOIN_ROOM_RESPONSE);
-            resp.setRoom(currentRoom);
+            resp.setRoom(newRoom);
             resp.setContent("OK");
-            send(resp);
+            if (!joinedRooms.add(room)) {
+                roomNames.release(room); // already pinned as a member
+                send(resp);
+                if (history != null) {
+                    roomShards.submit(room,
+                            () -> historyReplay.replay(room, newRoom, history, replayEnd(newRoom), this));
+                }
+                return;
+            }
+
+            EventLog.info("room.join", "user", username, "room", newRoom);
+            if (!DEFAULT_ROOM.equals(newRoom)) {
+                state.joined(username, newRoom);
+            }
 
             ChatMessage notice = new ChatMessage(MessageType.TEXT_MESSAGE);
             notice.setSender("SERVER");
-            notice.setRoom(currentRoom);
+            notice.setRoom(newRoom);
             notice.setContent(username + " joined the room");
-            broadcastToRoom(currentRoom, notice);
+            joinRoom(room, this, resp, notice, history);
+        }
+
+        private void handleLeaveRoom(ChatMessage msg) throws IOException {
+            if (username == null) {
+                ChatMessage err = new ChatMessage(MessageType.ERROR_RESPONSE);
+                err.setContent("You must LOGIN before leaving rooms.");
+                send(err);
+                return;
+            }
+
+            String roomName = msg.getRoom();
+            int room = roomName != null ? roomNames.lookup(roomName) : -1;
+            if (room < 0 || !joinedRooms.remove(room)) {
+                ChatMessage resp = new ChatMessage(MessageType.LEAVE_ROOM_RESPONSE);
+                resp.setRoom(roomName);
+                resp.setContent("ERROR: not in room " + roomName);
+                send(resp);
+                return;
+            }
+            if (room == currentRoom) {
+                currentRoom = joinedRooms.isEmpty() ? -1 : joinedRooms.get(0);
+            }
+
+            EventLog.info("room.leave", "user", username, "room", roomName);
+            state.left(username, roomName);
+
+            ChatMessage resp = new ChatMessage(MessageType.LEAVE_ROOM_RESPONSE);
+            resp.setRoom(roomName);
+            resp.setContent("OK");
+
+            ChatMessage notice = new ChatMessage(MessageType.TEXT_MESSAGE);
+            notice.setSender("SERVER");
+            notice.setRoom(roomName);
+            notice.setContent(username + " left the room");
+            leaveRoom(room, this, resp, notice);
         }
 
         private void handleTextMessage(ChatMessage msg) throws IOException {
@@ -284,24 +932,97 @@ public class SecureChatServer {
                 return;
             }
 
-            String room = msg.getRoom();
-            if (room == null || room.isEmpty()) {
+            // one String lookup, then the room is routed by id
+            String roomName = msg.getRoom();
+            int room;
+            if (roomName == null || roomName.isEmpty()) {
+                if (currentRoom < 0) {
+                    currentRoom = roomNames.acquire(DEFAULT_ROOM);
+                    joinedRooms.add(currentRoom);
+                    joinRoom(currentRoom, this, null, null);
+                }
                 room = currentRoom;
-            }
-            if (room == null) {
-                room = DEFAULT_ROOM;
-                currentRoom = DEFAULT_ROOM;
-                addToRoom(DEFAULT_ROOM, this);
+                roomName = roomNames.name(room);
+            } else {
+                room = roomNames.lookup(roomName);
             }
 
+            // content bytes are forwarded as received (RawContent)
             ChatMessage outMsg = new ChatMessage(MessageType.TEXT_MESSAGE);
             outMsg.setSender(username);
-            outMsg.setRoom(room);
-            outMsg.setContent(msg.getContent());
+            outMsg.setRoom(roomName);
+            outMsg.copyContentFrom(msg);
+
+            if (EventLog.isEnabled(EventLog.Level.DEBUG)) {
+                // decoding the text only pays off when it is logged
+                EventLog.debug("chat.text", "room", roomName, "user", username, "text", msg.getContent());
+            }
+            MessageLog.Durability durability = messageLog != null ? config.getDurability(roomName) : null;
+            if (durability == MessageLog.Durability.MESSAGE) {
+                // sent only once committed, from the appender in sequence
+                // order (see replayEnd); by name, as the sender may have
+                // left the room by then
+                String target = roomName;
+                long sequence = messageLog.append(outMsg, durability, seq -> {
+                    if (seq == MessageLog.FAILED) {
+                        sendTo(this, notStored(target, "could not be stored and was not sent"));
+                    } else {
+                        broadcastLogged(target, outMsg, seq);
+                    }
+                });
+                if (sequence == MessageLog.FAILED) {
+                    send(notStored(roomName, "could not be stored and was not sent"));
+                }
+                return;
+            }
+
+            // logged on the room's shard and sent at once
+            if (room >= 0 && joinedRooms.contains(room)) {
+                broadcastToRoom(room, outMsg, durability, this);
+            } else {
+                broadcastToRoom(roomName, outMsg, durability, this); // not a member
+            }
+        }
+
+        private void handleUserList(ChatMessage msg) throws IOException {
+            if (username == null) {
+                ChatMessage err = new ChatMessage(MessageType.ERROR_RESPONSE);
+                err.setContent("You must LOGIN before listing users.");
+                send(err);
+                return;
+            }
 
-            System.out.println("[" + room + "][" + username + "]: " + msg.getContent());
+            FrameSet frames;
+            try {
+                frames = presence.respond(msg.getContent());
+            } catch (IllegalArgumentException e) {
+                ChatMessage err = new ChatMessage(MessageType.ERROR_RESPONSE);
+                err.setContent("Bad user list request: " + e.getMessage());
+                send(err);
+                return;
+            }
+            // usually a cached, already encoded page
+            send(frames);
+        }
+
+        private void handleRoomList(ChatMessage msg) throws IOException {
+            if (username == null) {
+                ChatMessage err = new ChatMessage(MessageType.ERROR_RESPONSE);
+                err.setContent("You must LOGIN before listing rooms.");
+                send(err);
+                return;
+            }
 
-            broadcastToRoom(room, outMsg);
+            FrameSet frames;
+            try {
+                frames = directory.respond(msg.getContent());
+            } catch (IllegalArgumentException e) {
+                ChatMessage err = new ChatMessage(MessageType.ERROR_RESPONSE);
+                err.setContent("Bad room list request: " + e.getMessage());
+                send(err);
+                return;
+            }
+            send(frames);
         }
 
         private void handlePrivateMessage(ChatMessage msg) throws IOException {
@@ -320,11 +1041,8 @@ public class SecureChatServer {
                 return;
             }
 
-            ClientHandler target;
-            synchronized (clients) {
-                target = clients.get(targetUser);
-            }
-            if (target == null) {
+            ClientHandler target = online(targetUser);
+            if (target == null && mailbox == null) {
                 ChatMessage err = new ChatMessage(MessageType.ERROR_RESPONSE);
                 err.setContent("User '" + targetUser + "' is not online.");
                 send(err);
@@ -334,20 +1052,47 @@ public class SecureChatServer {
             ChatMessage outMsg = new ChatMessage(MessageType.PRIVATE_MESSAGE);
             outMsg.setSender(username);
             outMsg.setRecipient(targetUser);
-            outMsg.setContent(msg.getContent());
+            outMsg.copyContentFrom(msg);
+
+            if (target == null) {
+                // kept for the next login; confirmed from the mailbox
+                // thread once it is on disk
+                ChatMessage note = new ChatMessage(MessageType.PRIVATE_MESSAGE);
+                note.setSender("SERVER");
+                note.setRecipient(username);
+                note.setContent("User '" + targetUser + "' is offline; the message will be delivered at their next login.");
+                ChatMessage failed = new ChatMessage(MessageType.ERROR_RESPONSE);
+                failed.setContent("User '" + targetUser + "' is not online and the message could not be kept.");
+                boolean accepted = mailbox.store(outMsg, SecureChatServer.this::online, () -> {
+                    persist(outMsg, config.getDurability());
+                    sendTo(this, outMsg);
+                    sendTo(this, note);
+                }, () -> sendTo(this, failed));
+                if (!accepted) {
+                    ChatMessage err = new ChatMessage(MessageType.ERROR_RESPONSE);
+                    err.setContent("User '" + targetUser + "' is not online and their mailbox is full.");
+                    send(err);
+                }
+                return;
+            }
+            persist(outMsg, config.getDurability());
 
             // send to target
-            target.send(outMsg);
+            FrameSet frames = new FrameSet(outMsg);
+            target.send(frames);
             // optional: echo back to sender
-            send(outMsg);
+            send(frames);
         }
     }
 
     public static void main(String[] args) throws Exception {
-        String keystorePath = "server.jks";         // must be in current directory
-        String keystorePassword = "password123";    // change if needed
+        // defaults: port 8443, server.jks / password123 in current directory,
+        // blocking transport; e.g. --transport=nio --eventLoops=4
+        // or --virtualThreads=true
+        ChatServerConfig config = ChatServerConfig.fromArgs(args);
 
-        SecureChatServer server = new SecureChatServer(8443, keystorePath, keystorePassword);
+        SecureChatServer server = new SecureChatServer(config);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown));
         server.start();
     }
 }
@@ -0,0 +1,294 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ServerState is what the server knows beyond its live connections, kept
+ * so that a restart does not have to rebuild it from the whole log:
+ * - per room: the number of messages logged and the sequence number and
+ *   timestamp of the last one (RoomStats), updated by the MessageLog's
+ *   appender thread as it writes (see MessageLog.Listener)
+ * - per logged-in user: the rooms they are in besides the lobby, dropped
+ *   at logout. Only a restart brings rooms back: the memberships of the
+ *   loaded snapshot are joined again at each user's first login after it
+ *   (takeRestored), and carried into later snapshots until then.
+ *
+ * Copy-on-write: every value is immutable and replaced on update, so
+ * capture() can copy the maps while the server runs, without a lock,
+ * and still read each room and each user whole. A capture is fuzzy
+ * (rooms may be counted past its sequence number), which apply() allows
+ * for: a record a room's stats already cover is skipped, so replaying
+ * the log from the sequence number gives the exact state.
+ *
+ * Mailboxes are not part of it: their index files already hold the
+ * delivered offsets and are read at startup (see Mailbox).
+ */
+public class ServerState {
+
+    private static final int MAGIC = 0x43535332; // "CSS2"
+
+    /**
+     * What the log holds for one room.
+     */
+    public static final class RoomStats {
+        private final long messages;
+        private final long lastSequence;
+        private final long lastTimestamp;
+
+        RoomStats(long messages, long lastSequence, long lastTimestamp) {
+            this.messages = messages;
+            this.lastSequence = lastSequence;
+            this.lastTimestamp = lastTimestamp;
+        }
+
+        public long getMessages() {
+            return messages;
+        }
+
+        public long getLastSequence() {
+            return lastSequence;
+        }
+
+        public long getLastTimestamp() {
+            return lastTimestamp;
+        }
+    }
+
+    /**
+     * A copy of the state; every record before sequence is in it.
+     */
+    public static final class Snapshot {
+        private final long sequence;
+        private final Map<String, RoomStats> rooms;
+        private final Map<String, Set<String>> memberships;
+
+        Snapshot(long sequence, Map<String, RoomStats> rooms, Map<String, Set<String>> memberships) {
+            this.sequence = sequence;
+            this.rooms = rooms;
+            this.memberships = memberships;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public int getRooms() {
+            return rooms.size();
+        }
+
+        public int getUsers() {
+            return memberships.size();
+        }
+
+        /**
+         * Compact form: [4 magic][8 sequence]
+         * [4 rooms] {name, messages, last sequence, last timestamp}...
+         * [4 users] {name, [4 n] room...}...
+         * A name is [4 n][n bytes of UTF-8]: names are only bounded by the
+         * frame size.
+         */
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeLong(sequence);
+            out.writeInt(rooms.size());
+            for (Map.Entry<String, RoomStats> e : rooms.entrySet()) {
+                writeName(out, e.getKey());
+                out.writeLong(e.getValue().messages);
+                out.writeLong(e.getValue().lastSequence);
+                out.writeLong(e.getValue().lastTimestamp);
+            }
+            out.writeInt(memberships.size());
+            for (Map.Entry<String, Set<String>> e : memberships.entrySet()) {
+                writeName(out, e.getKey());
+                out.writeInt(e.getValue().size());
+                for (String room : e.getValue()) {
+                    writeName(out, room);
+                }
+            }
+        }
+
+        private static void writeName(DataOutputStream out, String name) throws IOException {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readName(DataInputStream in) throws IOException {
+            int n = in.readInt();
+            if (n < 0 || n > in.available()) {
+                throw new IOException("Bad name length: " + n);
+            }
+            byte[] bytes = new byte[n];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        static Snapshot read(DataInputStream in) throws IOException {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a state snapshot");
+            }
+            long sequence = in.readLong();
+            int n = in.readInt();
+            Map<String, RoomStats> rooms = new HashMap<>(n * 2);
+            for (int i = 0; i < n; i++) {
+                rooms.put(readName(in), new RoomStats(in.readLong(), in.readLong(), in.readLong()));
+            }
+            n = in.readInt();
+            Map<String, Set<String>> memberships = new HashMap<>(n * 2);
+            for (int i = 0; i < n; i++) {
+                String user = readName(in);
+                int count = in.readInt();
+                Set<String> joined = new LinkedHashSet<>();
+                for (int k = 0; k < count; k++) {
+                    joined.add(readName(in));
+                }
+                memberships.put(user, Collections.unmodifiableSet(joined));
+            }
+            return new Snapshot(sequence, rooms, memberships);
+        }
+    }
+
+    private final ConcurrentHashMap<String, RoomStats> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> memberships = new ConcurrentHashMap<>();
+    // memberships of the loaded snapshot, until their user logs in
+    private final ConcurrentHashMap<String, Set<String>> restored = new ConcurrentHashMap<>();
+    private volatile long appliedSequence = 1; // every record before it is counted
+    private final AtomicLong changes = new AtomicLong();
+
+    // ----- Updates -----
+
+    /**
+     * Count a logged record (appender thread, or the startup replay).
+     */
+    public void apply(long sequence, long timestamp, ChatMessage msg) {
+        String room = msg.getRoom();
+        if (msg.getType() == MessageType.TEXT_MESSAGE && room != null) {
+            RoomStats stats = rooms.get(room);
+            if (stats == null) {
+                rooms.put(room, new RoomStats(1, sequence, timestamp));
+            } else if (sequence > stats.lastSequence) {
+                rooms.put(room, new RoomStats(stats.messages + 1, sequence, timestamp));
+            }
+        }
+        appliedSequence = sequence + 1;
+        changes.incrementAndGet();
+    }
+
+    public void joined(String user, String room) {
+        memberships.compute(user, (u, joined) -> {
+            if (joined != null && joined.contains(room)) {
+                return joined;
+            }
+            Set<String> copy = joined == null ? new LinkedHashSet<>() : new LinkedHashSet<>(joined);
+            copy.add(room);
+            return Collections.unmodifiableSet(copy);
+        });
+        changes.incrementAndGet();
+    }
+
+    public void left(String user, String room) {
+        memberships.computeIfPresent(user, (u, joined) -> {
+            if (!joined.contains(room)) {
+                return joined;
+            }
+            Set<String> copy = new LinkedHashSet<>(joined);
+            copy.remove(room);
+            return copy.isEmpty() ? null : Collections.unmodifiableSet(copy);
+        });
+        changes.incrementAndGet();
+    }
+
+    /**
+     * Forget user's rooms (logout or disconnect).
+     */
+    public void loggedOut(String user) {
+        if (memberships.remove(user) != null) {
+            changes.incrementAndGet();
+        }
+    }
+
+    /**
+     * The rooms user was in when the loaded snapshot was taken, once: the
+     * first call after a restart returns them, later ones an empty set.
+     */
+    public Set<String> takeRestored(String user) {
+        Set<String> rooms = restored.remove(user);
+        if (rooms == null) {
+            return Collections.emptySet();
+        }
+        changes.incrementAndGet();
+        return rooms;
+    }
+
+    // ----- Queries -----
+
+    /**
+     * The log's stats of room, or null if nothing of it was logged.
+     */
+    public RoomStats room(String room) {
+        return rooms.get(room);
+    }
+
+    /**
+     * Incremented on every update: an unchanged count means there is no
+     * need for a new snapshot.
+     */
+    public long getChanges() {
+        return changes.get();
+    }
+
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    // ----- Snapshots -----
+
+    /**
+     * Copy the state without stopping its writers. The sequence is read
+     * first, so the copy holds at least every record before it.
+     */
+    public Snapshot capture() {
+        long sequence = appliedSequence;
+        Map<String, Set<String>> users = new HashMap<>(restored); // not back yet
+        users.putAll(memberships);
+        return new Snapshot(sequence, new HashMap<>(rooms), users);
+    }
+
+    /**
+     * Start from snapshot (before the log tail is applied and before any
+     * client connects). With withRooms false only the memberships are
+     * taken (the log does not match the snapshot).
+     */
+    public void restore(Snapshot snapshot, boolean withRooms) {
+        if (withRooms) {
+            rooms.putAll(snapshot.rooms);
+            appliedSequence = snapshot.sequence;
+        }
+        restored.putAll(snapshot.memberships);
+    }
+
+    /**
+     * True if the log that now ends before nextSequence can be the one the
+     * snapshot was taken of: it has every record the snapshot counted.
+     * Records lost in a crash after the capture fail this check.
+     */
+    public static boolean matches(Snapshot snapshot, long nextSequence) {
+        if (snapshot.sequence > nextSequence) {
+            return false;
+        }
+        for (RoomStats stats : snapshot.rooms.values()) {
+            if (stats.lastSequence >= nextSequence) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
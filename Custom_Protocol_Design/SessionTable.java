@@ -0,0 +1,92 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * SessionTable gives every logged-in session a small int id and maps
+ * the id back to the session.
+ *
+ * - Ids are dense and recycled, so structures indexed by id (room
+ *   member arrays, IntIntMap) stay small and cache friendly.
+ * - get() is lock-free; register() and release() take a short lock that
+ *   never covers any I/O.
+ * - A released id may be handed out again at once: release it only when
+ *   nothing can still refer to it.
+ */
+public class SessionTable<S> {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile AtomicReferenceArray<S> slots = new AtomicReferenceArray<>(64);
+    private int[] free = new int[16]; // recycled ids (guarded by lock)
+    private int freeCount;
+    private int nextId;
+    private int size;
+
+    public int register(S session) {
+        lock.lock();
+        try {
+            int id = freeCount > 0 ? free[--freeCount] : nextId++;
+            AtomicReferenceArray<S> current = slots;
+            if (id >= current.length()) {
+                AtomicReferenceArray<S> bigger = new AtomicReferenceArray<>(current.length() * 2);
+                for (int i = 0; i < current.length(); i++) {
+                    bigger.set(i, current.get(i));
+                }
+                slots = current = bigger;
+            }
+            current.set(id, session);
+            size++;
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public S get(int id) {
+        AtomicReferenceArray<S> current = slots;
+        return id >= 0 && id < current.length() ? current.get(id) : null;
+    }
+
+    public void release(int id) {
+        lock.lock();
+        try {
+            AtomicReferenceArray<S> current = slots;
+            if (id < 0 || id >= current.length() || current.get(id) == null) {
+                return;
+            }
+            current.set(id, null);
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, free.length * 2);
+            }
+            free[freeCount++] = id;
+            size--;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Run action on every registered session (lock-free, weakly
+     * consistent: sessions registered or released meanwhile may be seen
+     * or not).
+     */
+    public void forEach(Consumer<S> action) {
+        AtomicReferenceArray<S> current = slots;
+        for (int i = 0; i < current.length(); i++) {
+            S session = current.get(i);
+            if (session != null) {
+                action.accept(session);
+            }
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * SnapshotStore writes ServerState snapshots to a directory, every
+ * intervalSeconds and at shutdown, and finds the latest one at startup.
+ *
+ * - A "snapshot" thread captures the state (a copy-on-write copy, see
+ *   ServerState.capture) and writes it; nobody else waits for it. It is
+ *   skipped when nothing changed since the last one.
+ * - File: snapshot-<time>.snap = [4 length][4 CRC32][state], written
+ *   to a .tmp file, forced, then renamed, so a crash leaves either the
+ *   old snapshot or the new one. The KEEP newest are kept.
+ * - load() takes the newest snapshot whose CRC matches, so a damaged one
+ *   falls back to the one before it.
+ */
+public class SnapshotStore {
+
+    private static final int KEEP = 2;
+
+    private final Path dir;
+    private final ServerState state;
+    private final ScheduledExecutorService executor;
+    private long lastChanges = -1; // guarded by this
+
+    public SnapshotStore(Path dir, ServerState state, long intervalSeconds) throws IOException {
+        this.dir = dir;
+        this.state = state;
+        Files.createDirectories(dir);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::writeIfChanged, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The newest readable snapshot, or null.
+     */
+    public ServerState.Snapshot load() throws IOException {
+        List<Path> files = snapshots();
+        for (int i = files.size() - 1; i >= 0; i--) {
+            try {
+                return read(files.get(i));
+            } catch (IOException e) {
+                EventLog.warn("snapshot.unreadable", "file", files.get(i).getFileName(), "error", e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write a last snapshot and stop (shutdown, after the log is closed).
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writeIfChanged();
+    }
+
+    // ----- Writing -----
+
+    private synchronized void writeIfChanged() {
+        long changes = state.getChanges();
+        if (changes == lastChanges) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            ServerState.Snapshot snapshot = state.capture();
+            long bytes = write(snapshot);
+            lastChanges = changes;
+            EventLog.info("snapshot.written", "sequence", snapshot.getSequence(), "bytes", bytes,
+                    "millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException | RuntimeException e) {
+            EventLog.warn("snapshot.write_failed", "dir", dir, "error", e);
+        }
+    }
+
+    private long write(ServerState.Snapshot snapshot) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            snapshot.write(out);
+        }
+        byte[] data = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ByteBuffer header = ByteBuffer.allocate(8).putInt(data.length).putInt((int) crc.getValue());
+        header.flip();
+
+        Path file = dir.resolve(String.format("snapshot-%020d.snap", System.currentTimeMillis()));
+        Path tmp = dir.resolve(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ch.write(new ByteBuffer[] {header, ByteBuffer.wrap(data)});
+            ch.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        List<Path> files = snapshots();
+        for (int i = 0; i < files.size() - KEEP; i++) {
+            Files.deleteIfExists(files.get(i));
+        }
+        return 8 + data.length;
+    }
+
+    // ----- Reading -----
+
+    private static ServerState.Snapshot read(Path file) throws IOException {
+        byte[] all = Files.readAllBytes(file);
+        ByteBuffer buf = ByteBuffer.wrap(all);
+        if (all.length < 8 || buf.getInt(0) != all.length - 8) {
+            throw new IOException("Bad length");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(all, 8, all.length - 8);
+        if ((int) crc.getValue() != buf.getInt(4)) {
+            throw new IOException("Bad CRC");
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(all, 8, all.length - 8))) {
+            return ServerState.Snapshot.read(in);
+        }
+    }
+
+    /**
+     * Snapshot files, oldest first (the names sort by time).
+     */
+    private List<Path> snapshots() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> found = Files.newDirectoryStream(dir, "snapshot-*.snap")) {
+            for (Path file : found) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+}
@@ -0,0 +1,42 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * UserRegistry maps logged-in usernames to their sessions without any
+ * global lock.
+ *
+ * - claim() is an atomic putIfAbsent: of two clients racing for the same
+ *   name exactly one wins, and the loser is told so after the fact, so
+ *   no network I/O ever happens while the map is being updated.
+ * - release() only removes the entry if it still belongs to the given
+ *   session, so a late logout cannot evict someone else.
+ * - lookup() is a plain lock-free read.
+ */
+public class UserRegistry<S> {
+
+    private final ConcurrentHashMap<String, S> users = new ConcurrentHashMap<>();
+
+    /**
+     * Try to reserve username for session. Returns false if already taken.
+     */
+    public boolean claim(String username, S session) {
+        return users.putIfAbsent(username, session) == null;
+    }
+
+    /**
+     * Free username if it is held by session.
+     */
+    public boolean release(String username, S session) {
+        return users.remove(username, session);
+    }
+
+    /**
+     * Session of username, or null if not logged in.
+     */
+    public S lookup(String username) {
+        return users.get(username);
+    }
+
+    public int size() {
+        return users.size();
+    }
+}
@@ -0,0 +1,72 @@
+import java.lang.reflect.Method;
+import java.util.function.Consumer;
+
+/**
+ * VirtualThreads starts per-client tasks either on platform threads
+ * (new Thread(task)) or on virtual threads.
+ *
+ * Virtual threads need Java 21+. The lookup is done by reflection so the
+ * code still compiles and runs on older JDKs; there we fall back to
+ * platform threads and print a warning once (or hand it to the caller's
+ * warning sink).
+ */
+public final class VirtualThreads {
+
+    private static final Method START_VIRTUAL = findStartVirtual();
+
+    private VirtualThreads() {
+    }
+
+    private static Method findStartVirtual() {
+        try {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * True if this JVM supports virtual threads.
+     */
+    public static boolean isSupported() {
+        return START_VIRTUAL != null;
+    }
+
+    /**
+     * Start task on a virtual thread if asked and supported,
+     * otherwise on a new platform thread.
+     */
+    public static Thread start(Runnable task, boolean virtual) {
+        if (virtual && START_VIRTUAL != null) {
+            try {
+                return (Thread) START_VIRTUAL.invoke(null, task);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Cannot start virtual thread", e);
+            }
+        }
+        Thread t = new Thread(task);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Resolve the requested mode against what the JVM offers; a fallback
+     * is printed on System.out.
+     */
+    public static boolean resolve(boolean requested) {
+        return resolve(requested, System.out::println);
+    }
+
+    /**
+     * Resolve the requested mode against what the JVM offers; a fallback
+     * is reported to warning.
+     */
+    public static boolean resolve(boolean requested, Consumer<String> warning) {
+        if (requested && !isSupported()) {
+            warning.accept("Virtual threads need Java 21+, using platform threads ("
+                    + System.getProperty("java.version") + ")");
+            return false;
+        }
+        return requested;
+    }
+}
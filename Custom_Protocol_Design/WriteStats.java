@@ -0,0 +1,48 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * WriteStats counts what the connection writers put on the wire:
+ * messages (frames) versus writes handed to TLS (each write of at most
+ * 16 KB becomes one TLS record). recordsPerMessage() below 1.0 means
+ * several chat messages were coalesced into one record.
+ *
+ * One instance is shared by all connections of a server.
+ */
+public class WriteStats {
+
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder records = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    public void messageWritten() {
+        messages.increment();
+    }
+
+    public void recordWritten(int length) {
+        records.increment();
+        bytes.add(length);
+    }
+
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    public long getRecords() {
+        return records.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public double recordsPerMessage() {
+        long m = messages.sum();
+        return m == 0 ? 0.0 : (double) records.sum() / m;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("messages=%d records=%d bytes=%d records/message=%.3f",
+                getMessages(), getRecords(), getBytes(), recordsPerMessage());
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Bench holds what the benchmarks share. They are plain classes with a
+ * main method, built with the server and run one at a time:
+ *   javac -encoding UTF-8 -d out *.java bench/*.java
+ *   java -cp out <Name>Bench [args]
+ * Each one prints its results and the setting they were taken with; the
+ * numbers only compare runs on the same machine and JVM.
+ */
+final class Bench {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Bench() {
+    }
+
+    /**
+     * Heap in use after a full collection (best effort: System.gc()
+     * is a request).
+     */
+    static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(50);
+            used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+        }
+        return used;
+    }
+
+    /**
+     * CPU time of the calling thread, in nanoseconds.
+     */
+    static long cpuNanos() {
+        return THREADS.getCurrentThreadCpuTime();
+    }
+
+    /**
+     * Bytes allocated so far by the calling thread (HotSpot).
+     */
+    static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static long size(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    /**
+     * Delete dir and everything in it.
+     */
+    static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
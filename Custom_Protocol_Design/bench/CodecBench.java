@@ -0,0 +1,65 @@
+/**
+ * CodecBench measures every registered MessageCodec on the same messages:
+ * body size, and time and bytes allocated per encode, full decode and
+ * header-only decode (what the server does to route a message). The
+ * conformance cases are in test/CodecConformanceTest.
+ *
+ *   java -cp out CodecBench [iterations=1000000]
+ *
+ * A plain timed loop (see JsonBench); the last round is the one to read.
+ */
+public class CodecBench {
+
+    private interface Case {
+        int run();
+    }
+
+    private static int sink;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        ChatMessage[] messages = {
+            message("hi"),
+            message("a message of about a hundred bytes, which is what most chat traffic looks like today"),
+            message("ünïcødé: 日本語のメッセージ 😀 \"quoted\" and a\nnew line"),
+        };
+        for (int round = 0; round < 3; round++) {
+            System.out.println("round " + (round + 1));
+            for (int m = 0; m < messages.length; m++) {
+                ChatMessage msg = messages[m];
+                System.out.printf("  message %d (%d chars of content)%n", m, msg.getContent().length());
+                for (MessageCodec codec : MessageCodecs.all()) {
+                    byte[] body = codec.encode(msg);
+                    System.out.printf("    %-6s %4d bytes", codec.getName(), body.length);
+                    run("encode", iterations, () -> codec.encode(msg).length);
+                    run("decode", iterations, () -> codec.decode(body, 0, body.length).getContent().length());
+                    run("header", iterations, () -> codec.decodeHeader(body, 0, body.length).getType().ordinal());
+                    System.out.println();
+                }
+            }
+        }
+        System.out.println("checksum " + sink);
+    }
+
+    private static void run(String name, int iterations, Case c) {
+        long allocated = Bench.allocatedBytes();
+        long start = System.nanoTime();
+        int acc = 0;
+        for (int i = 0; i < iterations; i++) {
+            acc += c.run();
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = Bench.allocatedBytes() - allocated;
+        sink += acc;
+        System.out.printf("   %s %6.1f ns %5d B", name, (double) nanos / iterations, allocated / iterations);
+    }
+
+    private static ChatMessage message(String content) {
+        ChatMessage msg = new ChatMessage(MessageType.TEXT_MESSAGE);
+        msg.setSender("alice");
+        msg.setRoom("general");
+        msg.setTimestamp(1_700_000_000_000L);
+        msg.setContent(content);
+        return msg;
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * FanOutBench measures the CPU time and allocation of one room broadcast
+ * to every member, before and after encode-once:
+ * - before: each recipient encodes its own frame, as writeTo() did (the
+ *   old toJson() plus getBytes per member, see LegacyJson)
+ * - after: one FrameSet per message; the first recipient encodes, the
+ *   others queue the same EncodedFrame
+ * Both queue the frame on each member's OutboundQueue, so only the
+ * encoding differs. The per-recipient rounds send a tenth of the messages
+ * (they are about ten times slower); results are per fan-out.
+ *
+ *   java -cp out FanOutBench [members=5000] [messages=2000]
+ */
+public class FanOutBench {
+
+    private interface FanOut {
+        void broadcast(ChatMessage msg, OutboundQueue<EncodedFrame>[] members);
+    }
+
+    public static void main(String[] args) {
+        int members = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        OutboundQueue<EncodedFrame>[] queues = new OutboundQueue[members];
+        for (int i = 0; i < members; i++) {
+            queues[i] = new OutboundQueue<>(64, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        }
+        FanOut perRecipient = (msg, to) -> {
+            for (OutboundQueue<EncodedFrame> q : to) {
+                q.offer(new EncodedFrame(LegacyJson.frame(msg)));
+            }
+        };
+        FanOut encodeOnce = (msg, to) -> {
+            FrameSet frames = new FrameSet(msg);
+            for (OutboundQueue<EncodedFrame> q : to) {
+                q.offer(frames.get(MessageCodecs.JSON));
+            }
+        };
+        System.out.printf("room of %d members, %d messages per round%n", members, messages);
+        for (int round = 0; round < 3; round++) { // the first rounds warm up
+            run("per recipient", perRecipient, queues, messages / 10);
+            run("encode once", encodeOnce, queues, messages);
+        }
+    }
+
+    private static void run(String name, FanOut fanOut, OutboundQueue<EncodedFrame>[] queues, int messages) {
+        long cpu = Bench.cpuNanos();
+        long allocated = Bench.allocatedBytes();
+        for (int i = 0; i < messages; i++) {
+            fanOut.broadcast(message(i), queues);
+        }
+        cpu = Bench.cpuNanos() - cpu;
+        allocated = Bench.allocatedBytes() - allocated;
+        System.out.printf("%-14s %10.1f us CPU per fan-out %12d bytes allocated per fan-out%n",
+                name, cpu / 1000.0 / messages, allocated / messages);
+    }
+
+    private static ChatMessage message(int i) {
+        ChatMessage msg = new ChatMessage(MessageType.TEXT_MESSAGE);
+        msg.setSender("alice");
+        msg.setRoom("general");
+        msg.setTimestamp(1_700_000_000_000L + i);
+        msg.setContent("message " + i + " to everyone in the room, about eighty bytes of text");
+        return msg;
+    }
+}
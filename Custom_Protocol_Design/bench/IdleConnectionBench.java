@@ -0,0 +1,216 @@
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * IdleConnectionBench is the load test of the transports: it logs in n
+ * clients, leaves them idle, and reports what each connection costs the
+ * server in threads, heap and resident memory, for
+ *   platform  blocking transport, a platform reader and writer thread each
+ *   virtual   the same on virtual threads (JDK 21+; older JDKs fall back
+ *             to platform threads, and the server says so)
+ *   nio       the non-blocking transport (no thread per connection)
+ *
+ *   java -cp out IdleConnectionBench [connections=2000] [modes=platform,virtual,nio]
+ *
+ * Run from the directory holding server.jks. Each mode starts the server
+ * in a child JVM (same classpath, its own -Xmx default), so the clients
+ * of this JVM are not counted; the server's memory is read after a GC,
+ * before the logins and after them. The clients keep reading, so the
+ * join notices of later logins do not pile up in server queues.
+ */
+public class IdleConnectionBench {
+
+    private static final int PORT = 9460;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("server")) {
+            server(args[1]);
+            return;
+        }
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        String[] modes = (args.length > 1 ? args[1] : "platform,virtual,nio").split(",");
+        System.out.printf("%d idle connections (JDK %s)%n", connections, System.getProperty("java.version"));
+        for (String mode : modes) {
+            run(mode, connections);
+        }
+    }
+
+    // ----- Client side -----
+
+    private static void run(String mode, int connections) throws Exception {
+        Process server = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "IdleConnectionBench", "server", mode)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        BufferedReader from = new BufferedReader(new InputStreamReader(server.getInputStream(), StandardCharsets.UTF_8));
+        PrintStream to = new PrintStream(server.getOutputStream(), true, "UTF-8");
+        List<SSLSocket> clients = new ArrayList<>();
+        try {
+            String ready = from.readLine(); // "READY <virtual threads in use>"
+            long[] before = stats(to, from);
+            SSLSocketFactory factory = trustAll();
+            for (int i = 0; i < connections; i++) {
+                clients.add(login(factory, "user" + i));
+            }
+            Thread.sleep(1000); // let the join notices drain
+            long[] after = stats(to, from);
+            System.out.printf("%-8s (%s) threads %d -> %d, heap %+.1f KB, RSS %+.1f KB per connection%n",
+                    mode, ready.substring(6), before[0], after[0],
+                    (after[1] - before[1]) / 1024.0 / connections,
+                    (after[2] - before[2]) / 1024.0 / connections);
+        } finally {
+            for (SSLSocket s : clients) {
+                s.close();
+            }
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    /**
+     * {threads, heap used, RSS} of the server.
+     */
+    private static long[] stats(PrintStream to, BufferedReader from) throws IOException {
+        to.println("stats");
+        String[] f = from.readLine().split(" ");
+        return new long[] {Long.parseLong(f[1]), Long.parseLong(f[2]), Long.parseLong(f[3])};
+    }
+
+    private static SSLSocket login(SSLSocketFactory factory, String name) throws Exception {
+        SSLSocket s = null;
+        for (int attempt = 0; s == null; attempt++) {
+            try {
+                s = (SSLSocket) factory.createSocket("localhost", PORT);
+            } catch (IOException e) {
+                if (attempt > 100) {
+                    throw e;
+                }
+                Thread.sleep(100); // the server is starting
+            }
+        }
+        s.startHandshake();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        DataInputStream in = new DataInputStream(s.getInputStream());
+        ChatMessage login = new ChatMessage(MessageType.LOGIN_REQUEST);
+        login.setContent(name);
+        login.writeTo(out);
+        while (true) {
+            ChatMessage reply = ChatMessage.readFrom(in);
+            if (reply.getType() == MessageType.LOGIN_RESPONSE) {
+                if (!"OK".equals(reply.getContent())) {
+                    throw new IOException("login of " + name + " refused: " + reply.getContent());
+                }
+                break;
+            }
+        }
+        Thread reader = new Thread(null, () -> {
+            byte[] buf = new byte[4096];
+            try {
+                while (in.read(buf) >= 0) {
+                    // discard
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }, "reader-" + name, 64 * 1024);
+        reader.setDaemon(true);
+        reader.start();
+        return s;
+    }
+
+    private static SSLSocketFactory trustAll() throws Exception {
+        TrustManager[] trust = {new X509TrustManager() {
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+        }};
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, trust, null);
+        return ctx.getSocketFactory();
+    }
+
+    // ----- Server side (child JVM) -----
+
+    private static void server(String mode) throws Exception {
+        List<String> args = new ArrayList<>(List.of("--port=" + PORT, "--logDir=", "--eventLevel=warn"));
+        args.add(mode.equals("nio") ? "--transport=nio" : "--virtualThreads=" + mode.equals("virtual"));
+        PrintStream out = System.out;
+        System.setOut(System.err); // the server's own output stays off the stats channel
+        SecureChatServer server = new SecureChatServer(ChatServerConfig.fromArgs(args.toArray(new String[0])));
+        Thread t = new Thread(() -> {
+            try {
+                server.start();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "server");
+        t.setDaemon(true);
+        t.start();
+        waitForPort();
+        out.println("READY " + (mode.equals("nio") ? "no threads per connection"
+                : VirtualThreads.isSupported() ? "virtual threads available" : "platform threads"));
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals("stats")) {
+                long heap = Bench.usedHeap();
+                out.println("STATS " + ManagementFactory.getThreadMXBean().getThreadCount() + " " + heap + " " + rss());
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void waitForPort() throws InterruptedException {
+        while (true) {
+            try {
+                new Socket("localhost", PORT).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Resident set size of this process in bytes (Linux), or 0.
+     */
+    private static long rss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not Linux
+        }
+        return 0;
+    }
+}
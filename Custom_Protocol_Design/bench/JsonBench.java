@@ -0,0 +1,83 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JsonBench compares JsonCodec with the JSON code it replaced
+ * (LegacyJson: toJson + getBytes, new String + split-based fromJson), on
+ * messages the old code still round-trips (no quotes, commas or colons):
+ * time and bytes allocated per encode and per decode.
+ *
+ *   java -cp out JsonBench [iterations=1000000]
+ *
+ * A plain timed loop, not JMH (the tree has no build tool to bring it
+ * in): each round runs every case, the first rounds warm up, and the
+ * results feed a checksum so the JIT cannot drop the work.
+ */
+public class JsonBench {
+
+    private interface Case {
+        int run(int i);
+    }
+
+    private static int sink;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        ChatMessage[] messages = {
+            message("short ascii message"),
+            message("a longer message in plain ascii text that goes on for a couple of hundred bytes "
+                    + "so that the content dominates the header fields and the per byte cost shows up"),
+            message("ünïcødé: 日本語のメッセージ 😀 with some ascii around it"),
+        };
+        byte[][] legacyBodies = new byte[messages.length][];
+        byte[][] codecBodies = new byte[messages.length][];
+        for (int m = 0; m < messages.length; m++) {
+            legacyBodies[m] = LegacyJson.toJson(messages[m]).getBytes(StandardCharsets.UTF_8);
+            codecBodies[m] = MessageCodecs.JSON.encode(messages[m]);
+            ChatMessage a = LegacyJson.fromJson(new String(legacyBodies[m], StandardCharsets.UTF_8));
+            ChatMessage b = MessageCodecs.JSON.decode(codecBodies[m], 0, codecBodies[m].length);
+            if (!a.getContent().equals(messages[m].getContent()) || !b.getContent().equals(messages[m].getContent())) {
+                throw new AssertionError("round trip of message " + m);
+            }
+        }
+        for (int round = 0; round < 3; round++) {
+            System.out.println("round " + (round + 1));
+            for (int m = 0; m < messages.length; m++) {
+                ChatMessage msg = messages[m];
+                byte[] legacy = legacyBodies[m];
+                byte[] body = codecBodies[m];
+                System.out.printf("  message %d (%d bytes)%n", m, body.length);
+                run("legacy encode", iterations,
+                        i -> LegacyJson.toJson(msg).getBytes(StandardCharsets.UTF_8).length);
+                run("codec encode", iterations, i -> MessageCodecs.JSON.encode(msg).length);
+                run("legacy decode", iterations,
+                        i -> LegacyJson.fromJson(new String(legacy, StandardCharsets.UTF_8)).getContent().length());
+                run("codec decode", iterations,
+                        i -> MessageCodecs.JSON.decode(body, 0, body.length).getContent().length());
+            }
+        }
+        System.out.println("checksum " + sink);
+    }
+
+    private static void run(String name, int iterations, Case c) {
+        long allocated = Bench.allocatedBytes();
+        long start = System.nanoTime();
+        int acc = 0;
+        for (int i = 0; i < iterations; i++) {
+            acc += c.run(i);
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = Bench.allocatedBytes() - allocated;
+        sink += acc;
+        System.out.printf("    %-14s %8.1f ns/op %8d bytes/op%n", name,
+                (double) nanos / iterations, allocated / iterations);
+    }
+
+    private static ChatMessage message(String content) {
+        ChatMessage msg = new ChatMessage(MessageType.TEXT_MESSAGE);
+        msg.setSender("alice");
+        msg.setRoom("general");
+        msg.setTimestamp(1_700_000_000_000L);
+        msg.setContent(content);
+        return msg;
+    }
+}
@@ -0,0 +1,119 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * LegacyJson is the JSON encoding ChatMessage had before the codecs
+ * (toJson / fromJson built on String.split, no escaping), kept only as
+ * the baseline of the benchmarks. It is not correct for content with
+ * quotes, commas or colons; benchmarks feed it messages it round-trips.
+ */
+final class LegacyJson {
+
+    private LegacyJson() {
+    }
+
+    static String toJson(ChatMessage msg) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{");
+        sb.append("\"type\":\"").append(msg.getType().name()).append("\",");
+        sb.append("\"version\":\"").append(msg.getVersion()).append("\",");
+        sb.append("\"timestamp\":").append(msg.getTimestamp()).append(",");
+        if (msg.getSender() != null) {
+            sb.append("\"sender\":\"").append(msg.getSender()).append("\",");
+        }
+        if (msg.getRecipient() != null) {
+            sb.append("\"recipient\":\"").append(msg.getRecipient()).append("\",");
+        }
+        if (msg.getRoom() != null) {
+            sb.append("\"room\":\"").append(msg.getRoom()).append("\",");
+        }
+        if (msg.getContent() != null) {
+            sb.append("\"content\":\"").append(msg.getContent()).append("\",");
+        }
+        if (sb.charAt(sb.length() - 1) == ',') {
+            sb.deleteCharAt(sb.length() - 1);
+        }
+        sb.append("}");
+        return sb.toString();
+    }
+
+    /**
+     * The old writeTo(): [4 length][toJson() as UTF-8], built per call.
+     */
+    static byte[] frame(ChatMessage msg) {
+        byte[] body = toJson(msg).getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(4 + body.length).putInt(body.length).put(body).array();
+    }
+
+    static ChatMessage fromJson(String json) {
+        json = json.trim();
+        if (json.startsWith("{")) {
+            json = json.substring(1);
+        }
+        if (json.endsWith("}")) {
+            json = json.substring(0, json.length() - 1);
+        }
+        String[] pairs = json.split(",");
+        MessageType type = null;
+        String version = "1.0";
+        long timestamp = System.currentTimeMillis();
+        String sender = null;
+        String recipient = null;
+        String room = null;
+        String content = null;
+        for (String pair : pairs) {
+            String[] kv = pair.split(":", 2);
+            if (kv.length != 2) {
+                continue;
+            }
+            String key = kv[0].trim();
+            String value = kv[1].trim();
+            if (key.startsWith("\"") && key.endsWith("\"")) {
+                key = key.substring(1, key.length() - 1);
+            }
+            if (value.startsWith("\"") && value.endsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            switch (key) {
+                case "type":
+                    type = MessageType.valueOf(value);
+                    break;
+                case "version":
+                    version = value;
+                    break;
+                case "timestamp":
+                    try {
+                        timestamp = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        timestamp = System.currentTimeMillis();
+                    }
+                    break;
+                case "sender":
+                    sender = value;
+                    break;
+                case "recipient":
+                    recipient = value;
+                    break;
+                case "room":
+                    room = value;
+                    break;
+                case "content":
+                    content = value;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (type == null) {
+            throw new IllegalArgumentException("Missing message type in JSON: " + json);
+        }
+        ChatMessage msg = new ChatMessage(type);
+        msg.setVersion(version);
+        msg.setTimestamp(timestamp);
+        msg.setSender(sender);
+        msg.setRecipient(recipient);
+        msg.setRoom(room);
+        msg.setContent(content);
+        return msg;
+    }
+}
@@ -0,0 +1,127 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * RoutingMemoryBench compares the heap taken by the routing structures
+ * for n connected users, each in the lobby and k other rooms:
+ * - by name: what the server kept before interning: username -> session,
+ *   room name -> synchronized set of sessions, and a set of room names
+ *   per session
+ * - by id: what it keeps now: UserRegistry (logins are still by name),
+ *   SessionTable, NameInterner, RoomMembership and an IntSet of room ids
+ *   per session
+ * Sessions and names are built first and shared by both, so only the
+ * structures are counted. It also times one full fan-out over every
+ * room (members looked up and touched), by name and by id.
+ *
+ *   java -Xmx2g -cp out RoutingMemoryBench [users=100000] [rooms=10000] [roomsPerUser=3]
+ */
+public class RoutingMemoryBench {
+
+    /** Stand-in for a ClientHandler: what both layouts point at. */
+    private static final class Session {
+        final String name;
+        int id;
+        Set<String> joinedByName;  // by name
+        IntSet joinedById;         // by id
+        long delivered;
+
+        Session(String name) {
+            this.name = name;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int roomCount = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int perUser = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        Session[] sessions = new Session[users];
+        for (int u = 0; u < users; u++) {
+            sessions[u] = new Session("user" + u);
+        }
+        String[] roomNames = new String[roomCount + 1];
+        roomNames[0] = "lobby";
+        for (int r = 1; r <= roomCount; r++) {
+            roomNames[r] = "room" + r;
+        }
+        System.out.printf("%d users, %d rooms, lobby + %d rooms each%n", users, roomCount, perUser);
+
+        long base = Bench.usedHeap();
+        Map<String, Session> clients = Collections.synchronizedMap(new HashMap<>());
+        Map<String, Set<Session>> rooms = Collections.synchronizedMap(new HashMap<>());
+        for (int u = 0; u < users; u++) {
+            Session s = sessions[u];
+            clients.put(s.name, s);
+            s.joinedByName = new HashSet<>();
+            for (int r : roomsOf(u, roomCount, perUser)) {
+                rooms.computeIfAbsent(roomNames[r], k -> Collections.synchronizedSet(new HashSet<>())).add(s);
+                s.joinedByName.add(roomNames[r]);
+            }
+        }
+        long byName = Bench.usedHeap() - base;
+
+        base = Bench.usedHeap();
+        UserRegistry<Session> registry = new UserRegistry<>();
+        SessionTable<Session> table = new SessionTable<>();
+        NameInterner interner = new NameInterner();
+        RoomMembership membership = new RoomMembership();
+        for (int u = 0; u < users; u++) {
+            Session s = sessions[u];
+            registry.claim(s.name, s);
+            s.id = table.register(s);
+            s.joinedById = new IntSet();
+            for (int r : roomsOf(u, roomCount, perUser)) {
+                int room = interner.acquire(roomNames[r]);
+                membership.join(room, s.id);
+                s.joinedById.add(room);
+            }
+        }
+        long byId = Bench.usedHeap() - base;
+
+        System.out.printf("by name: %,d bytes (%d per user)%n", byName, byName / users);
+        System.out.printf("by id:   %,d bytes (%d per user)%n", byId, byId / users);
+
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (String name : roomNames) {
+                Set<Session> members = rooms.get(name);
+                synchronized (members) {
+                    for (Session s : members) {
+                        s.delivered++;
+                    }
+                }
+            }
+            long nameNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (String name : roomNames) {
+                RoomMembership.Members members = membership.members(interner.lookup(name));
+                for (int i = 0; i < members.size(); i++) {
+                    table.get(members.idAt(i)).delivered++;
+                }
+            }
+            long idNanos = System.nanoTime() - start;
+            System.out.printf("fan-out over every room: by name %.1f ms, by id %.1f ms%n",
+                    nameNanos / 1e6, idNanos / 1e6);
+        }
+        // keep both layouts reachable until the end
+        System.out.println("kept " + (clients.size() + registry.size() + sessions[0].joinedByName.size()
+                + sessions[0].joinedById.size()));
+    }
+
+    /**
+     * The lobby and perUser other rooms of user u.
+     */
+    private static List<Integer> roomsOf(int u, int roomCount, int perUser) {
+        List<Integer> rooms = new ArrayList<>(perUser + 1);
+        rooms.add(0);
+        for (int k = 0; k < perUser; k++) {
+            rooms.add(1 + (int) ((u * 7919L + k * 104_729L) % roomCount));
+        }
+        return rooms;
+    }
+}
@@ -0,0 +1,98 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StartupBench measures the state restore of a server start (what
+ * SecureChatServer.restoreState does) over a log of n messages: a full
+ * replay of the log against the latest snapshot plus the log tail.
+ *
+ *   java -cp out StartupBench [messages=1000000] [tail=10000] [rounds=3]
+ *
+ * The log holds messages of 1000 rooms from 5000 users; the snapshot is
+ * written while the last tail messages are still being appended, as a
+ * periodic one would be. Both restores must give the live state.
+ */
+public class StartupBench {
+
+    private static final int SEGMENT = 64 << 20;
+    private static final int ROOMS = 1000;
+    private static final int USERS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int tail = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        Path logDir = Files.createTempDirectory("startup-log");
+        Path snapshotDir = Files.createTempDirectory("startup-snapshots");
+        EventLog.configure(EventLog.Level.WARN, null, 8192, Collections.emptyMap());
+        try {
+            ServerState live = new ServerState();
+            MessageLog log = new MessageLog(logDir, SEGMENT);
+            log.setListener(live::apply);
+            for (int u = 0; u < USERS; u++) {
+                live.joined("user" + u, "room" + (u % ROOMS));
+            }
+            fill(log, 0, messages - tail);
+            log.awaitWritten(messages - tail, 60_000);
+            SnapshotStore store = new SnapshotStore(snapshotDir, live, 3600);
+            Thread writer = new Thread(() -> fill(log, messages - tail, tail));
+            writer.start();
+            store.shutdown(); // captured while the tail is written
+            writer.join();
+            log.close();
+            System.out.printf("log: %d messages, %d MB; snapshot: %d bytes%n", messages,
+                    Bench.size(logDir) >> 20, Bench.size(snapshotDir));
+
+            for (int r = 0; r < rounds; r++) {
+                long[] full = restore(logDir, null, live);
+                long[] fast = restore(logDir, snapshotDir, live);
+                System.out.printf("full replay: %d ms (%d records); snapshot + tail: %d ms (%d records)%n",
+                        full[0], full[1], fast[0], fast[1]);
+            }
+        } finally {
+            EventLog.shutdown();
+            Bench.delete(logDir);
+            Bench.delete(snapshotDir);
+        }
+    }
+
+    /**
+     * Restore a state as a start does; returns {millis, records replayed}.
+     */
+    private static long[] restore(Path logDir, Path snapshotDir, ServerState live) throws Exception {
+        long start = System.nanoTime();
+        ServerState state = new ServerState();
+        MessageLog log = new MessageLog(logDir, SEGMENT);
+        long end = log.getNextSequence();
+        if (snapshotDir != null) {
+            ServerState.Snapshot snapshot = new SnapshotStore(snapshotDir, state, 3600).load();
+            state.restore(snapshot, ServerState.matches(snapshot, end));
+        }
+        long replayed = new MessageLogReader(logDir, 0).forEach(state.getAppliedSequence() - 1, end, state::apply);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.close();
+        for (int i = 0; i < ROOMS; i++) {
+            ServerState.RoomStats expected = live.room("room" + i);
+            ServerState.RoomStats actual = state.room("room" + i);
+            if (expected.getMessages() != actual.getMessages()
+                    || expected.getLastSequence() != actual.getLastSequence()) {
+                throw new AssertionError("room" + i + " differs from the live state");
+            }
+        }
+        return new long[] {millis, replayed};
+    }
+
+    private static void fill(MessageLog log, int from, int count) {
+        for (int i = from; i < from + count; i++) {
+            ChatMessage msg = new ChatMessage(MessageType.TEXT_MESSAGE);
+            msg.setRoom("room" + (i % ROOMS));
+            msg.setSender("user" + (i % USERS));
+            msg.setContent("message " + i + " lorem ipsum dolor sit amet");
+            while (log.append(msg, MessageLog.Durability.NONE) == MessageLog.FAILED) {
+                Thread.onSpinWait(); // the queue is full: let the appender catch up
+            }
+        }
+    }
+}
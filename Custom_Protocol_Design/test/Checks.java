@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * Checks holds what the tests share. The tests are plain classes with a
+ * main method, so they build and run without a test framework:
+ *   javac -encoding UTF-8 -d out *.java test/*.java
+ *   java -cp out RunTests            (all of them)
+ *   java -cp out IntIntMapTest       (one)
+ * A failed check throws AssertionError, which fails the test.
+ */
+final class Checks {
+
+    private Checks() {
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+
+    static void equal(long expected, long actual, String what) {
+        if (expected != actual) {
+            throw new AssertionError(what + ": expected " + expected + ", was " + actual);
+        }
+    }
+
+    static void equal(Object expected, Object actual, String what) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(what + ": expected " + expected + ", was " + actual);
+        }
+    }
+
+    /**
+     * A new empty directory under the system temp directory.
+     */
+    static Path tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix);
+    }
+
+    /**
+     * Delete dir and everything in it.
+     */
+    static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
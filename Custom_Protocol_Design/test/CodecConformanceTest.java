@@ -0,0 +1,116 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CodecConformanceTest runs the same cases against every registered
+ * MessageCodec:
+ * - every message type, null and empty fields, escapes and control
+ *   characters, non-ASCII and supplementary characters, content over
+ *   64 KB, extreme timestamps: decode(encode(m)) gives m back
+ * - decodeHeader keeps the content raw, and it reads back the same
+ * - a frame is [4 length][body], and sniff() finds its codec
+ * - content received in one codec and forwarded in another (raw, as a
+ *   broadcast does) arrives intact
+ * - a truncated body raises IllegalArgumentException, nothing else
+ */
+public class CodecConformanceTest {
+
+    public static void main(String[] args) {
+        List<ChatMessage> cases = cases();
+        for (MessageCodec codec : MessageCodecs.all()) {
+            for (int i = 0; i < cases.size(); i++) {
+                roundTrip(codec, cases.get(i), codec.getName() + " case " + i);
+            }
+        }
+        for (MessageCodec from : MessageCodecs.all()) {
+            for (MessageCodec to : MessageCodecs.all()) {
+                for (int i = 0; i < cases.size(); i++) {
+                    forward(from, to, cases.get(i), from.getName() + " -> " + to.getName() + " case " + i);
+                }
+            }
+        }
+        for (MessageCodec codec : MessageCodecs.all()) {
+            truncated(codec);
+        }
+    }
+
+    private static List<ChatMessage> cases() {
+        List<ChatMessage> cases = new ArrayList<>();
+        String[] contents = {
+            null, "", "hello", "a,b:c {\"q\"} [1] \\ / \n\t\r\b\f \u0001 \u001f \u007f",
+            "ünïcødé 日本語 😀 👍", "x".repeat(70_000), "é".repeat(40_000),
+        };
+        for (MessageType type : MessageType.values()) {
+            ChatMessage msg = new ChatMessage(type);
+            msg.setTimestamp(1_700_000_000_000L);
+            msg.setSender("alice");
+            cases.add(msg);
+        }
+        long[] timestamps = {0, -1, Long.MIN_VALUE, Long.MAX_VALUE};
+        for (int i = 0; i < contents.length; i++) {
+            ChatMessage msg = new ChatMessage(i % 2 == 0 ? MessageType.TEXT_MESSAGE : MessageType.PRIVATE_MESSAGE);
+            msg.setTimestamp(timestamps[i % timestamps.length]);
+            msg.setSender("sénder \"" + i + "\"");
+            msg.setRecipient(i % 2 == 0 ? null : "bob, the \\ recipient");
+            msg.setRoom(i % 2 == 0 ? "room:" + i : null);
+            msg.setContent(contents[i]);
+            cases.add(msg);
+        }
+        return cases;
+    }
+
+    private static void roundTrip(MessageCodec codec, ChatMessage msg, String what) {
+        byte[] body = codec.encode(msg);
+        Checks.check(codec.accepts(body[0]), what + ": first byte not accepted");
+        same(msg, codec.decode(body, 0, body.length), what);
+
+        ChatMessage header = codec.decodeHeader(body, 0, body.length);
+        same(msg, header, what + " (header)");
+        if (msg.getContent() != null) {
+            Checks.check(header.getRawContent() != null, what + ": header content not raw");
+        }
+
+        byte[] frame = codec.encodeFrame(msg);
+        Checks.equal(body.length, frame.length - 4, what + ": frame length");
+        Checks.equal(body.length, (long) ((frame[0] & 0xFF) << 24 | (frame[1] & 0xFF) << 16
+                | (frame[2] & 0xFF) << 8 | (frame[3] & 0xFF)), what + ": length header");
+        Checks.check(MessageCodecs.sniff(frame, 4, frame.length - 4) == codec, what + ": sniffed codec");
+        same(msg, ChatMessage.fromBytes(frame, 4, frame.length - 4), what + " (fromBytes)");
+    }
+
+    private static void forward(MessageCodec from, MessageCodec to, ChatMessage msg, String what) {
+        byte[] received = from.encode(msg);
+        ChatMessage routed = from.decodeHeader(received, 0, received.length);
+        byte[] sent = to.encode(routed);
+        same(msg, to.decode(sent, 0, sent.length), what);
+    }
+
+    private static void truncated(MessageCodec codec) {
+        ChatMessage msg = new ChatMessage(MessageType.TEXT_MESSAGE);
+        msg.setSender("alice");
+        msg.setRoom("général");
+        msg.setContent("ünïcødé \"quoted\" 😀");
+        byte[] body = codec.encode(msg);
+        for (int length = 0; length < body.length; length++) {
+            try {
+                ChatMessage decoded = codec.decode(body, 0, length);
+                // a prefix may be a complete message only if nothing was cut
+                Checks.check(decoded.getContent() == null || !decoded.getContent().equals(msg.getContent()),
+                        codec.getName() + ": prefix of " + length + " bytes decoded whole");
+            } catch (IllegalArgumentException expected) {
+                // malformed
+            } catch (RuntimeException e) {
+                throw new AssertionError(codec.getName() + ": prefix of " + length + " bytes threw " + e, e);
+            }
+        }
+    }
+
+    private static void same(ChatMessage expected, ChatMessage actual, String what) {
+        Checks.equal(expected.getType(), actual.getType(), what + ": type");
+        Checks.equal(expected.getTimestamp(), actual.getTimestamp(), what + ": timestamp");
+        Checks.equal(expected.getSender(), actual.getSender(), what + ": sender");
+        Checks.equal(expected.getRecipient(), actual.getRecipient(), what + ": recipient");
+        Checks.equal(expected.getRoom(), actual.getRoom(), what + ": room");
+        Checks.equal(expected.getContent(), actual.getContent(), what + ": content");
+    }
+}
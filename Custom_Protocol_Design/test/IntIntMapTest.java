@@ -0,0 +1,118 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * IntIntMapTest checks IntIntMap and IntSet against java.util
+ * collections:
+ * - random put/remove churn on a small key range, so that probe chains
+ *   form, wrap around the end of the table and are cut by removals
+ *   (the backward-shift delete must keep every other key reachable)
+ * - keys chosen to share one home slot, removed from the middle of the
+ *   chain
+ * - IntSet add/remove/contains and its dense array
+ */
+public class IntIntMapTest {
+
+    public static void main(String[] args) {
+        randomChurn();
+        sharedHomeSlot();
+        intSet();
+        try {
+            new IntIntMap().put(-1, 0);
+            throw new AssertionError("negative key accepted");
+        } catch (IllegalArgumentException expected) {
+            // keys must be >= 0
+        }
+    }
+
+    private static void randomChurn() {
+        Random random = new Random(42);
+        IntIntMap map = new IntIntMap();
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int op = 0; op < 500_000; op++) {
+            int key = random.nextInt(op < 250_000 ? 64 : 4096);
+            if (random.nextInt(3) == 0) {
+                Checks.equal((int) expected.getOrDefault(key, -1), map.remove(key), "remove " + key);
+                expected.remove(key);
+            } else {
+                int value = random.nextInt(1_000_000);
+                Checks.equal((int) expected.getOrDefault(key, -1), map.put(key, value), "put " + key);
+                expected.put(key, value);
+            }
+            if (op % 1000 == 0) {
+                verify(map, expected, 4096);
+            }
+        }
+        verify(map, expected, 4096);
+        for (int key : new ArrayList<>(expected.keySet())) {
+            map.remove(key);
+        }
+        Checks.equal(0, map.size(), "size after removing everything");
+    }
+
+    private static void sharedHomeSlot() {
+        // capacity 16 until 12 entries: find keys with one home slot
+        IntIntMap probe = new IntIntMap(8);
+        List<Integer> colliding = new ArrayList<>();
+        int home = homeSlot(15, 16);
+        for (int key = 0; colliding.size() < 6; key++) {
+            if (homeSlot(key, 16) == home) {
+                colliding.add(key);
+            }
+        }
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int key : colliding) {
+            probe.put(key, key + 1);
+            expected.put(key, key + 1);
+        }
+        // cut the chain in the middle, at its head, then in the middle again
+        for (int i : new int[] {2, 0, 4}) {
+            probe.remove(colliding.get(i));
+            expected.remove(colliding.get(i));
+            verify(probe, expected, colliding.get(colliding.size() - 1) + 1);
+        }
+    }
+
+    private static int homeSlot(int key, int capacity) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (capacity - 1);
+    }
+
+    private static void verify(IntIntMap map, Map<Integer, Integer> expected, int keyRange) {
+        Checks.equal(expected.size(), map.size(), "size");
+        for (int key = 0; key < keyRange; key++) {
+            Checks.equal((int) expected.getOrDefault(key, -1), map.get(key), "get " + key);
+            Checks.equal(expected.containsKey(key), map.containsKey(key), "containsKey " + key);
+        }
+    }
+
+    private static void intSet() {
+        Random random = new Random(7);
+        IntSet set = new IntSet();
+        Set<Integer> expected = new HashSet<>();
+        for (int op = 0; op < 200_000; op++) {
+            int value = random.nextInt(op < 100_000 ? 5000 : 50);
+            if (random.nextBoolean()) {
+                Checks.equal(expected.add(value), set.add(value), "add " + value);
+            } else {
+                Checks.equal(expected.remove(value), set.remove(value), "remove " + value);
+            }
+            if (op % 5000 == 0) {
+                Checks.equal(expected.size(), set.size(), "set size");
+                Set<Integer> dense = new HashSet<>();
+                for (int i = 0; i < set.size(); i++) {
+                    dense.add(set.get(i));
+                }
+                Checks.equal(expected, dense, "dense values");
+            }
+        }
+        for (int value = 0; value < 5000; value++) {
+            Checks.equal(expected.contains(value), set.contains(value), "contains " + value);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MailboxTest checks Mailbox on disk:
+ * - the quota, and pending counts found again by a new Mailbox
+ * - expiry and compaction: the files keep only the live records, with
+ *   offsets rebased, and a new Mailbox delivers them in order
+ * - a corrupt record is copied to the .bad file and the others are
+ *   delivered; the mailbox files are removed, the .bad file kept
+ */
+public class MailboxTest {
+
+    private static final long TTL_MILLIS = 1000; // cleanup every second
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Checks.tempDir("mailbox-test");
+        try {
+            quotaAndReload(dir.resolve("quota"));
+            compaction(dir.resolve("compact"));
+            corruptRecord(dir.resolve("corrupt"));
+        } finally {
+            Checks.delete(dir);
+        }
+    }
+
+    private static void quotaAndReload(Path dir) throws Exception {
+        Mailbox box = new Mailbox(dir, 3, 60_000, 10);
+        long now = System.currentTimeMillis();
+        storeAll(box, "bob", now, "m0", "m1", "m2");
+        Checks.check(!box.store(message("bob", now, "m3"), u -> null, () -> { }, () -> { }), "store above quota");
+        Checks.equal(3, box.getPending("bob"), "pending at quota");
+        box.shutdown();
+
+        box = new Mailbox(dir, 3, 60_000, 10);
+        Checks.equal(3, box.getPending("bob"), "pending after reload");
+        Checks.equal(Arrays.asList("m0", "m1", "m2"), deliver(box, "bob", 3), "delivered after reload");
+        box.shutdown();
+        Checks.check(!Files.exists(dir.resolve(Mailbox.fileName("bob") + ".box")), "box removed once delivered");
+    }
+
+    private static void compaction(Path dir) throws Exception {
+        Mailbox box = new Mailbox(dir, 10, TTL_MILLIS, 2);
+        long now = System.currentTimeMillis();
+        storeAll(box, "carol", now - 10 * TTL_MILLIS, "old0", "old1", "old2", "old3", "old4");
+        storeAll(box, "carol", now + 60_000, "new0", "new1", "new2");
+        Path idx = dir.resolve(Mailbox.fileName("carol") + ".idx");
+        Path boxFile = dir.resolve(Mailbox.fileName("carol") + ".box");
+        long boxBefore = Files.size(boxFile);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (box.getPending("carol") != 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Checks.equal(3, box.getPending("carol"), "pending after expiry");
+        box.shutdown(); // waits for a cleanup under way
+
+        Checks.equal(8 + 3 * 16, Files.size(idx), "compacted index size");
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(idx));
+        Checks.equal(0, index.getLong(0), "delivered count after compaction");
+        Checks.equal(0, index.getLong(8), "first offset after compaction");
+        Checks.check(Files.size(boxFile) < boxBefore / 2, "box compacted");
+
+        box = new Mailbox(dir, 10, 60_000, 2);
+        Checks.equal(3, box.getPending("carol"), "pending after reload");
+        Checks.equal(Arrays.asList("new0", "new1", "new2"), deliver(box, "carol", 3), "delivered after compaction");
+        box.shutdown();
+    }
+
+    private static void corruptRecord(Path dir) throws Exception {
+        Mailbox box = new Mailbox(dir, 10, 60_000, 10);
+        storeAll(box, "dave", System.currentTimeMillis(), "first", "second", "third");
+        box.shutdown();
+
+        Path boxFile = dir.resolve(Mailbox.fileName("dave") + ".box");
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(dir.resolve(Mailbox.fileName("dave") + ".idx")));
+        int second = (int) index.getLong(8 + 16);
+        byte[] bytes = Files.readAllBytes(boxFile);
+        bytes[second + 20] ^= 0x55; // in the body: the CRC no longer matches
+        Files.write(boxFile, bytes);
+
+        box = new Mailbox(dir, 10, 60_000, 10);
+        Checks.equal(Arrays.asList("first", "third"), deliver(box, "dave", 2), "delivered around the corrupt record");
+        box.shutdown();
+        Checks.equal(0, box.getPending("dave"), "pending after delivery");
+        Checks.check(!Files.exists(boxFile), "box removed once delivered");
+
+        ByteBuffer bad = ByteBuffer.wrap(Files.readAllBytes(dir.resolve(Mailbox.fileName("dave") + ".bad")));
+        Checks.equal(second, bad.getLong(0), "offset of the quarantined record");
+        int n = bad.getInt(8);
+        Checks.equal(12 + n, bad.capacity(), "one quarantined record");
+        Checks.equal(bytes[second + 20], bad.get(12 + 20), "quarantined bytes as found");
+    }
+
+    // ----- Helpers -----
+
+    private static ChatMessage message(String to, long timestamp, String content) {
+        ChatMessage msg = new ChatMessage(MessageType.PRIVATE_MESSAGE);
+        msg.setSender("alice");
+        msg.setRecipient(to);
+        msg.setTimestamp(timestamp);
+        msg.setContent(content);
+        return msg;
+    }
+
+    private static void storeAll(Mailbox box, String to, long timestamp, String... contents) throws Exception {
+        CountDownLatch stored = new CountDownLatch(contents.length);
+        for (String content : contents) {
+            Checks.check(box.store(message(to, timestamp, content), u -> null, stored::countDown,
+                    () -> { throw new AssertionError("store failed: " + content); }), "store " + content);
+        }
+        Checks.check(stored.await(5, TimeUnit.SECONDS), "stored");
+    }
+
+    /**
+     * Deliver user's mailbox and wait for n messages and for the mailbox
+     * to be marked delivered.
+     */
+    private static List<String> deliver(Mailbox box, String user, int n) throws Exception {
+        List<String> got = Collections.synchronizedList(new ArrayList<>());
+        OutboundQueue<Object> queue = new OutboundQueue<>(1024, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        box.deliver(user, new BatchedSender.Client() {
+            @Override
+            public OutboundQueue<?> getOutboundQueue() {
+                return queue;
+            }
+
+            @Override
+            public void send(ChatMessage msg) {
+                got.add(msg.getContent());
+            }
+        });
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((got.size() < n || box.getPending(user) > 0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Checks.equal(n, got.size(), "messages delivered to " + user);
+        return new ArrayList<>(got);
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MessageLogTest checks MessageLog recovery and what MessageLogReader
+ * reads back:
+ * - records spread over several segments are all found after a reopen,
+ *   in order, and numbering continues where it stopped
+ * - a corrupt record in the last segment (a torn write) is cleared with
+ *   everything after it, and new appends take its sequence number
+ * - a record too large to write fails, leaves an empty record in its
+ *   place and does not break the numbering, across a reopen
+ * - retention deletes the oldest segments and the rest stays readable
+ */
+public class MessageLogTest {
+
+    private static final int SEGMENT = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Checks.tempDir("messagelog-test");
+        try {
+            reopenAndTornTail(dir.resolve("torn"));
+            failedRecord(dir.resolve("failed"));
+            retention(dir.resolve("retained"));
+        } finally {
+            Checks.delete(dir);
+        }
+    }
+
+    private static void reopenAndTornTail(Path dir) throws Exception {
+        MessageLog log = new MessageLog(dir, SEGMENT);
+        appendAll(log, 1, 1000);
+        log.close();
+        Checks.check(segments(dir).size() > 2, "several segments, got " + segments(dir));
+
+        log = new MessageLog(dir, SEGMENT);
+        Checks.equal(1001, log.getNextSequence(), "next sequence after reopen");
+        appendAll(log, 1001, 1010);
+        log.close();
+        checkRecords(dir, 1, 1010);
+
+        // damage the body of the third record from the end of the last segment
+        Path last = segments(dir).get(segments(dir).size() - 1);
+        List<Integer> positions = recordPositions(last);
+        int torn = positions.get(positions.size() - 3);
+        long tornSequence;
+        try (FileChannel ch = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+            tornSequence = buf.getLong(torn + 8);
+            buf.put(torn + 30, (byte) (buf.get(torn + 30) ^ 0x55));
+            buf.force();
+        }
+        Checks.equal(1008, tornSequence, "sequence of the damaged record");
+
+        log = new MessageLog(dir, SEGMENT);
+        Checks.equal(tornSequence, log.getNextSequence(), "next sequence after a torn record");
+        Checks.equal(tornSequence, log.append(message(tornSequence), MessageLog.Durability.MESSAGE),
+                "sequence of the first append after recovery");
+        log.close();
+        checkRecords(dir, 1, tornSequence);
+    }
+
+    private static void failedRecord(Path dir) throws Exception {
+        MessageLog log = new MessageLog(dir, SEGMENT);
+        appendAll(log, 1, 10);
+        ChatMessage huge = message(11);
+        huge.setContent("x".repeat(2 * SEGMENT));
+        AtomicLong stored = new AtomicLong(0);
+        Checks.equal(11, log.append(huge, MessageLog.Durability.NONE, stored::set), "sequence of the huge record");
+        appendAll(log, 12, 20);
+        Checks.check(log.awaitWritten(20, 5000), "written");
+        Checks.equal(MessageLog.FAILED, stored.get(), "onStored of the huge record");
+        log.close();
+
+        log = new MessageLog(dir, SEGMENT);
+        Checks.equal(21, log.getNextSequence(), "next sequence after a failed record");
+        log.close();
+        List<Long> sequences = new ArrayList<>();
+        new MessageLogReader(dir, 0).forEach(0, Long.MAX_VALUE, (sequence, timestamp, msg) -> sequences.add(sequence));
+        Checks.equal(19, sequences.size(), "records read around the failed one");
+        Checks.check(!sequences.contains(11L), "failed record read back");
+    }
+
+    private static void retention(Path dir) throws Exception {
+        MessageLog log = new MessageLog(dir, SEGMENT, 3L * SEGMENT, 10, 256 * 1024);
+        appendAll(log, 1, 3000);
+        log.close();
+        List<Path> files = segments(dir);
+        long total = 0;
+        for (Path f : files) {
+            total += Files.size(f);
+        }
+        Checks.check(total <= 3L * SEGMENT, "retained " + total + " bytes in " + files);
+
+        long first = Long.parseLong(files.get(0).getFileName().toString().replace(".log", ""));
+        Checks.check(first > 1, "oldest segment deleted");
+        Checks.check(!Files.exists(dir.resolve(String.format("%020d.idx", 1L))), "oldest index deleted");
+        checkRecords(dir, first, 3000);
+    }
+
+    // ----- Helpers -----
+
+    private static ChatMessage message(long i) {
+        ChatMessage msg = new ChatMessage(MessageType.TEXT_MESSAGE);
+        msg.setSender("alice");
+        msg.setRoom("room" + (i % 3));
+        msg.setTimestamp(1_000_000 + i);
+        msg.setContent("message " + i + " " + "y".repeat((int) (i % 200)));
+        return msg;
+    }
+
+    private static void appendAll(MessageLog log, long from, long to) throws InterruptedException {
+        for (long i = from; i <= to; i++) {
+            Checks.equal(i, log.append(message(i), MessageLog.Durability.NONE), "sequence of append " + i);
+        }
+        Checks.check(log.awaitWritten(to, 5000), "written up to " + to);
+    }
+
+    /**
+     * Every record in [from, to] read back whole, and nothing else.
+     */
+    private static void checkRecords(Path dir, long from, long to) throws IOException {
+        List<Long> sequences = new ArrayList<>();
+        new MessageLogReader(dir, 0).forEach(0, Long.MAX_VALUE, (sequence, timestamp, msg) -> {
+            ChatMessage expected = message(sequence);
+            Checks.equal(expected.getTimestamp(), timestamp, "timestamp of " + sequence);
+            Checks.equal(expected.getContent(), msg.getContent(), "content of " + sequence);
+            Checks.equal(expected.getRoom(), msg.getRoom(), "room of " + sequence);
+            sequences.add(sequence);
+        });
+        Checks.equal(to - from + 1, sequences.size(), "records read");
+        for (int i = 0; i < sequences.size(); i++) {
+            Checks.equal(from + i, (long) sequences.get(i), "sequence read at " + i);
+        }
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> found = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path f : found) {
+                files.add(f);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    private static List<Integer> recordPositions(Path segment) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(segment));
+        List<Integer> positions = new ArrayList<>();
+        int position = 0;
+        while (position + 8 <= buf.capacity()) {
+            int length = buf.getInt(position);
+            if (length < 16) {
+                break;
+            }
+            positions.add(position);
+            position += 8 + length;
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,103 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * RecentFramesTest checks the off-heap rings of RecentFrames against a
+ * list of what each ring should hold:
+ * - records of random sizes wrap around the ring; the oldest are dropped
+ *   for bytes and for the message cap, and last/since return the rest
+ *   intact and in order
+ * - since() is null once the ring no longer reaches back far enough
+ * - a room id reused for another name starts empty, and a read with the
+ *   old name neither finds nor drops the new ring
+ * - with no free slot, the room written to least recently is evicted
+ */
+public class RecentFramesTest {
+
+    private static final int ROOM_BYTES = 1024;
+    private static final int ROOM_MESSAGES = 12;
+
+    public static void main(String[] args) {
+        wrapAndDrop();
+        reusedId();
+        eviction();
+    }
+
+    private static void wrapAndDrop() {
+        RecentFrames frames = new RecentFrames(1, 4 * ROOM_BYTES, ROOM_BYTES, ROOM_MESSAGES);
+        Random random = new Random(3);
+        Deque<ChatMessage> expected = new ArrayDeque<>();
+        int expectedBytes = 0;
+        ByteWriter body = new ByteWriter(256);
+        for (int i = 0; i < 2000; i++) {
+            ChatMessage msg = message("room", i, "m" + i + "-" + "x".repeat(random.nextInt(300)));
+            body.reset();
+            MessageCodecs.BINARY.encodeBody(msg, body);
+            int size = 12 + body.size();
+            while (!expected.isEmpty() && (expectedBytes + size > ROOM_BYTES || expected.size() >= ROOM_MESSAGES)) {
+                ChatMessage dropped = expected.removeFirst();
+                body.reset();
+                MessageCodecs.BINARY.encodeBody(dropped, body);
+                expectedBytes -= 12 + body.size();
+            }
+            expected.addLast(msg);
+            expectedBytes += size;
+            frames.add(0, "room", msg);
+
+            Checks.equal(expected.size(), frames.count(0, "room"), "count after " + i);
+            List<ChatMessage> all = new ArrayList<>(expected);
+            int n = 1 + random.nextInt(ROOM_MESSAGES + 2);
+            same(all.subList(Math.max(0, all.size() - n), all.size()), frames.last(0, "room", n), "last " + n);
+            long oldest = all.get(0).getTimestamp();
+            same(all, frames.since(0, "room", oldest, 100), "since the oldest held");
+            if (i >= ROOM_MESSAGES) {
+                Checks.check(frames.since(0, "room", oldest - 1, 100) == null, "since before the oldest held");
+            }
+        }
+    }
+
+    private static void reusedId() {
+        RecentFrames frames = new RecentFrames(1, 4 * ROOM_BYTES, ROOM_BYTES, ROOM_MESSAGES);
+        frames.add(5, "old", message("old", 1, "a"));
+        Checks.equal(1, frames.count(5, "old"), "old room");
+        Checks.equal(0, frames.count(5, "new"), "id reused for a new room");
+        frames.add(5, "new", message("new", 2, "b"));
+        Checks.equal(0, frames.count(5, "old"), "old room after reuse");
+        Checks.equal("b", frames.last(5, "new", 10).get(0).getContent(), "new room");
+    }
+
+    private static void eviction() {
+        RecentFrames frames = new RecentFrames(1, 2 * ROOM_BYTES, ROOM_BYTES, ROOM_MESSAGES);
+        frames.add(1, "a", message("a", 1, "a1"));
+        frames.add(2, "b", message("b", 2, "b1"));
+        frames.add(1, "a", message("a", 3, "a2")); // b is now least recent
+        frames.add(3, "c", message("c", 4, "c1"));
+        Checks.equal(1, frames.getEvictions(), "evictions");
+        Checks.equal(0, frames.count(2, "b"), "evicted room");
+        Checks.equal(2, frames.count(1, "a"), "recently written room");
+        Checks.equal(1, frames.count(3, "c"), "new room");
+        Checks.equal(2L * ROOM_BYTES, frames.getAllocatedBytes(), "allocated bytes");
+    }
+
+    private static ChatMessage message(String room, long timestamp, String content) {
+        ChatMessage msg = new ChatMessage(MessageType.TEXT_MESSAGE);
+        msg.setSender("alice");
+        msg.setRoom(room);
+        msg.setTimestamp(timestamp);
+        msg.setContent(content);
+        return msg;
+    }
+
+    private static void same(List<ChatMessage> expected, List<ChatMessage> actual, String what) {
+        Checks.check(actual != null, what + ": null");
+        Checks.equal(expected.size(), actual.size(), what + " size");
+        for (int i = 0; i < expected.size(); i++) {
+            Checks.equal(expected.get(i).getTimestamp(), actual.get(i).getTimestamp(), what + " timestamp " + i);
+            Checks.equal(expected.get(i).getContent(), actual.get(i).getContent(), what + " content " + i);
+            Checks.equal(expected.get(i).getRoom(), actual.get(i).getRoom(), what + " room " + i);
+        }
+    }
+}
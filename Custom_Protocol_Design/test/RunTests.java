@@ -0,0 +1,36 @@
+/**
+ * RunTests runs every test and exits with status 1 if any failed
+ * (see Checks for how to build them).
+ */
+public class RunTests {
+
+    interface Test {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) {
+        int failed = 0;
+        failed += run("CodecConformanceTest", () -> CodecConformanceTest.main(args));
+        failed += run("EventLogTest", () -> EventLogTest.main(args));
+        failed += run("IntIntMapTest", () -> IntIntMapTest.main(args));
+        failed += run("MailboxTest", () -> MailboxTest.main(args));
+        failed += run("MessageLogTest", () -> MessageLogTest.main(args));
+        failed += run("RecentFramesTest", () -> RecentFramesTest.main(args));
+        failed += run("ServerStateTest", () -> ServerStateTest.main(args));
+        System.out.println(failed == 0 ? "All tests passed" : failed + " test(s) failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static int run(String name, Test test) {
+        long start = System.nanoTime();
+        try {
+            test.run();
+            System.out.printf("PASS %s (%d ms)%n", name, (System.nanoTime() - start) / 1_000_000);
+            return 0;
+        } catch (Throwable e) {
+            System.out.println("FAIL " + name + ": " + e);
+            e.printStackTrace(System.out);
+            return 1;
+        }
+    }
+}
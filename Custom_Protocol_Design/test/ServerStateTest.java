@@ -0,0 +1,156 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ServerStateTest checks ServerState snapshots and the restart path:
+ * - a snapshot taken while records are still being applied (fuzzy),
+ *   restored and followed by the log from its sequence number, gives
+ *   exactly the state of a full replay
+ * - the compact form round-trips names longer than 64 KB and non-ASCII
+ * - matches() refuses a log that lost records the snapshot counted
+ * - memberships come back once, at the user's first login
+ * - SnapshotStore.load() falls back to the previous file when the newest
+ *   one is damaged
+ */
+public class ServerStateTest {
+
+    private static final String[] ROOMS = {"lobby", "général", "dev"};
+
+    public static void main(String[] args) throws Exception {
+        fuzzySnapshotAndTail();
+        roundTrip();
+        restoredMemberships();
+        Path dir = Checks.tempDir("snapshot-test");
+        try {
+            storeFallback(dir);
+        } finally {
+            Checks.delete(dir);
+        }
+    }
+
+    private static void fuzzySnapshotAndTail() throws Exception {
+        ServerState full = new ServerState();
+        ServerState.Snapshot snapshot = null;
+        for (long seq = 1; seq <= 1000; seq++) {
+            full.apply(seq, 10 * seq, message(seq));
+            if (seq == 600) {
+                snapshot = full.capture();
+            }
+        }
+        // as fuzzy as a capture gets: rooms counted up to 600, sequence 590
+        snapshot = roundTrip(new ServerState.Snapshot(590, snapshotRooms(snapshot), Collections.emptyMap()));
+
+        ServerState restarted = new ServerState();
+        Checks.check(ServerState.matches(snapshot, 1001), "snapshot matches the log");
+        restarted.restore(snapshot, true);
+        for (long seq = snapshot.getSequence(); seq <= 1000; seq++) {
+            restarted.apply(seq, 10 * seq, message(seq));
+        }
+        for (String room : ROOMS) {
+            ServerState.RoomStats expected = full.room(room);
+            ServerState.RoomStats actual = restarted.room(room);
+            Checks.equal(expected.getMessages(), actual.getMessages(), room + " messages");
+            Checks.equal(expected.getLastSequence(), actual.getLastSequence(), room + " last sequence");
+            Checks.equal(expected.getLastTimestamp(), actual.getLastTimestamp(), room + " last timestamp");
+        }
+        Checks.equal(1001, restarted.getAppliedSequence(), "applied sequence");
+        Checks.check(!ServerState.matches(full.capture(), 900), "snapshot of records the log lost");
+    }
+
+    private static void roundTrip() throws Exception {
+        ServerState state = new ServerState();
+        String longName = "ü".repeat(40_000); // 80,000 bytes of UTF-8
+        state.apply(1, 5, text(longName));
+        state.joined("ålice", longName);
+        state.joined("ålice", "dev");
+        ServerState.Snapshot snapshot = roundTrip(state.capture());
+        Checks.equal(1, snapshot.getRooms(), "rooms");
+        Checks.equal(1, snapshot.getUsers(), "users");
+        ServerState restored = new ServerState();
+        restored.restore(snapshot, true);
+        Checks.equal(1, restored.room(longName).getMessages(), "long room name");
+        Checks.equal(List.of(longName, "dev"), new ArrayList<>(restored.takeRestored("ålice")), "memberships in order");
+    }
+
+    private static void restoredMemberships() throws Exception {
+        ServerState state = new ServerState();
+        state.joined("bob", "dev");
+        ServerState restored = new ServerState();
+        restored.restore(roundTrip(state.capture()), false);
+        Checks.check(restored.room("dev") == null, "rooms taken without withRooms");
+        Checks.equal(Set.of("dev"), restored.takeRestored("bob"), "first login");
+        Checks.equal(Set.of(), restored.takeRestored("bob"), "second login");
+    }
+
+    private static void storeFallback(Path dir) throws Exception {
+        ServerState state = new ServerState();
+        state.apply(1, 1, text("dev"));
+        SnapshotStore store = new SnapshotStore(dir, state, 3600);
+        store.shutdown();
+        Thread.sleep(5); // the next file gets another name
+        state.apply(2, 2, text("dev"));
+        store = new SnapshotStore(dir, state, 3600);
+        store.shutdown();
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> found = Files.newDirectoryStream(dir, "snapshot-*.snap")) {
+            found.forEach(files::add);
+        }
+        Collections.sort(files);
+        Checks.equal(2, files.size(), "snapshot files");
+        Checks.equal(3, store.load().getSequence(), "newest snapshot");
+
+        byte[] newest = Files.readAllBytes(files.get(1));
+        newest[newest.length - 1] ^= 1;
+        Files.write(files.get(1), newest);
+        Checks.equal(2, store.load().getSequence(), "previous snapshot after damage");
+    }
+
+    // ----- Helpers -----
+
+    private static ChatMessage message(long seq) {
+        return text(ROOMS[(int) (seq % ROOMS.length)]);
+    }
+
+    private static ChatMessage text(String room) {
+        ChatMessage msg = new ChatMessage(MessageType.TEXT_MESSAGE);
+        msg.setSender("alice");
+        msg.setRoom(room);
+        msg.setContent("hi");
+        return msg;
+    }
+
+    private static ServerState.Snapshot roundTrip(ServerState.Snapshot snapshot) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            snapshot.write(out);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return ServerState.Snapshot.read(in);
+        }
+    }
+
+    /**
+     * The room stats of snapshot, read back through a restore.
+     */
+    private static Map<String, ServerState.RoomStats> snapshotRooms(ServerState.Snapshot snapshot) {
+        ServerState state = new ServerState();
+        state.restore(snapshot, true);
+        Map<String, ServerState.RoomStats> rooms = new HashMap<>();
+        for (String room : ROOMS) {
+            rooms.put(room, state.room(room));
+        }
+        return rooms;
+    }
+}